@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.maven.doxia.parser.ParseException;
+
+/**
+ * Reports all files of an input directory which could not be converted, when converting with
+ * {@link ConversionOptions#isKeepGoing()}. All other files were converted and post processed.
+ *
+ * @since 1.4
+ */
+public class BatchConversionException extends ConverterException {
+    /** The serialVersionUID */
+    static final long serialVersionUID = 4306126349726870539L;
+
+    /**
+     * The failure of a single file.
+     */
+    public static final class Failure implements Serializable {
+        static final long serialVersionUID = -2418245307532427958L;
+
+        private final File file;
+
+        private final int lineNumber;
+
+        private final int columnNumber;
+
+        private final String message;
+
+        /**
+         * @param file the input file
+         * @param cause why it could not be converted, the position is taken from a {@link ParseException} causing it
+         */
+        Failure(File file, Exception cause) {
+            this.file = file;
+            Throwable parseException = cause;
+            while (parseException != null && !(parseException instanceof ParseException)) {
+                parseException = parseException.getCause();
+            }
+            if (parseException != null) {
+                this.lineNumber = ((ParseException) parseException).getLineNumber();
+                this.columnNumber = ((ParseException) parseException).getColumnNumber();
+            } else {
+                this.lineNumber = -1;
+                this.columnNumber = -1;
+            }
+            this.message = cause.getMessage();
+        }
+
+        /**
+         * @return the input file which could not be converted
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return the line of the input file at which parsing failed, or -1 if not known
+         */
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        /**
+         * @return the column of the input file at which parsing failed, or -1 if not known
+         */
+        public int getColumnNumber() {
+            return columnNumber;
+        }
+
+        /**
+         * @return why the file could not be converted
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder location = new StringBuilder(file.getPath());
+            if (lineNumber >= 0) {
+                location.append(':').append(lineNumber);
+                if (columnNumber >= 0) {
+                    location.append(':').append(columnNumber);
+                }
+            }
+            return location.append(": ").append(message).toString();
+        }
+    }
+
+    private final List<Failure> failures;
+
+    private BatchConversionException(String message, List<Failure> failures) {
+        super(message);
+        this.failures = Collections.unmodifiableList(failures);
+    }
+
+    /**
+     * @param failures the failed files, at least one
+     * @param total the number of files converted or failed
+     * @return the exception reporting all failures, ordered by path
+     */
+    static BatchConversionException of(Collection<Failure> failures, int total) {
+        List<Failure> sorted = new ArrayList<>(failures);
+        sorted.sort(Comparator.comparing(Failure::getFile));
+        StringBuilder message = new StringBuilder()
+                .append(sorted.size())
+                .append(" of ")
+                .append(total)
+                .append(" files could not be converted:");
+        for (Failure failure : sorted) {
+            message.append(System.lineSeparator()).append("  ").append(failure);
+        }
+        return new BatchConversionException(message.toString(), sorted);
+    }
+
+    /**
+     * @return the failed files, ordered by path
+     */
+    public List<Failure> getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.maven.doxia.DefaultConverter.DoxiaFormat;
+import org.apache.maven.doxia.sink.Sink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parses a large APT or Markdown document in parts at the same time, and emits the events of all parts in order into
+ * a single sink, as if the document was parsed as a whole.
+ *
+ * <p>Each part is parsed as a document of its own into a {@link SinkEventRecorder}. Of the recorded events, the head
+ * and the start of the body are only taken from the first part and the end of the body only from the last part. The
+ * anchors of each part are only checked for uniqueness within the part, so if two parts use the same anchor or id
+ * the parts are dropped, just like when any part fails to parse, and the document has to be parsed as a whole.</p>
+ *
+ * <p>If the sink is a {@link TeeSink}, each part is recorded once for every target format, since the macros of the
+ * part differ between them, and each recording is replayed into the branch of its format.</p>
+ *
+ * <p>The parts of all documents of a conversion are parsed by one executor, created by {@link #newExecutor(int)} when
+ * the first document is split, so that documents parsed at the same time do not each start threads of their
+ * own.</p>
+ */
+class ChunkedDocumentParser {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkedDocumentParser.class);
+
+    private final DoxiaComponentPool components;
+
+    /**
+     * @param components provides a parser for each thread, see {@link DoxiaComponentPool#isParsingConcurrently()}
+     */
+    ChunkedDocumentParser(DoxiaComponentPool components) {
+        this.components = components;
+    }
+
+    /**
+     * @param threads the number of parts parsed at the same time, by all documents together
+     * @return the executor to parse the parts of the documents of a conversion, to be shut down by the caller
+     */
+    static ExecutorService newExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads, new PartThreadFactory());
+    }
+
+    /**
+     * @param source the format of the document
+     * @param target the format the document is converted to
+     * @param document the whole document
+     * @param threads the number of parts to split the document into at most
+     * @param executor provides the executor of the conversion, only asked for if the document is split
+     * @param sink the sink to emit the events to, untouched if <code>false</code> is returned
+     * @return <code>true</code> if the document was parsed in parts, <code>false</code> if it has to be parsed as a
+     * whole
+     * @throws InterruptedException if interrupted while waiting for the parts
+     */
+    boolean parse(
+            DoxiaFormat source,
+            DoxiaFormat target,
+            String document,
+            int threads,
+            Supplier<ExecutorService> executor,
+            Sink sink)
+            throws InterruptedException {
+        if (!components.isParsingConcurrently() || !DocumentSplitter.isSplittable(source) || threads < 2) {
+            return false;
+        }
+        List<String> parts = DocumentSplitter.split(source, document, threads);
+        if (parts.size() < 2) {
+            return false;
+        }
+
+        TeeSink tee = TeeSink.find(sink);
+        int branchCount = tee != null ? tee.size() : 1;
+        // the recordings of each part, one for each branch of the tee
+        List<List<SinkEventRecorder>> recorders = new ArrayList<>(parts.size());
+        List<Future<List<SinkEventRecorder>>> results = new ArrayList<>(parts.size());
+        try {
+            for (String part : parts) {
+                results.add(executor.get().submit(() -> {
+                    List<SinkEventRecorder> branches = new ArrayList<>();
+                    for (int i = 0; i < branchCount; i++) {
+                        branches.add(new SinkEventRecorder());
+                    }
+                    Sink partSink = tee != null
+                            ? new TeeSink(tee.getFormats(), new ArrayList<>(branches)).getSink()
+                            : branches.get(0);
+                    components.parse(source, target, new StringReader(part), partSink);
+                    return branches;
+                }));
+            }
+            for (Future<List<SinkEventRecorder>> result : results) {
+                recorders.add(result.get());
+            }
+        } catch (ExecutionException e) {
+            LOGGER.debug("Parsing the document in parts failed, parsing it as a whole", e.getCause());
+            return false;
+        } finally {
+            // the parts not done yet are of no use once one failed, nor if interrupted
+            for (Future<List<SinkEventRecorder>> result : results) {
+                result.cancel(true);
+            }
+        }
+
+        if (!isStitchable(recorders)) {
+            return false;
+        }
+        LOGGER.debug("Parsed the document in {} parts", parts.size());
+        int last = recorders.size() - 1;
+        for (int i = 0; i <= last; i++) {
+            List<SinkEventRecorder> branches = recorders.get(i);
+            for (int b = 0; b < branches.size(); b++) {
+                SinkEventRecorder recorder = branches.get(b);
+                int from = i == 0 ? 0 : recorder.indexOfBody() + 1;
+                int to = i == last ? recorder.size() : recorder.lastIndexOfBodyEnd();
+                recorder.replay(tee != null ? tee.getBranch(b) : sink, from, to);
+            }
+        }
+        return true;
+    }
+
+    private static boolean isStitchable(List<List<SinkEventRecorder>> recorders) {
+        Set<String> ids = new HashSet<>();
+        for (List<SinkEventRecorder> branches : recorders) {
+            // all branches received the same events apart from the macros
+            SinkEventRecorder recorder = branches.get(0);
+            if (recorder.indexOfBody() < 0 || recorder.lastIndexOfBodyEnd() < recorder.indexOfBody()) {
+                LOGGER.debug("A part of the document has no body, parsing it as a whole");
+                return false;
+            }
+            for (String id : recorder.getIds()) {
+                if (!ids.add(id)) {
+                    LOGGER.debug("Anchor '{}' is used by several parts of the document, parsing it as a whole", id);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Names the threads parsing the parts of a document and keeps them from blocking the JVM exit */
+    private static class PartThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "doxia-converter-part-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converted documents kept in a directory shared by all conversions on a machine, keyed by a hash of everything the
+ * output depends on, so that a document converted before is written from the cache without being parsed.
+ *
+ * <p>Each entry is a file named by its key, in a subdirectory named by the first two characters of the key. Entries
+ * are written to a temporary file first and then atomically renamed, so that other processes using the same cache
+ * either find a complete entry or none, without any lock. Reading an entry updates its modification time, and
+ * {@link #evict()} removes the entries which were not used for the longest time until the cache fits its size.</p>
+ */
+class ConversionCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConversionCache.class);
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Temporary files older than this were left behind by a process which died while writing them */
+    private static final long TEMP_FILE_MAX_AGE = TimeUnit.HOURS.toMillis(1);
+
+    private final Path directory;
+
+    private final long maxSize;
+
+    /**
+     * @param directory the cache directory, created if it does not exist yet
+     * @param maxSize the size in bytes the cache is reduced to by {@link #evict()}
+     */
+    ConversionCache(Path directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param contentHash the hash of the input document
+     * @param parameters everything else the output depends on, like formats, encodings and versions
+     * @return the key of the output
+     */
+    static String key(String contentHash, Object... parameters) {
+        StringBuilder key = new StringBuilder(contentHash);
+        for (Object parameter : parameters) {
+            key.append('\n').append(parameter);
+        }
+        return ConversionManifest.hash(key.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param key the key of the output
+     * @return the cached output, or <code>null</code> if there is none
+     */
+    byte[] get(String key) {
+        Path entry = entry(key);
+        try {
+            byte[] content = Files.readAllBytes(entry);
+            // mark as recently used, another process may have evicted it by now which is fine
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return content;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOGGER.debug("Could not read cache entry {}", entry, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores an output, unless the file system does not support atomic renames, then the cache is not used.
+     *
+     * @param key the key of the output
+     * @param content the output
+     */
+    void put(String key, byte[] content) {
+        Path entry = entry(key);
+        Path temp = null;
+        try {
+            Files.createDirectories(entry.getParent());
+            temp = Files.createTempFile(entry.getParent(), key, TEMP_SUFFIX);
+            Files.write(temp, content);
+            Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            temp = null;
+        } catch (AtomicMoveNotSupportedException e) {
+            LOGGER.warn("The cache directory {} does not support atomic renames, not caching", directory);
+        } catch (IOException e) {
+            LOGGER.debug("Could not write cache entry {}", entry, e);
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    // removed by the next eviction
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the cache fits its size. Entries removed by other processes in the
+     * meantime are skipped.
+     *
+     * @throws IOException if the cache directory could not be listed
+     */
+    void evict() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        List<Map.Entry<Path, BasicFileAttributes>> entries = new ArrayList<>();
+        long size = 0;
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> subdirectories = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path subdirectory : subdirectories) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(subdirectory)) {
+                    for (Path file : files) {
+                        BasicFileAttributes fileAttributes;
+                        try {
+                            fileAttributes = Files.readAttributes(file, BasicFileAttributes.class);
+                        } catch (NoSuchFileException e) {
+                            continue;
+                        }
+                        if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                            if (now - fileAttributes.lastModifiedTime().toMillis() > TEMP_FILE_MAX_AGE) {
+                                Files.deleteIfExists(file);
+                            }
+                            continue;
+                        }
+                        entries.add(new AbstractMap.SimpleImmutableEntry<>(file, fileAttributes));
+                        size += fileAttributes.size();
+                    }
+                }
+            }
+        }
+        if (size <= maxSize) {
+            return;
+        }
+        entries.sort(Comparator.comparing(entry -> entry.getValue().lastModifiedTime()));
+        int evicted = 0;
+        for (Map.Entry<Path, BasicFileAttributes> entry : entries) {
+            if (size <= maxSize) {
+                break;
+            }
+            if (Files.deleteIfExists(entry.getKey())) {
+                evicted++;
+            }
+            size -= entry.getValue().size();
+        }
+        LOGGER.debug("Evicted {} entries from the cache {}", evicted, directory);
+    }
+
+    private Path entry(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key);
+    }
+}
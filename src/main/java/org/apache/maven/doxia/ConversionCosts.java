@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The time it took to parse each file of an input directory in previous conversions, used to start the costliest
+ * files first.
+ *
+ * <p>The costs are kept in a properties file mapping the path of each file, relative to the input directory and
+ * with <code>/</code> as separator, to its parse time in microseconds. Files without a recorded cost are estimated
+ * from their size, at the average cost per byte of the recorded ones.</p>
+ */
+class ConversionCosts {
+
+    private final Path file;
+
+    private final Map<String, Long> costs = new ConcurrentHashMap<>();
+
+    /** The average cost of a byte, in microseconds */
+    private double costPerByte = 1;
+
+    private ConversionCosts(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @param file the properties file holding the costs, may not exist yet
+     * @return the costs recorded in the given file
+     * @throws IOException if the file exists but could not be read
+     */
+    static ConversionCosts load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        } catch (NoSuchFileException e) {
+            // nothing recorded yet
+        }
+        ConversionCosts conversionCosts = new ConversionCosts(file);
+        for (String path : properties.stringPropertyNames()) {
+            try {
+                conversionCosts.costs.put(path, Long.parseLong(properties.getProperty(path)));
+            } catch (NumberFormatException e) {
+                // ignore the entry, it is recorded again by the next conversion
+            }
+        }
+        return conversionCosts;
+    }
+
+    /**
+     * Derives the average cost of a byte from the files which are both recorded and about to be converted.
+     *
+     * @param sizes the current size of each file about to be converted, keyed by relative path
+     */
+    void calibrate(Map<String, Long> sizes) {
+        long recordedCost = 0;
+        long recordedSize = 0;
+        for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+            Long cost = costs.get(entry.getKey());
+            if (cost != null) {
+                recordedCost += cost;
+                recordedSize += entry.getValue();
+            }
+        }
+        if (recordedSize > 0) {
+            costPerByte = (double) recordedCost / recordedSize;
+        }
+    }
+
+    /**
+     * @param path the path of a file relative to the input directory, with <code>/</code> as separator
+     * @param size the current size of the file
+     * @return the recorded cost of the file, or an estimate from its size
+     */
+    long getCost(String path, long size) {
+        Long cost = costs.get(path);
+        return cost != null ? cost : (long) (size * costPerByte);
+    }
+
+    /**
+     * @param path the path of a file relative to the input directory, with <code>/</code> as separator
+     * @param nanos the time it took to parse the file
+     */
+    void record(String path, long nanos) {
+        costs.put(path, nanos / 1000);
+    }
+
+    /**
+     * Writes all recorded costs back to the properties file.
+     *
+     * @throws IOException if the file could not be written
+     */
+    void store() throws IOException {
+        Properties properties = new Properties();
+        costs.forEach((path, cost) -> properties.setProperty(path, Long.toString(cost)));
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            properties.store(out, "Parse time of each file in microseconds, written by doxia-converter");
+        }
+    }
+}
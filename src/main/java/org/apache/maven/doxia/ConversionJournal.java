@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The progress of a conversion of an input directory, so that a conversion which died half way can be resumed
+ * without converting the files again which were already done.
+ *
+ * <p>The journal is only kept by conversions which may be resumed, see {@link ConversionOptions#isResume()}. It is a
+ * text file in the output directory, to which one line is appended per step: the fingerprint of the options first, then
+ * each input file once it was written and post processed, each output file moved aside for
+ * {@link Converter.PostProcess#GIT_MV_INPUT_TO_OUTPUT} before its input file is moved with git, and the commit of these
+ * moves. Lines are written as they happen, so they survive the process being killed, and synced to the disk in batches,
+ * so they survive most crashes of the machine as well without a sync per file. Steps which cannot be repeated are
+ * synced right away. A line cut short by a crash is ignored. Once the conversion is complete, the journal is
+ * deleted.</p>
+ */
+class ConversionJournal implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConversionJournal.class);
+
+    /** The name of the journal file in the output directory */
+    static final String FILE_NAME = ".doxia-converter-journal";
+
+    private static final String FINGERPRINT = "fingerprint";
+
+    private static final String DONE = "done";
+
+    private static final String MOVED = "moved";
+
+    private static final String COMMITTED = "committed";
+
+    private static final String SEPARATOR = "\t";
+
+    /** The number of lines after which the journal is synced at the latest */
+    private static final int SYNC_LINES = 64;
+
+    /** The time after which the journal is synced at the latest */
+    private static final long SYNC_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final Path file;
+
+    private final FileChannel channel;
+
+    /** The input files done by the conversion resumed, only read */
+    private final Set<String> done = new HashSet<>();
+
+    /** The output files moved aside by the conversion resumed, mapped to their final names */
+    private final Map<Path, Path> moved = new LinkedHashMap<>();
+
+    private boolean committed;
+
+    private int unsynced;
+
+    private long lastSync = System.nanoTime();
+
+    private ConversionJournal(Path file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * @param directory the output directory holding the journal, which may not exist yet
+     * @param fingerprint the options of the conversion, as text
+     * @param resume <code>true</code> to resume the conversion recorded in the journal, if it used the same options
+     * @return the journal, holding the steps done before if resumed
+     * @throws IOException if the journal could not be read or written
+     */
+    static ConversionJournal open(Path directory, String fingerprint, boolean resume) throws IOException {
+        Path file = directory.toAbsolutePath().resolve(FILE_NAME);
+        ConversionJournal journal = null;
+        if (resume) {
+            journal = resume(file, fingerprint);
+        }
+        if (journal == null) {
+            Files.createDirectories(directory);
+            journal = new ConversionJournal(
+                    file,
+                    FileChannel.open(
+                            file,
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING));
+            journal.append(FINGERPRINT + SEPARATOR + fingerprint, true);
+        }
+        return journal;
+    }
+
+    /**
+     * @return the journal of the conversion to resume, or <code>null</code> if there is none with the same options
+     */
+    private static ConversionJournal resume(Path file, String fingerprint) throws IOException {
+        String content;
+        try {
+            content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            LOGGER.info("No conversion to resume, converting all files");
+            return null;
+        }
+        // the last line is incomplete if the process died while writing it
+        String[] lines = content.substring(0, content.lastIndexOf('\n') + 1).split("\n");
+        if (!(FINGERPRINT + SEPARATOR + fingerprint).equals(lines[0])) {
+            LOGGER.info("The conversion to resume used other options, converting all files");
+            return null;
+        }
+        ConversionJournal journal = new ConversionJournal(
+                file, FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+        for (String line : lines) {
+            String[] fields = line.split(SEPARATOR);
+            if (DONE.equals(fields[0]) && fields.length == 2) {
+                journal.done.add(fields[1]);
+            } else if (MOVED.equals(fields[0]) && fields.length == 3) {
+                journal.moved.put(Paths.get(fields[1]), Paths.get(fields[2]));
+            } else if (COMMITTED.equals(fields[0])) {
+                journal.committed = true;
+            }
+        }
+        LOGGER.info("Resuming a conversion, {} files are already done", journal.done.size());
+        return journal;
+    }
+
+    /**
+     * @param path the path of an input file relative to the input directory, with <code>/</code> as separator
+     * @return <code>true</code> if the conversion resumed already wrote and post processed the file
+     */
+    boolean isDone(String path) {
+        return done.contains(path);
+    }
+
+    /**
+     * @return the output files which the conversion resumed moved aside and not back yet, mapped to their final names
+     */
+    Map<Path, Path> getMoved() {
+        Map<Path, Path> remaining = new LinkedHashMap<>();
+        moved.forEach((temporary, output) -> {
+            if (Files.exists(temporary)) {
+                remaining.put(temporary, output);
+            }
+        });
+        return remaining;
+    }
+
+    /**
+     * @return <code>true</code> if the conversion resumed already committed the moves of the input files
+     */
+    boolean isCommitted() {
+        return committed;
+    }
+
+    /**
+     * Records that an input file was written and post processed.
+     *
+     * @param path the path of the input file relative to the input directory, with <code>/</code> as separator
+     * @throws IOException if the journal could not be written
+     */
+    void done(String path) throws IOException {
+        append(DONE + SEPARATOR + path, false);
+    }
+
+    /**
+     * Records that an output file was moved aside, before its input file is moved to it.
+     *
+     * @param temporary the name the output file was moved to
+     * @param output the name of the output file
+     * @throws IOException if the journal could not be written
+     */
+    void moved(Path temporary, Path output) throws IOException {
+        append(MOVED + SEPARATOR + temporary.toAbsolutePath() + SEPARATOR + output.toAbsolutePath(), true);
+    }
+
+    /**
+     * Records that the moves of the input files were committed.
+     *
+     * @throws IOException if the journal could not be written
+     */
+    void committed() throws IOException {
+        append(COMMITTED, true);
+    }
+
+    private synchronized void append(String line, boolean sync) throws IOException {
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(line + "\n");
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        unsynced++;
+        long now = System.nanoTime();
+        if (sync || unsynced >= SYNC_LINES || now - lastSync >= SYNC_INTERVAL) {
+            channel.force(false);
+            unsynced = 0;
+            lastSync = now;
+        }
+    }
+
+    /**
+     * Deletes the journal of the completed conversion.
+     *
+     * @throws IOException if the journal could not be deleted
+     */
+    void complete() throws IOException {
+        close();
+        Files.deleteIfExists(file);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            if (unsynced > 0) {
+                channel.force(false);
+            }
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The input files of the last conversion of an input directory into the same output, used to convert only the files
+ * which changed since.
+ *
+ * <p>The manifest is a properties file in the output directory. Besides the Doxia version and a fingerprint of the
+ * options which affect the outputs, it maps the path of each input file, relative to the input directory and with
+ * <code>/</code> as separator, to its size, modification time, SHA-256 hash and output files. If the Doxia version or
+ * the fingerprint differ, all previous entries are dropped and every file is converted again.</p>
+ *
+ * <p>A file is unchanged if its size and modification time match the entry, or if only the modification time differs
+ * but the content has the same hash, and if all its output files still exist.</p>
+ */
+class ConversionManifest {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConversionManifest.class);
+
+    /** The name of the manifest file in the output directory */
+    static final String FILE_NAME = ".doxia-converter-manifest";
+
+    private static final String DOXIA_VERSION_KEY = "doxia.version";
+
+    /** The outputs depend on the Doxia version as much as on the inputs */
+    private static final String DOXIA_VERSION = DoxiaComponentPool.getDoxiaVersion();
+
+    /** The suffix of the manifest being written */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String FINGERPRINT = "fingerprint";
+
+    private static final String SOURCE = "source.";
+
+    private static final String SEPARATOR = ",";
+
+    /** Separates the output files, which are unlikely to contain it */
+    private static final String OUTPUT_SEPARATOR = "\t";
+
+    /** An input file as of its last conversion */
+    private static final class Entry {
+        private final long size;
+
+        private final long lastModified;
+
+        private final String hash;
+
+        /** The output files, relative to the directory of the manifest */
+        private final List<String> outputs;
+
+        Entry(long size, long lastModified, String hash, List<String> outputs) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.outputs = outputs;
+        }
+    }
+
+    private final Path file;
+
+    private final String fingerprint;
+
+    /** The entries of the last conversion, only read */
+    private final Map<String, Entry> previous = new HashMap<>();
+
+    /** The entries of this conversion, written by several threads */
+    private final Map<String, Entry> current = new ConcurrentHashMap<>();
+
+    private ConversionManifest(Path file, String fingerprint) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * @param directory the output directory holding the manifest, which may not exist yet
+     * @param fingerprint the options which affect the outputs, as text
+     * @return the manifest of the last conversion, empty if there was none or it used other options
+     * @throws IOException if the manifest exists but could not be read
+     */
+    static ConversionManifest load(Path directory, String fingerprint) throws IOException {
+        ConversionManifest manifest =
+                new ConversionManifest(directory.toAbsolutePath().resolve(FILE_NAME), fingerprint);
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(manifest.file)) {
+            properties.load(in);
+        } catch (NoSuchFileException e) {
+            return manifest;
+        }
+        if (!DOXIA_VERSION.equals(properties.getProperty(DOXIA_VERSION_KEY))
+                || !fingerprint.equals(properties.getProperty(FINGERPRINT))) {
+            LOGGER.info("The Doxia version or the options changed since the last conversion, converting all files");
+            return manifest;
+        }
+        for (String key : properties.stringPropertyNames()) {
+            if (!key.startsWith(SOURCE)) {
+                continue;
+            }
+            String[] values = properties.getProperty(key).split(SEPARATOR, 4);
+            try {
+                manifest.previous.put(
+                        key.substring(SOURCE.length()),
+                        new Entry(
+                                Long.parseLong(values[0]),
+                                Long.parseLong(values[1]),
+                                values[2],
+                                Arrays.asList(values[3].split(OUTPUT_SEPARATOR))));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                // ignore the entry, the file is converted again
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * @param content the content of a file
+     * @return the SHA-256 hash of the content, in hex
+     */
+    static String hash(byte[] content) {
+        return toHex(newDigest().digest(content));
+    }
+
+    /**
+     * @param file a file too large to be read in full
+     * @return the SHA-256 hash of the content of the file, in hex, the same as {@link #hash(byte[])} gives
+     * @throws IOException if the file cannot be read
+     */
+    static String hash(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[IOUtils.DEFAULT_BUFFER_SIZE];
+            for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required to be supported by every JVM", e);
+        }
+    }
+
+    private static String toHex(byte[] hash) {
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Keeps the entry of the given file if the file did not change, judged by its attributes alone.
+     *
+     * @param path the path of the file relative to the input directory, with <code>/</code> as separator
+     * @param size the current size of the file
+     * @param lastModified the current modification time of the file, in milliseconds
+     * @return <code>true</code> if the file is unchanged and need not be converted
+     */
+    boolean keepIfUnchanged(String path, long size, long lastModified) {
+        Entry entry = previous.get(path);
+        if (entry == null || entry.size != size || entry.lastModified != lastModified || !outputsExist(entry)) {
+            return false;
+        }
+        current.put(path, entry);
+        return true;
+    }
+
+    /**
+     * Keeps the entry of the given file if the file did not change, judged by its content.
+     *
+     * @param path the path of the file relative to the input directory, with <code>/</code> as separator
+     * @param size the current size of the file
+     * @param lastModified the current modification time of the file, in milliseconds
+     * @param hash the hash of the current content of the file
+     * @return <code>true</code> if the file is unchanged and need not be converted
+     */
+    boolean keepIfUnchanged(String path, long size, long lastModified, String hash) {
+        Entry entry = previous.get(path);
+        if (entry == null || entry.size != size || !entry.hash.equals(hash) || !outputsExist(entry)) {
+            return false;
+        }
+        // touched but not changed, compare by attributes again next time
+        current.put(path, new Entry(size, lastModified, hash, entry.outputs));
+        return true;
+    }
+
+    /**
+     * Records a file converted by this conversion.
+     *
+     * @param path the path of the file relative to the input directory, with <code>/</code> as separator
+     * @param size the size of the file
+     * @param lastModified the modification time of the file, in milliseconds
+     * @param hash the hash of the content of the file
+     * @param outputs the output files written for the file
+     */
+    void record(String path, long size, long lastModified, String hash, List<File> outputs) {
+        List<String> relativeOutputs = new ArrayList<>(outputs.size());
+        for (File output : outputs) {
+            relativeOutputs.add(file.getParent().relativize(output.toPath().toAbsolutePath()).toString());
+        }
+        current.put(path, new Entry(size, lastModified, hash, relativeOutputs));
+    }
+
+    /**
+     * Keeps the entry of a file which this conversion failed to convert, so that its outputs of the last conversion are
+     * not taken for stale ones. As the file changed since, it is converted again next time.
+     *
+     * @param path the path of the file relative to the input directory, with <code>/</code> as separator
+     */
+    void keepFailed(String path) {
+        Entry entry = previous.get(path);
+        if (entry != null) {
+            current.putIfAbsent(path, entry);
+        }
+    }
+
+    /**
+     * Removes the output files of all files of the last conversion which were neither converted nor kept by this one,
+     * and which no longer exist. The entries of files which still exist are kept.
+     *
+     * @param inputDirectory the input directory the paths of the entries are relative to
+     * @return the number of input files whose outputs were removed
+     * @throws IOException if an output file could not be removed
+     */
+    int removeStaleOutputs(Path inputDirectory) throws IOException {
+        int removed = 0;
+        for (Map.Entry<String, Entry> entry : previous.entrySet()) {
+            if (current.containsKey(entry.getKey())) {
+                continue;
+            }
+            if (Files.exists(inputDirectory.resolve(entry.getKey()))) {
+                current.put(entry.getKey(), entry.getValue());
+                continue;
+            }
+            for (String output : entry.getValue().outputs) {
+                Path outputFile = file.resolveSibling(output);
+                if (Files.deleteIfExists(outputFile)) {
+                    LOGGER.info("Removed output file \"{}\" of deleted input file \"{}\"", outputFile, entry.getKey());
+                }
+            }
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Writes the entries of this conversion to the manifest file. The entries are written to a temporary file first,
+     * which then replaces the manifest, so that a conversion killed meanwhile leaves the previous manifest intact.
+     *
+     * @throws IOException if the file could not be written
+     */
+    void store() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(DOXIA_VERSION_KEY, DOXIA_VERSION);
+        properties.setProperty(FINGERPRINT, fingerprint);
+        current.forEach((path, entry) -> properties.setProperty(
+                SOURCE + path,
+                entry.size + SEPARATOR + entry.lastModified + SEPARATOR + entry.hash + SEPARATOR
+                        + String.join(OUTPUT_SEPARATOR, entry.outputs)));
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), FILE_NAME, TEMP_SUFFIX);
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                properties.store(out, "Input files of the last conversion, written by doxia-converter");
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private boolean outputsExist(Entry entry) {
+        for (String output : entry.outputs) {
+            if (!Files.isRegularFile(file.resolveSibling(output))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
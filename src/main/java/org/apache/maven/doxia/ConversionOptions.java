@@ -0,0 +1,732 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.maven.doxia.Converter.PostProcess;
+import org.apache.maven.doxia.wrapper.InputFileWrapper;
+import org.apache.maven.doxia.wrapper.OutputFileWrapper;
+
+/**
+ * Immutable options of a single conversion, passed along with each call to
+ * {@link Converter#convert(InputFileWrapper, OutputFileWrapper, ConversionOptions)} so that one converter can serve
+ * several callers at the same time.
+ *
+ * @since 1.4
+ */
+public final class ConversionOptions {
+
+    /** The options used when nothing is specified: no formatting, no post processing and a single thread. */
+    public static final ConversionOptions DEFAULT = builder().build();
+
+    /** The share of the maximum heap which conversions may use, in percent, unless specified otherwise. */
+    public static final int DEFAULT_HEAP_LIMIT = 80;
+
+    /** The size of the conversion cache in bytes, unless specified otherwise. */
+    public static final long DEFAULT_CACHE_SIZE = 512L * 1024 * 1024;
+
+    /** The number of files waiting for each stage at most, unless specified otherwise. */
+    public static final int DEFAULT_QUEUE_DEPTH = 16;
+
+    /**
+     * The stages the files of an input directory pass through, each fed by a queue of its own.
+     */
+    public enum PipelineStage {
+        /** Reads and decodes the input files, fed by the walk over the input directory */
+        READ,
+        /** Parses the decoded documents into the sink of the output format */
+        PARSE,
+        /** Restores Velocity constructs, formats, writes and post processes the output files */
+        FINISH
+    }
+
+    /**
+     * The order in which the files of an input directory are converted.
+     */
+    public enum Scheduling {
+        /** In the order the files are found, starting while the input directory is still being walked */
+        WALK_ORDER,
+        /** The largest files first, once the input directory is walked completely */
+        LARGEST_FIRST,
+        /**
+         * The files which took longest to parse in previous conversions first, once the input directory is walked
+         * completely. Requires a {@link #getCostFile() cost file}, files not recorded there are estimated from their
+         * size.
+         */
+        COSTLIEST_FIRST
+    }
+
+    private final boolean formatOutput;
+
+    private final PostProcess postProcess;
+
+    private final String inputEncoding;
+
+    private final String outputEncoding;
+
+    private final int threads;
+
+    private final List<String> includes;
+
+    private final List<String> excludes;
+
+    private final Map<PipelineStage, Integer> queueDepths;
+
+    private final Scheduling scheduling;
+
+    private final File costFile;
+
+    private final int heapLimit;
+
+    private final long exclusiveFileSize;
+
+    private final long documentSplitSize;
+
+    private final boolean incremental;
+
+    private final File cacheDirectory;
+
+    private final long cacheSize;
+
+    private final String sinceRef;
+
+    private final boolean resume;
+
+    private final boolean keepGoing;
+
+    private final int encodingSamples;
+
+    private ConversionOptions(Builder builder) {
+        this.formatOutput = builder.formatOutput;
+        this.postProcess = builder.postProcess;
+        this.inputEncoding = builder.inputEncoding;
+        this.outputEncoding = builder.outputEncoding;
+        this.threads = builder.threads;
+        this.includes = Collections.unmodifiableList(new ArrayList<>(builder.includes));
+        this.excludes = Collections.unmodifiableList(new ArrayList<>(builder.excludes));
+        this.queueDepths = Collections.unmodifiableMap(new EnumMap<>(builder.queueDepths));
+        this.scheduling = builder.scheduling;
+        this.costFile = builder.costFile;
+        this.heapLimit = builder.heapLimit;
+        this.exclusiveFileSize = builder.exclusiveFileSize;
+        this.documentSplitSize = builder.documentSplitSize;
+        this.incremental = builder.incremental;
+        this.cacheDirectory = builder.cacheDirectory;
+        this.cacheSize = builder.cacheSize;
+        this.sinceRef = builder.sinceRef;
+        this.resume = builder.resume;
+        this.keepGoing = builder.keepGoing;
+        this.encodingSamples = builder.encodingSamples;
+    }
+
+    /**
+     * @return a builder with the default options
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return a builder initialized with these options
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * @return <code>true</code> to format the generated files, actually only for XML based outputs
+     */
+    public boolean isFormatOutput() {
+        return formatOutput;
+    }
+
+    /**
+     * @return what to do with the input files after a successful conversion, never <code>null</code>
+     */
+    public PostProcess getPostProcess() {
+        return postProcess;
+    }
+
+    /**
+     * @return the encoding of input files whose wrapper leaves it to {@link InputFileWrapper#AUTO_ENCODING}, or
+     * <code>null</code> to detect it for each file
+     */
+    public String getInputEncoding() {
+        return inputEncoding;
+    }
+
+    /**
+     * @return the encoding of output files whose wrapper leaves it to {@link OutputFileWrapper#AUTO_ENCODING}, or
+     * <code>null</code> to use the input encoding
+     */
+    public String getOutputEncoding() {
+        return outputEncoding;
+    }
+
+    /**
+     * @return the number of files of an input directory converted at the same time
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return the Ant style patterns of which the files of an input directory have to match one to be converted,
+     * relative to the input directory, or an empty list to convert all files of the input format
+     */
+    public List<String> getIncludes() {
+        return includes;
+    }
+
+    /**
+     * @return the Ant style patterns of the files and directories of an input directory which are not converted,
+     * relative to the input directory, in addition to {@link org.codehaus.plexus.util.FileUtils#getDefaultExcludes()}
+     */
+    public List<String> getExcludes() {
+        return excludes;
+    }
+
+    /**
+     * @param stage not null
+     * @return the number of files of an input directory waiting for the given stage at most, which bounds the
+     * number of documents held in memory
+     */
+    public int getQueueDepth(PipelineStage stage) {
+        return queueDepths.getOrDefault(stage, DEFAULT_QUEUE_DEPTH);
+    }
+
+    /**
+     * @return the order in which the files of an input directory are converted, never <code>null</code>
+     */
+    public Scheduling getScheduling() {
+        return scheduling;
+    }
+
+    /**
+     * @return the properties file in which the parse time of each file of an input directory is recorded, for
+     * {@link Scheduling#COSTLIEST_FIRST}, or <code>null</code> to record nothing
+     */
+    public File getCostFile() {
+        return costFile;
+    }
+
+    /**
+     * @return the share of the maximum heap which the conversions of the files of an input directory may use, in
+     * percent; no further file is started while the heap is used up to this limit
+     */
+    public int getHeapLimit() {
+        return heapLimit;
+    }
+
+    /**
+     * @return the size in bytes from which a file of an input directory is converted while no other file is, or
+     * <code>0</code> to derive it from the heap limit
+     */
+    public long getExclusiveFileSize() {
+        return exclusiveFileSize;
+    }
+
+    /**
+     * @return the length in characters from which an APT or Markdown document is split at its top level sections to
+     * parse the parts on several threads, or <code>0</code> to always parse documents as a whole
+     */
+    public long getDocumentSplitSize() {
+        return documentSplitSize;
+    }
+
+    /**
+     * @return <code>true</code> to only convert the files of an input directory which changed since the last
+     * conversion into the same output, as recorded in a manifest kept in the output directory, and to remove the
+     * outputs of deleted files
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @return the directory in which converted documents are kept to be written again without parsing when the same
+     * document is converted with the same formats, encodings and Doxia modules, or <code>null</code> to cache nothing;
+     * may be shared by several processes
+     */
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * @return the size in bytes to which the cache directory is reduced after each conversion, by removing the least
+     * recently used documents
+     */
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * @return the git revision against which the files of an input directory are compared, to only convert the files
+     * added, modified or renamed since and to remove the outputs of files renamed or deleted since, or
+     * <code>null</code> to convert all files
+     */
+    public String getSinceRef() {
+        return sinceRef;
+    }
+
+    /**
+     * @return <code>true</code> to resume the conversion of an input directory into the same output which did not
+     * complete, as recorded in a journal kept in the output directory, skipping the files it already converted. Only
+     * conversions with this option keep the journal, so only they can be resumed
+     */
+    public boolean isResume() {
+        return resume;
+    }
+
+    /**
+     * @return <code>true</code> to convert all other files of an input directory when some fail, and to report all
+     * failures at the end, <code>false</code> to stop at the first failure
+     */
+    public boolean isKeepGoing() {
+        return keepGoing;
+    }
+
+    /**
+     * @return the number of files per directory of an input directory whose encoding is detected to settle on a
+     * single encoding for the other files of the directory, or <code>0</code> to detect the encoding of every file.
+     * Only relevant when detecting the input encoding automatically.
+     */
+    public int getEncodingSamples() {
+        return encodingSamples;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        ConversionOptions that = (ConversionOptions) o;
+        return formatOutput == that.formatOutput
+                && threads == that.threads
+                && postProcess == that.postProcess
+                && Objects.equals(inputEncoding, that.inputEncoding)
+                && Objects.equals(outputEncoding, that.outputEncoding)
+                && includes.equals(that.includes)
+                && excludes.equals(that.excludes)
+                && queueDepths.equals(that.queueDepths)
+                && scheduling == that.scheduling
+                && Objects.equals(costFile, that.costFile)
+                && heapLimit == that.heapLimit
+                && exclusiveFileSize == that.exclusiveFileSize
+                && documentSplitSize == that.documentSplitSize
+                && incremental == that.incremental
+                && Objects.equals(cacheDirectory, that.cacheDirectory)
+                && cacheSize == that.cacheSize
+                && Objects.equals(sinceRef, that.sinceRef)
+                && resume == that.resume
+                && keepGoing == that.keepGoing
+                && encodingSamples == that.encodingSamples;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(
+                formatOutput,
+                postProcess,
+                inputEncoding,
+                outputEncoding,
+                threads,
+                includes,
+                excludes,
+                queueDepths,
+                scheduling,
+                costFile,
+                heapLimit,
+                exclusiveFileSize,
+                documentSplitSize,
+                incremental,
+                cacheDirectory,
+                cacheSize,
+                sinceRef,
+                resume,
+                keepGoing,
+                encodingSamples);
+    }
+
+    @Override
+    public String toString() {
+        return "ConversionOptions{formatOutput=" + formatOutput + ", postProcess=" + postProcess + ", inputEncoding="
+                + inputEncoding + ", outputEncoding=" + outputEncoding + ", threads=" + threads + ", includes="
+                + includes + ", excludes=" + excludes + ", queueDepths=" + queueDepths + ", scheduling=" + scheduling
+                + ", costFile=" + costFile + ", heapLimit=" + heapLimit + ", exclusiveFileSize=" + exclusiveFileSize
+                + ", documentSplitSize=" + documentSplitSize + ", incremental=" + incremental + ", cacheDirectory="
+                + cacheDirectory + ", cacheSize=" + cacheSize + ", sinceRef=" + sinceRef + ", resume="
+                + resume + ", keepGoing=" + keepGoing + ", encodingSamples=" + encodingSamples + "}";
+    }
+
+    /**
+     * Builder for {@link ConversionOptions}.
+     */
+    public static final class Builder {
+        private boolean formatOutput;
+
+        private PostProcess postProcess = PostProcess.NONE;
+
+        private String inputEncoding;
+
+        private String outputEncoding;
+
+        private int threads = 1;
+
+        private List<String> includes = Collections.emptyList();
+
+        private List<String> excludes = Collections.emptyList();
+
+        private final Map<PipelineStage, Integer> queueDepths = new EnumMap<>(PipelineStage.class);
+
+        private Scheduling scheduling = Scheduling.WALK_ORDER;
+
+        private File costFile;
+
+        private int heapLimit = DEFAULT_HEAP_LIMIT;
+
+        private long exclusiveFileSize;
+
+        private long documentSplitSize;
+
+        private boolean incremental;
+
+        private File cacheDirectory;
+
+        private long cacheSize = DEFAULT_CACHE_SIZE;
+
+        private String sinceRef;
+
+        private boolean resume;
+
+        private boolean keepGoing;
+
+        private int encodingSamples;
+
+        private Builder() {}
+
+        private Builder(ConversionOptions options) {
+            this.formatOutput = options.formatOutput;
+            this.postProcess = options.postProcess;
+            this.inputEncoding = options.inputEncoding;
+            this.outputEncoding = options.outputEncoding;
+            this.threads = options.threads;
+            this.includes = options.includes;
+            this.excludes = options.excludes;
+            this.queueDepths.putAll(options.queueDepths);
+            this.scheduling = options.scheduling;
+            this.costFile = options.costFile;
+            this.heapLimit = options.heapLimit;
+            this.exclusiveFileSize = options.exclusiveFileSize;
+            this.documentSplitSize = options.documentSplitSize;
+            this.incremental = options.incremental;
+            this.cacheDirectory = options.cacheDirectory;
+            this.cacheSize = options.cacheSize;
+            this.sinceRef = options.sinceRef;
+            this.resume = options.resume;
+            this.keepGoing = options.keepGoing;
+            this.encodingSamples = options.encodingSamples;
+        }
+
+        /**
+         * @param formatOutput <code>true</code> to format the generated files, actually only for XML based outputs
+         * @return this builder
+         */
+        public Builder formatOutput(boolean formatOutput) {
+            this.formatOutput = formatOutput;
+            return this;
+        }
+
+        /**
+         * @param postProcess not null
+         * @return this builder
+         */
+        public Builder postProcess(PostProcess postProcess) {
+            this.postProcess = Objects.requireNonNull(postProcess, "postProcess is required");
+            return this;
+        }
+
+        /**
+         * @param inputEncoding a supported encoding, or <code>null</code> to detect it for each file
+         * @return this builder
+         * @throws IllegalArgumentException if the encoding is not supported
+         */
+        public Builder inputEncoding(String inputEncoding) {
+            this.inputEncoding = checkEncoding(inputEncoding);
+            return this;
+        }
+
+        /**
+         * @param outputEncoding a supported encoding, or <code>null</code> to use the input encoding
+         * @return this builder
+         * @throws IllegalArgumentException if the encoding is not supported
+         */
+        public Builder outputEncoding(String outputEncoding) {
+            this.outputEncoding = checkEncoding(outputEncoding);
+            return this;
+        }
+
+        /**
+         * @param threads the number of files of an input directory converted at the same time, at least 1
+         * @return this builder
+         * @throws IllegalArgumentException if threads is lower than 1
+         */
+        public Builder threads(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("threads must be at least 1, but was " + threads);
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * @param includes Ant style patterns relative to the input directory, an empty collection converts all files
+         * of the input format
+         * @return this builder
+         */
+        public Builder includes(Collection<String> includes) {
+            this.includes = new ArrayList<>(Objects.requireNonNull(includes, "includes is required"));
+            return this;
+        }
+
+        /**
+         * @param excludes Ant style patterns relative to the input directory, applied in addition to the default
+         * excludes
+         * @return this builder
+         */
+        public Builder excludes(Collection<String> excludes) {
+            this.excludes = new ArrayList<>(Objects.requireNonNull(excludes, "excludes is required"));
+            return this;
+        }
+
+        /**
+         * @param stage not null
+         * @param queueDepth the number of files of an input directory waiting for the given stage at most, at
+         * least 1
+         * @return this builder
+         * @throws IllegalArgumentException if queueDepth is lower than 1
+         */
+        public Builder queueDepth(PipelineStage stage, int queueDepth) {
+            Objects.requireNonNull(stage, "stage is required");
+            if (queueDepth < 1) {
+                throw new IllegalArgumentException(
+                        "queue depth of stage " + stage + " must be at least 1, but was " + queueDepth);
+            }
+            this.queueDepths.put(stage, queueDepth);
+            return this;
+        }
+
+        /**
+         * @param scheduling not null
+         * @return this builder
+         */
+        public Builder scheduling(Scheduling scheduling) {
+            this.scheduling = Objects.requireNonNull(scheduling, "scheduling is required");
+            return this;
+        }
+
+        /**
+         * @param costFile the properties file in which the parse time of each file is recorded, or <code>null</code>
+         * to record nothing
+         * @return this builder
+         */
+        public Builder costFile(File costFile) {
+            this.costFile = costFile;
+            return this;
+        }
+
+        /**
+         * @param heapLimit the share of the maximum heap which conversions may use, in percent between 1 and 100
+         * @return this builder
+         * @throws IllegalArgumentException if heapLimit is out of range
+         */
+        public Builder heapLimit(int heapLimit) {
+            if (heapLimit < 1 || heapLimit > 100) {
+                throw new IllegalArgumentException("heapLimit must be between 1 and 100, but was " + heapLimit);
+            }
+            this.heapLimit = heapLimit;
+            return this;
+        }
+
+        /**
+         * @param exclusiveFileSize the size in bytes from which a file is converted while no other file is, or
+         * <code>0</code> to derive it from the heap limit
+         * @return this builder
+         * @throws IllegalArgumentException if exclusiveFileSize is negative
+         */
+        public Builder exclusiveFileSize(long exclusiveFileSize) {
+            if (exclusiveFileSize < 0) {
+                throw new IllegalArgumentException(
+                        "exclusiveFileSize must not be negative, but was " + exclusiveFileSize);
+            }
+            this.exclusiveFileSize = exclusiveFileSize;
+            return this;
+        }
+
+        /**
+         * @param documentSplitSize the length in characters from which an APT or Markdown document is parsed in parts
+         * on several threads, or <code>0</code> to always parse documents as a whole
+         * @return this builder
+         * @throws IllegalArgumentException if documentSplitSize is negative
+         */
+        public Builder documentSplitSize(long documentSplitSize) {
+            if (documentSplitSize < 0) {
+                throw new IllegalArgumentException(
+                        "documentSplitSize must not be negative, but was " + documentSplitSize);
+            }
+            this.documentSplitSize = documentSplitSize;
+            return this;
+        }
+
+        /**
+         * @param incremental <code>true</code> to skip the files of an input directory which did not change since the
+         * last conversion into the same output, and to remove the outputs of deleted files
+         * @return this builder
+         */
+        public Builder incremental(boolean incremental) {
+            this.incremental = incremental;
+            return this;
+        }
+
+        /**
+         * @param cacheDirectory the directory in which converted documents are kept to be written again without
+         * parsing, or <code>null</code> to cache nothing
+         * @return this builder
+         */
+        public Builder cacheDirectory(File cacheDirectory) {
+            this.cacheDirectory = cacheDirectory;
+            return this;
+        }
+
+        /**
+         * @param cacheSize the size in bytes to which the cache directory is reduced after each conversion
+         * @return this builder
+         * @throws IllegalArgumentException if cacheSize is negative
+         */
+        public Builder cacheSize(long cacheSize) {
+            if (cacheSize < 0) {
+                throw new IllegalArgumentException("cacheSize must not be negative, but was " + cacheSize);
+            }
+            this.cacheSize = cacheSize;
+            return this;
+        }
+
+        /**
+         * @param sinceRef the git revision against which the files of an input directory are compared, or
+         * <code>null</code> to convert all files
+         * @return this builder
+         * @throws IllegalArgumentException if sinceRef is empty or starts with <code>-</code>, which git would take
+         * for an option
+         */
+        public Builder sinceRef(String sinceRef) {
+            if (sinceRef != null && (sinceRef.trim().isEmpty() || sinceRef.startsWith("-"))) {
+                throw new IllegalArgumentException("sinceRef is not a valid git revision: '" + sinceRef + "'");
+            }
+            this.sinceRef = sinceRef;
+            return this;
+        }
+
+        /**
+         * @param resume <code>true</code> to skip the files of an input directory which a conversion into the same
+         * output already converted before it died, if that conversion was to be resumed as well
+         * @return this builder
+         */
+        public Builder resume(boolean resume) {
+            this.resume = resume;
+            return this;
+        }
+
+        /**
+         * @param keepGoing <code>true</code> to convert all other files of an input directory when some fail, and to
+         * report all failures at the end
+         * @return this builder
+         */
+        public Builder keepGoing(boolean keepGoing) {
+            this.keepGoing = keepGoing;
+            return this;
+        }
+
+        /**
+         * @param encodingSamples the number of files per directory whose encoding is detected, after which the other
+         * files of the directory are read with the UTF encoding all of them agreed on, or <code>0</code> to detect the
+         * encoding of every file. Files of ASCII characters only are no samples
+         * @return this builder
+         * @throws IllegalArgumentException if encodingSamples is negative
+         */
+        public Builder encodingSamples(int encodingSamples) {
+            if (encodingSamples < 0) {
+                throw new IllegalArgumentException("encodingSamples must not be negative, but was " + encodingSamples);
+            }
+            this.encodingSamples = encodingSamples;
+            return this;
+        }
+
+        /**
+         * @return the immutable options
+         * @throws IllegalStateException if the scheduling requires a cost file but none is given, if incremental
+         * conversion is combined with post processing of the input files, with a git revision to compare with or with
+         * resuming, or if a git revision to compare with is combined with post processing of the input files
+         */
+        public ConversionOptions build() {
+            if (scheduling == Scheduling.COSTLIEST_FIRST && costFile == null) {
+                throw new IllegalStateException("Scheduling " + scheduling + " requires a cost file");
+            }
+            if (incremental && postProcess != PostProcess.NONE) {
+                // the input files are gone after the conversion, so there is nothing to compare with next time
+                throw new IllegalStateException(
+                        "Incremental conversion does not support post processing " + postProcess);
+            }
+            if (sinceRef != null && postProcess != PostProcess.NONE) {
+                // the input files converted are gone after the conversion, so the next run would take them for
+                // deleted ones and remove their outputs
+                throw new IllegalStateException(
+                        "Converting the files changed since " + sinceRef + " does not support post processing "
+                                + postProcess);
+            }
+            if (incremental && sinceRef != null) {
+                // the manifest would take the files not changed since the revision for deleted ones
+                throw new IllegalStateException("Incremental conversion cannot be combined with sinceRef " + sinceRef);
+            }
+            if (incremental && resume) {
+                // the manifest would take the files done before for deleted ones
+                throw new IllegalStateException("Incremental conversion cannot be combined with resuming");
+            }
+            return new ConversionOptions(this);
+        }
+
+        private static String checkEncoding(String encoding) {
+            if (encoding != null && !Charset.isSupported(encoding)) {
+                throw new IllegalArgumentException("The encoding '" + encoding + "' is not supported");
+            }
+            return encoding;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Passes the files of an input directory through consecutive stages, each run by threads of its own and fed by a
+ * bounded queue, so that reading the next files and writing the previous ones overlap with parsing.
+ *
+ * <p>A full queue blocks the stage before it, which caps the number of documents held in memory. The first failure
+ * stops accepting further files, the files already queued are dropped, and the failure is thrown by the next call
+ * to {@link #submit(Object)} or {@link #finish()}, unless a {@link #onFailure(BiConsumer) failure handler} takes the
+ * failures of single files, then all other files pass on. The depth of each queue, its highest use and how often the
+ * previous stage had to wait for it are logged once all files are done.</p>
+ *
+ * @param <T> the state of a single file passed from stage to stage
+ */
+class ConversionPipeline<T> implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConversionPipeline.class);
+
+    /** Tells a worker thread that no more files follow */
+    private static final Object END = new Object();
+
+    /**
+     * The work of a single stage on a single file.
+     *
+     * @param <T> the state of a single file
+     */
+    @FunctionalInterface
+    interface Step<T> {
+        void run(T item) throws ConverterException, UnsupportedFormatException;
+    }
+
+    private final List<Stage<T>> stages = new ArrayList<>();
+
+    private final List<Thread> workers = new ArrayList<>();
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private Consumer<T> discardHandler = item -> {};
+
+    private BiConsumer<T, Exception> failureHandler;
+
+    /**
+     * Appends a stage, the first stage added receives the submitted files.
+     *
+     * @param name the name of the stage, used for the worker threads and the report
+     * @param threads the number of threads running the stage, at least 1
+     * @param queueDepth the number of files waiting for the stage at most, at least 1
+     * @param step the work of the stage
+     * @return this pipeline
+     */
+    ConversionPipeline<T> stage(String name, int threads, int queueDepth, Step<T> step) {
+        if (!workers.isEmpty()) {
+            throw new IllegalStateException("The pipeline is already started");
+        }
+        stages.add(new Stage<>(name, threads, queueDepth, step));
+        return this;
+    }
+
+    /**
+     * @param discardHandler called with each file whose step failed or which is dropped after a failure, to release
+     * what the earlier stages acquired for it
+     * @return this pipeline
+     */
+    ConversionPipeline<T> onDiscard(Consumer<T> discardHandler) {
+        this.discardHandler = discardHandler;
+        return this;
+    }
+
+    /**
+     * @param failureHandler called with each file whose step failed and the exception, instead of stopping the
+     * pipeline, before the file is discarded; errors still stop the pipeline
+     * @return this pipeline
+     */
+    ConversionPipeline<T> onFailure(BiConsumer<T, Exception> failureHandler) {
+        this.failureHandler = failureHandler;
+        return this;
+    }
+
+    /**
+     * Starts the worker threads of all stages.
+     *
+     * @return this pipeline
+     */
+    ConversionPipeline<T> start() {
+        for (int i = 0; i < stages.size(); i++) {
+            Stage<T> stage = stages.get(i);
+            Stage<T> next = i + 1 < stages.size() ? stages.get(i + 1) : null;
+            for (int n = 1; n <= stage.threads; n++) {
+                Thread worker = new Thread(() -> work(stage, next), "doxia-converter-" + stage.name + "-" + n);
+                worker.setDaemon(true);
+                workers.add(worker);
+            }
+        }
+        workers.forEach(Thread::start);
+        return this;
+    }
+
+    /**
+     * Queues a file for the first stage, waiting while its queue is full.
+     *
+     * @param item not null
+     * @throws ConverterException if any earlier file failed
+     * @throws UnsupportedFormatException if any earlier file failed
+     */
+    void submit(T item) throws ConverterException, UnsupportedFormatException {
+        rethrowFailure();
+        try {
+            stages.get(0).put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConverterException("Interrupted while converting files: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Waits until all submitted files passed the last stage and reports the use of the queues.
+     *
+     * @throws ConverterException if any file failed
+     * @throws UnsupportedFormatException if any file failed
+     */
+    void finish() throws ConverterException, UnsupportedFormatException {
+        Stage<T> first = stages.get(0);
+        try {
+            for (int n = 0; n < first.threads; n++) {
+                first.queue.put(END);
+            }
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConverterException("Interrupted while converting files: " + e.getMessage(), e);
+        }
+        for (Stage<T> stage : stages) {
+            LOGGER.info(
+                    "Stage {}: {} threads, queue depth {} (at most {} used), waited {} times for {} ms to queue a file",
+                    stage.name,
+                    stage.threads,
+                    stage.queueDepth,
+                    stage.maxUsed.get(),
+                    stage.stalls.get(),
+                    TimeUnit.NANOSECONDS.toMillis(stage.stallNanos.get()));
+        }
+        rethrowFailure();
+    }
+
+    /**
+     * Stops all worker threads, in case {@link #finish()} was not reached.
+     */
+    @Override
+    public void close() {
+        workers.forEach(Thread::interrupt);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void work(Stage<T> stage, Stage<T> next) {
+        try {
+            Object item;
+            while ((item = stage.queue.take()) != END) {
+                if (failure.get() != null) {
+                    // drop the files still queued after a failure
+                    discardHandler.accept((T) item);
+                    continue;
+                }
+                try {
+                    stage.step.run((T) item);
+                } catch (Exception e) {
+                    if (failureHandler != null) {
+                        failureHandler.accept((T) item, e);
+                    } else {
+                        failure.compareAndSet(null, e);
+                    }
+                    discardHandler.accept((T) item);
+                    continue;
+                } catch (Error e) {
+                    failure.compareAndSet(null, e);
+                    discardHandler.accept((T) item);
+                    continue;
+                }
+                if (next != null) {
+                    next.put(item);
+                }
+            }
+            if (stage.running.decrementAndGet() == 0) {
+                // the last worker of this stage tells the next stage that no more files follow
+                if (next != null) {
+                    for (int n = 0; n < next.threads; n++) {
+                        next.queue.put(END);
+                    }
+                } else {
+                    done.countDown();
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed before finishing
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void rethrowFailure() throws ConverterException, UnsupportedFormatException {
+        Throwable cause = failure.get();
+        if (cause == null) {
+            return;
+        }
+        if (cause instanceof ConverterException) {
+            throw (ConverterException) cause;
+        } else if (cause instanceof UnsupportedFormatException) {
+            throw (UnsupportedFormatException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new ConverterException("Error converting files: " + cause.getMessage(), cause);
+    }
+
+    private static final class Stage<T> {
+        private final String name;
+
+        private final int threads;
+
+        private final int queueDepth;
+
+        private final Step<T> step;
+
+        private final BlockingQueue<Object> queue;
+
+        private final AtomicInteger running;
+
+        private final AtomicInteger maxUsed = new AtomicInteger();
+
+        private final AtomicLong stalls = new AtomicLong();
+
+        private final AtomicLong stallNanos = new AtomicLong();
+
+        Stage(String name, int threads, int queueDepth, Step<T> step) {
+            this.name = name;
+            this.threads = threads;
+            this.queueDepth = queueDepth;
+            this.step = step;
+            this.queue = new ArrayBlockingQueue<>(queueDepth);
+            this.running = new AtomicInteger(threads);
+        }
+
+        void put(Object item) throws InterruptedException {
+            if (!queue.offer(item)) {
+                long start = System.nanoTime();
+                queue.put(item);
+                stalls.incrementAndGet();
+                stallNanos.addAndGet(System.nanoTime() - start);
+            }
+            maxUsed.accumulateAndGet(queue.size(), Math::max);
+        }
+    }
+}
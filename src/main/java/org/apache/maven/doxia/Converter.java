@@ -18,6 +18,8 @@
  */
 package org.apache.maven.doxia;
 
+import java.util.List;
+
 import org.apache.maven.doxia.wrapper.InputFileWrapper;
 import org.apache.maven.doxia.wrapper.InputReaderWrapper;
 import org.apache.maven.doxia.wrapper.OutputFileWrapper;
@@ -36,14 +38,65 @@ public interface Converter {
     }
 
     /**
+     * Converts with the options given by the setters of this converter.
+     *
      * @param input an input file wrapper, not null.
      * @param output an output file wrapper, not null.
      * @throws UnsupportedFormatException if any
      * @throws ConverterException if any
+     * @see #convert(InputFileWrapper, OutputFileWrapper, ConversionOptions)
      */
     void convert(InputFileWrapper input, OutputFileWrapper output)
             throws UnsupportedFormatException, ConverterException;
 
+    /**
+     * Converts with the given options. This does not depend on any state of the converter, so a single converter
+     * may be used by several threads at the same time.
+     *
+     * @param input an input file wrapper, not null.
+     * @param output an output file wrapper, not null.
+     * @param options the options of this conversion, not null.
+     * @throws UnsupportedFormatException if any
+     * @throws ConverterException if any
+     * @since 1.4
+     */
+    void convert(InputFileWrapper input, OutputFileWrapper output, ConversionOptions options)
+            throws UnsupportedFormatException, ConverterException;
+
+    /**
+     * Converts to several formats at once. Each input file is read and parsed only once, and written to every one of
+     * the outputs in its format.
+     *
+     * @param input an input file wrapper, not null.
+     * @param outputs the output file wrappers, at least one and each with an output tree of its own.
+     * @param options the options of this conversion, not null. Only a single output allows
+     * {@link PostProcess#GIT_MV_INPUT_TO_OUTPUT}.
+     * @throws UnsupportedFormatException if any
+     * @throws ConverterException if any, a {@link BatchConversionException} reporting all failed files if keeping
+     * going
+     * @since 1.4
+     */
+    void convert(InputFileWrapper input, List<OutputFileWrapper> outputs, ConversionOptions options)
+            throws UnsupportedFormatException, ConverterException;
+
+    /**
+     * Converts an input directory, and then keeps converting the files which change in it until the calling thread
+     * is interrupted. Changes are collected until none came for a short while, and then only the changed files are
+     * converted again and the outputs of removed files are removed. A failure to convert changes is logged, and
+     * watching goes on.
+     *
+     * @param input an input directory wrapper, not null.
+     * @param outputs the output file wrappers, at least one and each with an output tree of its own.
+     * @param options the options of the conversions, not null. Post processing of the input files is not supported.
+     * Only the initial conversion is incremental or compared with a git revision, if requested.
+     * @throws UnsupportedFormatException if any
+     * @throws ConverterException if the initial conversion fails other than for single files, or the input directory
+     * could not be watched
+     * @since 1.4
+     */
+    void watch(InputFileWrapper input, List<OutputFileWrapper> outputs, ConversionOptions options)
+            throws UnsupportedFormatException, ConverterException;
+
     /**
      * @param input an input reader wrapper, not null.
      * @param output an output writer wrapper, not null.
@@ -59,8 +112,26 @@ public interface Converter {
      * <b>Note</b>: actually, only XML based outputs could be formatted.
      *
      * @param formatOutput <code>true</code> to format the generated files, <code>false</code> otherwise.
+     * @deprecated pass {@link ConversionOptions#isFormatOutput()} along with each conversion instead
      */
+    @Deprecated
     void setFormatOutput(boolean formatOutput);
 
+    /**
+     * @param postProcess what to do with the input files after a successful conversion
+     * @deprecated pass {@link ConversionOptions#getPostProcess()} along with each conversion instead
+     */
+    @Deprecated
     void setPostProcess(PostProcess postProcess);
+
+    /**
+     * Convert the files found in an input directory on several threads.
+     * <br>
+     * <b>Note</b>: only relevant when the input is a directory.
+     *
+     * @param threads the number of files converted at the same time, <code>1</code> to convert them one after the other.
+     * @deprecated pass {@link ConversionOptions#getThreads()} along with each conversion instead
+     */
+    @Deprecated
+    void setThreads(int threads);
 }
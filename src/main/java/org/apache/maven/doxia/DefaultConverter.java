@@ -22,21 +22,25 @@ import javax.inject.Inject;
 import javax.inject.Named;
 
 import java.io.BufferedInputStream;
-import java.io.CharArrayWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringReader;
-import java.io.Writer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -44,15 +48,23 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
-import com.ibm.icu.text.CharsetDetector;
-import com.ibm.icu.text.CharsetMatch;
+import com.google.inject.Injector;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.function.IOSupplier;
 import org.apache.commons.io.input.XmlStreamReader;
-import org.apache.commons.io.output.XmlStreamWriter;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.maven.doxia.ConversionOptions.PipelineStage;
+import org.apache.maven.doxia.ConversionOptions.Scheduling;
 import org.apache.maven.doxia.macro.MacroExecutionException;
 import org.apache.maven.doxia.macro.MacroExecutor;
 import org.apache.maven.doxia.macro.MacroRequest;
@@ -66,12 +78,7 @@ import org.apache.maven.doxia.wrapper.InputReaderWrapper;
 import org.apache.maven.doxia.wrapper.OutputFileWrapper;
 import org.apache.maven.doxia.wrapper.OutputStreamWrapper;
 import org.codehaus.plexus.util.FileUtils;
-import org.codehaus.plexus.util.PathTool;
 import org.codehaus.plexus.util.SelectorUtils;
-import org.codehaus.plexus.util.xml.XmlUtil;
-import org.codehaus.plexus.util.xml.pull.MXParser;
-import org.codehaus.plexus.util.xml.pull.XmlPullParser;
-import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -194,6 +201,13 @@ public class DefaultConverter implements Converter {
             return extension;
         }
 
+        /**
+         * @return the Plexus role hint of the parser and sink factory of this format
+         */
+        String roleHint() {
+            return roleHint;
+        }
+
         public boolean hasParser() {
             return hasParser;
         }
@@ -216,8 +230,22 @@ public class DefaultConverter implements Converter {
          * @return an instance of <code>Parser</code> depending on the format which converts macros with the given {@link MacroFormatter}
          * @throws IllegalStateException if no Parser is registered for the given format.
          * @throws IllegalArgumentException if any parameter is null
+         * @deprecated this reconfigures the registered parser, which is shared by all its users, so it must not be
+         * called by concurrent conversions
          */
+        @Deprecated
         public Parser getParser(Map<String, Parser> parsers, MacroFormatter macroFormatter) {
+            Parser parser = getRegisteredParser(parsers);
+            parser.setMacroExecutor(new MacroConverterExecutor(macroFormatter));
+            return parser;
+        }
+
+        /**
+         * @param parsers all available parsers, keyed by role hint
+         * @return the <code>Parser</code> registered for this format, left untouched
+         * @throws IllegalStateException if no Parser is registered for the given format.
+         */
+        Parser getRegisteredParser(Map<String, Parser> parsers) {
             if (!hasParser) {
                 throw new IllegalStateException("The format " + this + " is not supported as parser!");
             }
@@ -227,7 +255,6 @@ public class DefaultConverter implements Converter {
                 throw new IllegalStateException("No Parser registered for format " + this + " (role hint \"" + roleHint
                         + "\"); is the according Doxia module on the classpath?");
             }
-            parser.setMacroExecutor(new MacroConverterExecutor(macroFormatter));
             return parser;
         }
 
@@ -250,8 +277,15 @@ public class DefaultConverter implements Converter {
 
                 // the format of macros differs between the parser implementations
                 // (https://maven.apache.org/doxia/macros/index.html)
-                String macro = macroFormatter.format(id, parameters);
-                sink.rawText(macro);
+                TeeSink tee = TeeSink.find(sink);
+                if (tee == null) {
+                    sink.rawText(macroFormatter.format(id, parameters));
+                    return;
+                }
+                // a document converted to several formats at once needs the macro in each of them
+                for (int i = 0; i < tee.size(); i++) {
+                    tee.getBranch(i).rawText(MacroFormatter.forFormat(tee.getFormat(i)).format(id, parameters));
+                }
             }
         }
 
@@ -293,10 +327,15 @@ public class DefaultConverter implements Converter {
                         "The path '" + f.getAbsolutePath() + "' does not locate a file, could not detect format.");
             }
 
+            // the file is read at most once, for the first XML format
+            FileProbe probe = null;
             for (DoxiaFormat format : EnumSet.allOf(DoxiaFormat.class)) {
                 if (format.isXml()) {
                     // Handle XML files
-                    String firstTag = getFirstTag(f);
+                    if (probe == null) {
+                        probe = probe(f);
+                    }
+                    String firstTag = probe != null ? probe.getFirstElement() : null;
                     if (firstTag == null) {
                         //noinspection UnnecessaryContinue
                         continue;
@@ -316,71 +355,606 @@ public class DefaultConverter implements Converter {
         }
     }
 
-    private PostProcess postProcess = PostProcess.NONE;
+    /** The options of conversions which are not given options of their own */
+    private volatile ConversionOptions defaultOptions = ConversionOptions.DEFAULT;
 
-    /** Flag to format the generated files, actually only for XML based sinks. */
-    private boolean formatOutput;
+    /** The parsers and sink factories of all Doxia formats on the classpath */
+    private final DoxiaComponentPool components;
 
-    /** All Doxia parsers on the classpath, keyed by role hint */
-    private final Map<String, Parser> parsers;
+    /** Parses large documents in parts on several threads */
+    private final ChunkedDocumentParser chunkedParser;
 
-    /** All Doxia sink factories on the classpath, keyed by role hint */
-    private final Map<String, SinkFactory> sinkFactories;
+    public DefaultConverter(Map<String, Parser> parsers, Map<String, SinkFactory> sinkFactories) {
+        this(parsers, sinkFactories, null);
+    }
 
+    /**
+     * @param parsers all Doxia parsers on the classpath, keyed by role hint
+     * @param sinkFactories all Doxia sink factories on the classpath, keyed by role hint
+     * @param injector the injector which wired this converter, used to create a parser instance per thread (may be
+     * null, then all conversions share the registered parsers)
+     */
     @Inject
-    public DefaultConverter(Map<String, Parser> parsers, Map<String, SinkFactory> sinkFactories) {
-        this.parsers = parsers;
-        this.sinkFactories = sinkFactories;
+    public DefaultConverter(Map<String, Parser> parsers, Map<String, SinkFactory> sinkFactories, Injector injector) {
+        this.components = new DoxiaComponentPool(parsers, sinkFactories, injector);
+        this.chunkedParser = new ChunkedDocumentParser(components);
     }
 
+    /** The milliseconds without further changes after which watched changes are converted */
+    private static final long WATCH_QUIET_PERIOD = 100;
+
+    /** The largest source length taken to size the output of a template, which is not read in full */
+    private static final int MAX_SOURCE_LENGTH = Integer.MAX_VALUE / 2;
+
+    /** The largest initial capacity of the buffer an output document is rendered into, which grows as needed */
+    private static final int MAX_OUTPUT_BUFFER = 64 * 1024;
+
+    /** The size from which a template is rendered to a temporary file next to its output file, not into memory */
+    private static final long RENDER_TO_FILE_SIZE = 16L * 1024 * 1024;
+
     /** SLF4J logger */
     private static final Logger LOGGER = LoggerFactory.getLogger(DefaultConverter.class);
 
-    /** Map of temporary output files to their final output files */
-    private Map<Path, Path> outputRenameMap = new HashMap<>();
+    /**
+     * The state of a single call to {@link #convert(InputFileWrapper, OutputFileWrapper, ConversionOptions)}, kept
+     * apart from the converter so that concurrent calls do not interfere.
+     */
+    private static final class Conversion {
+        private final ConversionOptions options;
+
+        /** Map of temporary output files to their final output files */
+        private final Map<Path, Path> outputRenameMap = new HashMap<>();
+
+        /** The parse time of the files of an input directory, only if a cost file is given */
+        private ConversionCosts costs;
+
+        /** Admits the files of an input directory while there is heap for them */
+        private HeapGovernor heapGovernor;
+
+        /** The input files of the last conversion, only if converting incrementally */
+        private ConversionManifest manifest;
+
+        /** The number of files skipped as unchanged since the last conversion */
+        private final AtomicInteger unchanged = new AtomicInteger();
+
+        /** The documents converted before, shared with other conversions, only if a cache directory is given */
+        private ConversionCache cache;
+
+        /** The number of files written from the cache */
+        private final AtomicInteger cached = new AtomicInteger();
+
+        /** The number of output files written */
+        private final AtomicInteger written = new AtomicInteger();
+
+        /** The number of output files not written as they already had the converted content */
+        private final AtomicInteger untouched = new AtomicInteger();
+
+        /** The files of an input directory by their content and encodings, to convert identical files only once */
+        private final Map<String, ContentGroup> contents = new ConcurrentHashMap<>();
+
+        /** The number of files with the same content as a file converted before */
+        private final AtomicInteger duplicates = new AtomicInteger();
+
+        /** The progress of the conversion of an input directory, not for the changes of a watched directory */
+        private ConversionJournal journal;
+
+        /** The number of files skipped as done by the conversion resumed */
+        private final AtomicInteger resumed = new AtomicInteger();
+
+        /** The files which could not be converted, only collected when keeping going */
+        private final Queue<BatchConversionException.Failure> failures = new ConcurrentLinkedQueue<>();
+
+        /** The number of source files found in the input directory */
+        private int found;
+
+        /** The encodings settled on per directory, only if sampling them */
+        private DirectoryEncodings encodings;
+
+        /** Parses the parts of large documents, only once the first document is split */
+        private ExecutorService partExecutor;
+
+        Conversion(ConversionOptions options) {
+            this.options = options;
+        }
+
+        /**
+         * @return the executor parsing the parts of all documents of this conversion, with as many threads as the
+         * conversion parses documents at the same time
+         */
+        synchronized ExecutorService getPartExecutor() {
+            if (partExecutor == null) {
+                partExecutor = ChunkedDocumentParser.newExecutor(options.getThreads());
+            }
+            return partExecutor;
+        }
+
+        synchronized void shutdown() {
+            if (partExecutor != null) {
+                partExecutor.shutdownNow();
+            }
+        }
+    }
 
     /** {@inheritDoc} */
     @Override
     public void convert(InputFileWrapper input, OutputFileWrapper output)
             throws UnsupportedFormatException, ConverterException {
-        Objects.requireNonNull(input, "input is required");
+        convert(input, output, defaultOptions);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void convert(InputFileWrapper input, OutputFileWrapper output, ConversionOptions options)
+            throws UnsupportedFormatException, ConverterException {
         Objects.requireNonNull(output, "output is required");
+        convert(input, Collections.singletonList(output), options);
+    }
 
-        outputRenameMap.clear();
-        if (input.getFile().isFile()) {
-            convert(input.getFile(), input.getEncoding(), input.getFormat(), output);
-        } else {
-            List<File> files;
+    /** {@inheritDoc} */
+    @Override
+    public void convert(InputFileWrapper input, List<OutputFileWrapper> outputs, ConversionOptions options)
+            throws UnsupportedFormatException, ConverterException {
+        Objects.requireNonNull(input, "input is required");
+        Objects.requireNonNull(outputs, "outputs is required");
+        Objects.requireNonNull(options, "options is required");
+        if (outputs.isEmpty() || outputs.contains(null)) {
+            throw new IllegalArgumentException("At least one output is required, and none may be null");
+        }
+        if (outputs.size() > 1 && options.getPostProcess() == PostProcess.GIT_MV_INPUT_TO_OUTPUT) {
+            throw new IllegalArgumentException("An input file can only be moved to a single output with git");
+        }
+
+        Conversion conversion = newConversion(options);
+        try {
+            if (input.getFile().isFile()) {
+                FileConversion file = newFileConversion(
+                        conversion, input.getFile(), input.getEncoding(), input.getFormat(), outputs, null);
+                try {
+                    read(file);
+                    parse(file);
+                    finish(file);
+                } finally {
+                    release(file);
+                }
+            } else {
+                if (options.isResume()) {
+                    openJournal(conversion, input, outputs);
+                }
+                convertDirectory(conversion, input, outputs);
+            }
             try {
-                files = FileUtils.getFiles(
-                        input.getFile(),
-                        getFileNamePatterns(input.getFormat().getExtension(), !input.isExcludeVelocityTemplates()),
-                        StringUtils.join(FileUtils.getDefaultExcludes(), ", "));
+                postProcessAllFiles(conversion, outputs.get(0).getFormat());
+                // keep the journal, so that resuming only converts the failed files again
+                if (conversion.journal != null && conversion.failures.isEmpty()) {
+                    conversion.journal.complete();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ConverterException("Error post processing all files: " + e.getMessage(), e);
             } catch (IOException e) {
-                throw new ConverterException("IOException: " + e.getMessage(), e);
-            } catch (IllegalStateException e) {
-                throw new ConverterException("IllegalStateException: " + e.getMessage(), e);
-            }
-            if (files.isEmpty()) {
-                throw new ConverterException("ConverterException: No files with extension "
-                        + input.getFormat().getExtension() + " found in directory " + input.getFile());
+                throw new ConverterException("Error post processing all files: " + e.getMessage(), e);
             }
-            for (File f : files) {
-                File relativeOutputDirectory =
-                        new File(PathTool.getRelativeFilePath(input.getFile().getAbsolutePath(), f.getParent()));
-                convert(f, input.getEncoding(), input.getFormat(), output, relativeOutputDirectory);
+        } finally {
+            conversion.shutdown();
+            if (conversion.journal != null) {
+                try {
+                    conversion.journal.close();
+                } catch (IOException e) {
+                    LOGGER.warn("Could not close the journal: {}", e.getMessage());
+                }
             }
         }
+        evictCache(conversion);
+        checkFailures(conversion);
+    }
+
+    /**
+     * Starts the journal of the conversion of an input directory, or resumes the conversion recorded in it. Only
+     * conversions which may be resumed keep a journal, as it costs a write per file.
+     *
+     * @param conversion the conversion of the input directory
+     * @param input the input directory
+     * @param outputs the output directory of each target format
+     * @throws ConverterException if the journal could not be read or written
+     */
+    private static void openJournal(Conversion conversion, InputFileWrapper input, List<OutputFileWrapper> outputs)
+            throws ConverterException {
+        ConversionOptions options = conversion.options;
         try {
-            postProcessAllFiles(output.getFormat());
+            conversion.journal = ConversionJournal.open(
+                    outputs.get(0).getFile().toPath(),
+                    getFingerprint(input, outputs, options) + ' ' + options.getPostProcess(),
+                    options.isResume());
+        } catch (IOException e) {
+            throw new ConverterException("IOException: " + e.getMessage(), e);
+        }
+        // the output files moved aside before the conversion died are moved back after the commit all the same
+        conversion.outputRenameMap.putAll(conversion.journal.getMoved());
+    }
+
+    /**
+     * Converts the files of the input directory, or only those changed since a git revision if one is given.
+     *
+     * @param conversion the conversion the files belong to
+     * @param input the input directory
+     * @param outputs the output directory of each target format
+     * @throws ConverterException if any file could not be converted or no file was found
+     * @throws UnsupportedFormatException if any
+     */
+    private void convertDirectory(Conversion conversion, InputFileWrapper input, List<OutputFileWrapper> outputs)
+            throws ConverterException, UnsupportedFormatException {
+        if (conversion.options.getSinceRef() == null) {
+            convertDirectory(conversion, input, outputs, null, Collections.emptySet());
+            return;
+        }
+        GitChanges changes;
+        try {
+            changes = GitChanges.since(input.getFile().toPath(), conversion.options.getSinceRef());
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            throw new ConverterException("Error post processing all files: " + e.getMessage(), e);
+            throw new ConverterException("Interrupted while asking git for changes: " + e.getMessage(), e);
         } catch (IOException e) {
-            throw new ConverterException("Error post processing all files: " + e.getMessage(), e);
+            throw new ConverterException("IOException: " + e.getMessage(), e);
+        }
+        convertDirectory(conversion, input, outputs, changes.getChanged(), changes.getRemoved());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void watch(InputFileWrapper input, List<OutputFileWrapper> outputs, ConversionOptions options)
+            throws UnsupportedFormatException, ConverterException {
+        Objects.requireNonNull(input, "input is required");
+        Objects.requireNonNull(options, "options is required");
+        if (!input.getFile().isDirectory()) {
+            throw new IllegalArgumentException("Only an input directory can be watched, not " + input.getFile());
+        }
+        if (options.getPostProcess() != PostProcess.NONE) {
+            throw new IllegalArgumentException("Watching does not support post processing " + options.getPostProcess());
+        }
+        SourceTreeWalker walker = newWalker(input, options);
+        // each burst of changes is converted on its own, not compared with the manifest or a revision
+        ConversionOptions changeOptions = options.toBuilder().incremental(false).sinceRef(null).build();
+        // watching starts first, so that no change during the initial conversion is missed
+        try (SourceTreeWatcher watcher = new SourceTreeWatcher(input.getFile().toPath(), walker, WATCH_QUIET_PERIOD)) {
+            try {
+                convert(input, outputs, options);
+            } catch (BatchConversionException e) {
+                // the next edit may fix them
+                LOGGER.error(e.getMessage());
+            }
+            LOGGER.info("Watching \"{}\" for changes", input.getFile());
+            while (!Thread.currentThread().isInterrupted()) {
+                SourceTreeWatcher.Changes changes = watcher.take();
+                long start = System.nanoTime();
+                Conversion conversion = newConversion(changeOptions);
+                try {
+                    convertDirectory(conversion, input, outputs, changes.getChanged(), changes.getRemoved());
+                    checkFailures(conversion);
+                    LOGGER.info(
+                            "Converted changes in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                } catch (ConverterException | UnsupportedFormatException e) {
+                    // the next edit may fix it
+                    LOGGER.error("Could not convert changes: {}", e.getMessage(), e);
+                } finally {
+                    conversion.shutdown();
+                }
+                evictCache(conversion);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new ConverterException("IOException: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param options the options of the conversion
+     * @return the state of a new conversion, using the cache if one is given
+     */
+    private static Conversion newConversion(ConversionOptions options) {
+        Conversion conversion = new Conversion(options);
+        if (options.getCacheDirectory() != null) {
+            conversion.cache = new ConversionCache(options.getCacheDirectory().toPath(), options.getCacheSize());
+        }
+        return conversion;
+    }
+
+    /**
+     * @param conversion the conversion of an input directory which is done
+     * @throws BatchConversionException if any file could not be converted while keeping going
+     */
+    private static void checkFailures(Conversion conversion) throws BatchConversionException {
+        if (!conversion.failures.isEmpty()) {
+            throw BatchConversionException.of(conversion.failures, conversion.found);
+        }
+    }
+
+    private static void evictCache(Conversion conversion) {
+        if (conversion.cache != null) {
+            try {
+                conversion.cache.evict();
+            } catch (IOException e) {
+                // the conversion itself succeeded, the next one evicts again
+                LOGGER.warn(
+                        "Could not evict from the cache {}: {}",
+                        conversion.options.getCacheDirectory(),
+                        e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @param input the input directory
+     * @param options the options of the conversion
+     * @return the walker which selects the source files of the input directory
+     */
+    private static SourceTreeWalker newWalker(InputFileWrapper input, ConversionOptions options) {
+        List<String> excludes = new ArrayList<>(Arrays.asList(FileUtils.getDefaultExcludes()));
+        excludes.addAll(options.getExcludes());
+        return new SourceTreeWalker(
+                input.getFile().toPath(),
+                Arrays.asList(getFileNamePatterns(input.getFormat().getExtension(), !input.isExcludeVelocityTemplates())
+                        .split(",")),
+                options.getIncludes(),
+                excludes);
+    }
+
+    /**
+     * Converts the files of the input directory while walking it. Each file is read, parsed and finished by
+     * consecutive stages of a {@link ConversionPipeline}, so that disk access overlaps with parsing. The first
+     * failure stops the walk and drops all pending conversions. If the changed files are known, only those are
+     * converted instead of walking the whole directory, and the outputs of the removed files are removed.
+     *
+     * @param conversion the conversion the files belong to
+     * @param input the input directory
+     * @param outputs the output directory of each target format
+     * @param changed the paths of the files to convert relative to the input directory, or <code>null</code> to
+     * convert all files
+     * @param removed the paths of the files removed from the input directory, relative to it
+     * @throws ConverterException if any file could not be converted or no file was found
+     * @throws UnsupportedFormatException if any
+     */
+    private void convertDirectory(
+            Conversion conversion,
+            InputFileWrapper input,
+            List<OutputFileWrapper> outputs,
+            Set<String> changed,
+            Set<String> removed)
+            throws ConverterException, UnsupportedFormatException {
+        ConversionOptions options = conversion.options;
+        SourceTreeWalker walker = newWalker(input, options);
+        int threads = options.getThreads();
+        int parseThreads = components.isParsingConcurrently() ? threads : 1;
+        LOGGER.debug("Converting files of directory {} with {} threads", input.getFile(), threads);
+        if (options.getCostFile() != null) {
+            try {
+                conversion.costs = ConversionCosts.load(options.getCostFile().toPath());
+            } catch (IOException e) {
+                throw new ConverterException("IOException: " + e.getMessage(), e);
+            }
+        }
+        conversion.heapGovernor = new HeapGovernor(options.getHeapLimit(), options.getExclusiveFileSize());
+        if (options.getEncodingSamples() > 0) {
+            conversion.encodings = new DirectoryEncodings(options.getEncodingSamples());
+        }
+        if (options.isIncremental()) {
+            try {
+                conversion.manifest = ConversionManifest.load(
+                        outputs.get(0).getFile().toPath(), getFingerprint(input, outputs, options));
+            } catch (IOException e) {
+                throw new ConverterException("IOException: " + e.getMessage(), e);
+            }
+        }
+        int count;
+        try (ConversionPipeline<FileConversion> pipeline = new ConversionPipeline<FileConversion>()
+                .stage("read", threads, options.getQueueDepth(PipelineStage.READ), this::read)
+                .stage("parse", parseThreads, options.getQueueDepth(PipelineStage.PARSE), this::parse)
+                .stage("finish", threads, options.getQueueDepth(PipelineStage.FINISH), this::finish)
+                .onDiscard(DefaultConverter::release)
+                .onFailure(options.isKeepGoing() ? DefaultConverter::fail : null)
+                .start()) {
+            List<FileConversion> files =
+                    options.getScheduling() == Scheduling.WALK_ORDER ? null : new ArrayList<>();
+            SourceTreeWalker.Visitor visitor = (file, attributes, relativeDirectory) -> {
+                long lastModified = attributes.lastModifiedTime().toMillis();
+                String relativePath = getRelativePath(relativeDirectory, file.toFile());
+                if (conversion.manifest != null
+                        && conversion.manifest.keepIfUnchanged(relativePath, attributes.size(), lastModified)) {
+                    conversion.unchanged.incrementAndGet();
+                    return;
+                }
+                if (conversion.journal != null && conversion.journal.isDone(relativePath)) {
+                    conversion.resumed.incrementAndGet();
+                    return;
+                }
+                FileConversion fileConversion = newFileConversion(
+                        conversion,
+                        file.toFile(),
+                        input.getEncoding(),
+                        input.getFormat(),
+                        outputs,
+                        relativeDirectory);
+                fileConversion.size = attributes.size();
+                fileConversion.lastModified = lastModified;
+                if (files != null) {
+                    files.add(fileConversion);
+                } else {
+                    pipeline.submit(fileConversion);
+                }
+            };
+            try {
+                count = changed != null ? walker.visit(changed, visitor) : walker.walk(visitor);
+                conversion.found = count;
+            } catch (IOException e) {
+                throw new ConverterException("IOException: " + e.getMessage(), e);
+            }
+            if (files != null) {
+                for (FileConversion file : schedule(conversion, files)) {
+                    pipeline.submit(file);
+                }
+            }
+            pipeline.finish();
+        }
+        if (conversion.heapGovernor.getThrottled() > 0) {
+            LOGGER.info("{} files waited for heap before being converted", conversion.heapGovernor.getThrottled());
+        }
+        if (conversion.costs != null) {
+            try {
+                conversion.costs.store();
+            } catch (IOException e) {
+                throw new ConverterException("IOException: " + e.getMessage(), e);
+            }
+        }
+        if (conversion.manifest != null) {
+            try {
+                int deleted = conversion.manifest.removeStaleOutputs(input.getFile().toPath());
+                conversion.manifest.store();
+                LOGGER.info(
+                        "{} of {} files unchanged since the last conversion, removed the outputs of {} deleted files",
+                        conversion.unchanged.get(),
+                        count,
+                        deleted);
+            } catch (IOException e) {
+                throw new ConverterException("IOException: " + e.getMessage(), e);
+            }
+        }
+        if (conversion.cache != null) {
+            LOGGER.info("{} of {} files written from the cache", conversion.cached.get(), count);
+        }
+        if (conversion.encodings != null) {
+            LOGGER.info(
+                    "{} files read with the encoding of their directory, the encoding of {} files detected",
+                    conversion.encodings.getInferred(),
+                    conversion.encodings.getDetected());
+        }
+        if (conversion.resumed.get() > 0) {
+            LOGGER.info("{} files were already converted by the conversion resumed", conversion.resumed.get());
+        }
+        if (conversion.duplicates.get() > 0) {
+            LOGGER.info(
+                    "{} files had the same content as another file and were not parsed", conversion.duplicates.get());
+        }
+        LOGGER.info(
+                "{} output files written, {} left alone as their content did not change",
+                conversion.written.get(),
+                conversion.untouched.get());
+        removeOutputsOfRemovedFiles(walker, removed, outputs);
+        if (changed != null) {
+            LOGGER.info("Converted {} changed files, removed the outputs of {} files", count, removed.size());
+            return;
+        }
+        if (count == 0) {
+            throw new ConverterException("ConverterException: No files with extension "
+                    + input.getFormat().getExtension() + " found in directory " + input.getFile());
         }
     }
 
+    /**
+     * Removes the outputs of the source files which were renamed or deleted, as renamed files are converted to their
+     * new outputs.
+     *
+     * @param walker the walker which selects the source files
+     * @param removedFiles the paths of the removed files relative to the input directory
+     * @param outputs the output directory of each target format
+     * @throws ConverterException if an output could not be removed
+     */
+    private static void removeOutputsOfRemovedFiles(
+            SourceTreeWalker walker, Set<String> removedFiles, List<OutputFileWrapper> outputs)
+            throws ConverterException {
+        for (String removed : removedFiles) {
+            if (!walker.isIncluded(removed)) {
+                continue;
+            }
+            File removedFile = new File(removed);
+            for (OutputFileWrapper output : outputs) {
+                File outputDirectory = removedFile.getParent() != null
+                        ? new File(output.getFile(), removedFile.getParent())
+                        : output.getFile();
+                File outputFile =
+                        new File(outputDirectory, getOutputFileName(removedFile.getName(), output.getFormat()));
+                try {
+                    if (Files.deleteIfExists(outputFile.toPath())) {
+                        LOGGER.info("Removed output file \"{}\" of removed input file \"{}\"", outputFile, removed);
+                    }
+                } catch (IOException e) {
+                    throw new ConverterException("IOException: " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Orders the files of an input directory so that the costliest ones start first. Since the workers of each
+     * stage take the next file from a shared queue as soon as they are idle, the cheap files at the end fill the gaps
+     * left by the expensive ones and all workers run out of work at about the same time.
+     *
+     * @param conversion the conversion the files belong to
+     * @param files all files found in the input directory
+     * @return the files in the order to convert them
+     */
+    private static List<FileConversion> schedule(Conversion conversion, List<FileConversion> files) {
+        ConversionCosts costs = conversion.costs;
+        if (conversion.options.getScheduling() == Scheduling.COSTLIEST_FIRST) {
+            Map<String, Long> sizes = new HashMap<>();
+            files.forEach(file -> sizes.put(file.getRelativePath(), file.size));
+            costs.calibrate(sizes);
+            files.forEach(file -> file.cost = costs.getCost(file.getRelativePath(), file.size));
+        } else {
+            files.forEach(file -> file.cost = file.size);
+        }
+        files.sort(Comparator.comparingLong((FileConversion file) -> file.cost).reversed());
+        LOGGER.debug(
+                "Scheduled {} files by {}, starting with {}",
+                files.size(),
+                conversion.options.getScheduling(),
+                files.isEmpty() ? null : files.get(0).inputFile);
+        return files;
+    }
+
+    /**
+     * @param input the input directory
+     * @param outputs the output directory of each target format
+     * @param options the options of the conversion
+     * @return the options which affect the outputs, as text
+     */
+    private static String getFingerprint(
+            InputFileWrapper input, List<OutputFileWrapper> outputs, ConversionOptions options) {
+        StringBuilder fingerprint = new StringBuilder()
+                .append(input.getFormat())
+                .append(' ')
+                .append(input.getEncoding())
+                .append(' ')
+                .append(options.getInputEncoding())
+                .append(' ')
+                .append(options.getOutputEncoding())
+                .append(' ')
+                .append(options.isFormatOutput());
+        if (options.getEncodingSamples() > 0) {
+            // files may be read with another encoding than detected on their own
+            fingerprint.append(" encodingSamples=").append(options.getEncodingSamples());
+        }
+        // a manifest of other files is dropped rather than taken to list deleted ones
+        if (!options.getIncludes().isEmpty()) {
+            fingerprint.append(" includes=").append(options.getIncludes());
+        }
+        if (!options.getExcludes().isEmpty()) {
+            fingerprint.append(" excludes=").append(options.getExcludes());
+        }
+        if (input.isExcludeVelocityTemplates()) {
+            fingerprint.append(" excludeVelocityTemplates");
+        }
+        for (OutputFileWrapper output : outputs) {
+            fingerprint
+                    .append(' ')
+                    .append(output.getFormat())
+                    .append(':')
+                    .append(output.getEncoding())
+                    .append(':')
+                    .append(output.getFile().getAbsolutePath());
+        }
+        return fingerprint.toString();
+    }
+
     static String getFileNamePatterns(String extension, boolean includeVelocityTemplates) {
         StringBuilder patterns = new StringBuilder("**/*." + extension);
         if (includeVelocityTemplates) {
@@ -390,42 +964,58 @@ public class DefaultConverter implements Converter {
         return patterns.toString();
     }
 
-    private void postProcessFile(File inputFile, File outputFile) throws IOException, InterruptedException {
-        switch (postProcess) {
+    private static void postProcessFile(Conversion conversion, File inputFile, File outputFile)
+            throws IOException, InterruptedException {
+        switch (conversion.options.getPostProcess()) {
             case REMOVE_AFTER_CONVERSION:
                 Files.delete(inputFile.toPath());
                 LOGGER.info("Removed input file \"{}\" after successful conversion", inputFile);
                 break;
             case GIT_MV_INPUT_TO_OUTPUT:
-                // first move rename output file to tmp file name
-                Path tmpOutputFile = outputFile.toPath().resolveSibling(outputFile.getName() + ".tmp");
-                Files.move(outputFile.toPath(), tmpOutputFile);
-                LOGGER.info(
-                        "Renamed output file \"{}\" to temp name \"{}\"",
-                        outputFile.getCanonicalPath(),
-                        tmpOutputFile.getFileName());
-                // rename all input files to have the proper extension (must be individually committed)
-                executeCommand("git", "mv", inputFile.getCanonicalPath(), outputFile.getCanonicalPath());
-                LOGGER.info(
-                        "Moved input file \"{}\" to output file \"{}\" (keeping the old content)",
-                        inputFile.getCanonicalPath(),
-                        outputFile.getCanonicalPath());
-                outputRenameMap.put(tmpOutputFile, outputFile.getCanonicalFile().toPath());
+                // git allows only one process to change the index at a time
+                synchronized (conversion) {
+                    // first move rename output file to tmp file name
+                    Path tmpOutputFile = outputFile.toPath().resolveSibling(outputFile.getName() + ".tmp");
+                    // left behind if a conversion died before moving the input file, which is resumed now
+                    Files.move(outputFile.toPath(), tmpOutputFile, StandardCopyOption.REPLACE_EXISTING);
+                    if (conversion.journal != null) {
+                        // recorded first, so that a resumed conversion moves it back even if git moved the input
+                        conversion.journal.moved(tmpOutputFile, outputFile.getCanonicalFile().toPath());
+                    }
+                    LOGGER.info(
+                            "Renamed output file \"{}\" to temp name \"{}\"",
+                            outputFile.getCanonicalPath(),
+                            tmpOutputFile.getFileName());
+                    // rename all input files to have the proper extension (must be individually committed)
+                    executeCommand("git", "mv", inputFile.getCanonicalPath(), outputFile.getCanonicalPath());
+                    LOGGER.info(
+                            "Moved input file \"{}\" to output file \"{}\" (keeping the old content)",
+                            inputFile.getCanonicalPath(),
+                            outputFile.getCanonicalPath());
+                    conversion.outputRenameMap.put(tmpOutputFile, outputFile.getCanonicalFile().toPath());
+                }
                 break;
             default:
                 break;
         }
     }
 
-    private void postProcessAllFiles(DoxiaFormat outputFormat) throws IOException, InterruptedException {
-        if (postProcess == PostProcess.GIT_MV_INPUT_TO_OUTPUT) {
-            // first commit the move operation with original contents
-            executeCommand(
-                    "git",
-                    "commit",
-                    "-m",
-                    String.format("Move to match target converter format %s with doxia-converter", outputFormat));
-            for (Map.Entry<Path, Path> entry : outputRenameMap.entrySet()) {
+    private static void postProcessAllFiles(Conversion conversion, DoxiaFormat outputFormat)
+            throws IOException, InterruptedException {
+        if (conversion.options.getPostProcess() == PostProcess.GIT_MV_INPUT_TO_OUTPUT) {
+            ConversionJournal journal = conversion.journal;
+            if (journal == null || !journal.isCommitted()) {
+                // first commit the move operation with original contents
+                executeCommand(
+                        "git",
+                        "commit",
+                        "-m",
+                        String.format("Move to match target converter format %s with doxia-converter", outputFormat));
+                if (journal != null) {
+                    journal.committed();
+                }
+            }
+            for (Map.Entry<Path, Path> entry : conversion.outputRenameMap.entrySet()) {
                 // move back the converted file to the original output name (i.e. overwrite its old content)
                 Files.move(entry.getKey(), entry.getValue(), StandardCopyOption.REPLACE_EXISTING);
                 LOGGER.info("Replaced output file \"{}\" with converted file \"{}\"", entry.getValue(), entry.getKey());
@@ -462,10 +1052,7 @@ public class DefaultConverter implements Converter {
         Objects.requireNonNull(input, "input is required");
         Objects.requireNonNull(output, "output is required");
 
-        Parser parser = input.getFormat().getParser(parsers, MacroFormatter.forFormat(output.getFormat()));
-        LOGGER.debug("Parser used: {}", parser.getClass().getName());
-
-        SinkFactory sinkFactory = output.getFormat().getSinkFactory(sinkFactories);
+        SinkFactory sinkFactory = components.getSinkFactory(output.getFormat());
 
         Sink sink;
         try {
@@ -475,19 +1062,29 @@ public class DefaultConverter implements Converter {
         }
         try (Sink s = sink) {
             LOGGER.debug("Sink used: {}", sink.getClass().getName());
-            parse(parser, input.getReader(), s);
+            parse(input.getFormat(), output.getFormat(), input.getReader(), s);
         }
     }
 
     /** {@inheritDoc} */
     @Override
-    public void setFormatOutput(boolean formatOutput) {
-        this.formatOutput = formatOutput;
+    @Deprecated
+    public synchronized void setFormatOutput(boolean formatOutput) {
+        defaultOptions = defaultOptions.toBuilder().formatOutput(formatOutput).build();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Deprecated
+    public synchronized void setPostProcess(PostProcess postProcess) {
+        defaultOptions = defaultOptions.toBuilder().postProcess(postProcess).build();
     }
 
+    /** {@inheritDoc} */
     @Override
-    public void setPostProcess(PostProcess postProcess) {
-        this.postProcess = postProcess;
+    @Deprecated
+    public synchronized void setThreads(int threads) {
+        defaultOptions = defaultOptions.toBuilder().threads(threads).build();
     }
 
     // ----------------------------------------------------------------------
@@ -495,35 +1092,184 @@ public class DefaultConverter implements Converter {
     // ----------------------------------------------------------------------
 
     /**
-     * @param inputFile a not null existing file.
-     * @param inputEncoding a not null supported encoding or {@link InputFileWrapper#AUTO_ENCODING}
-     * @param parserFormat  a not null supported format or {@link InputFileWrapper#AUTO_FORMAT}
-     * @param output not null OutputFileWrapper object
-     * @throws ConverterException if any
-     * @throws UnsupportedFormatException if any
+     * The files of an input directory with the same content, of which only the first is parsed.
      */
-    private void convert(File inputFile, String inputEncoding, DoxiaFormat parserFormat, OutputFileWrapper output)
-            throws ConverterException, UnsupportedFormatException {
-        convert(inputFile, inputEncoding, parserFormat, output, null);
+    private static final class ContentGroup {
+        /** The other files, until the first one was written, then <code>null</code> */
+        private List<FileConversion> waiting = new ArrayList<>();
+
+        /** The output files of the first file, once written */
+        private List<File> outputFiles;
+
+        /** The first file, if it could not be converted while keeping going */
+        private File failed;
     }
 
     /**
+     * The state of the conversion of a single file, handed from stage to stage.
+     */
+    private static final class FileConversion {
+        private final Conversion conversion;
+
+        private final File inputFile;
+
+        private final DoxiaFormat parserFormat;
+
+        /** The file written for each target format */
+        private final List<TargetFile> targets;
+
+        /** The directory of the input file relative to the input directory, <code>null</code> for a single file */
+        private final File relativeDirectory;
+
+        /** The size of the input file, only known for the files of an input directory */
+        private long size;
+
+        /** The modification time of the input file, only known for the files of an input directory */
+        private long lastModified;
+
+        /** The hash of the content of the input file, only if converting incrementally, caching or deduplicating */
+        private String hash;
+
+        /** The files with the same content, only for the files of an input directory */
+        private ContentGroup contentGroup;
+
+        /** Whether another file of the content group is parsed, and its outputs are written for this file as well */
+        private boolean duplicate;
+
+        /** Whether the input file did not change since the last conversion and is not converted again */
+        private boolean unchanged;
+
+        /** Whether the outputs were found in the cache and are written without parsing */
+        private boolean cached;
+
+        /** Whether the heap governor admitted the conversion and has to be told when it is done */
+        private boolean holdsHeap;
+
+        /** The expected cost of the conversion, only known if the files are scheduled by size or cost */
+        private long cost;
+
+        /** The encoding of the input file, resolved when reading it */
+        private String inputEncoding;
+
+        /** Only set for Velocity templates */
+        private VelocityMasker velocityMasker;
+
+        /** The decoded input document, until parsed */
+        private String source;
+
+        /** Opens the masked input document of a Velocity template instead, which is read while it is parsed */
+        private IOSupplier<Reader> maskedSource;
+
+        /** The length of the input document, to size the output */
+        private int sourceLength;
+
+        FileConversion(
+                Conversion conversion,
+                File inputFile,
+                String inputEncoding,
+                DoxiaFormat parserFormat,
+                List<TargetFile> targets,
+                File relativeDirectory) {
+            this.conversion = conversion;
+            this.inputFile = inputFile;
+            this.inputEncoding = inputEncoding;
+            this.parserFormat = parserFormat;
+            this.targets = targets;
+            this.relativeDirectory = relativeDirectory;
+        }
+
+        /**
+         * @return the path of the input file relative to the input directory, with <code>/</code> as separator
+         */
+        String getRelativePath() {
+            return DefaultConverter.getRelativePath(relativeDirectory, inputFile);
+        }
+
+        boolean isVelocityTemplate() {
+            return inputFile.getName().endsWith(VELOCITY_TEMPLATE_EXTENSION);
+        }
+    }
+
+    /**
+     * The output of a {@link FileConversion} in one of the target formats.
+     */
+    private static final class TargetFile {
+        private final OutputFileWrapper output;
+
+        private final File outputFile;
+
+        /** The encoding of the output file, resolved when reading the input file */
+        private String outputEncoding;
+
+        /** The encoded output document, until written */
+        private byte[] rendered;
+
+        /** The temporary file the output document is rendered to instead of memory, until moved to the output file */
+        private Path renderedFile;
+
+        /** Restored the Velocity constructs while the document was rendered, if the output encoding allows it */
+        private UnmaskingOutputStream unmasking;
+
+        /** The key of the output in the cache, only if there is a cache */
+        private String cacheKey;
+
+        TargetFile(OutputFileWrapper output, File outputFile) {
+            this.output = output;
+            this.outputFile = outputFile;
+        }
+
+        DoxiaFormat getFormat() {
+            return output.getFormat();
+        }
+    }
+
+    /**
+     * @param relativeDirectory the directory of the input file relative to the input directory, may be null
+     * @param inputFile the input file
+     * @return the path of the input file relative to the input directory, with <code>/</code> as separator
+     */
+    private static String getRelativePath(File relativeDirectory, File inputFile) {
+        String directory = relativeDirectory != null ? relativeDirectory.getPath() : "";
+        if (directory.isEmpty()) {
+            return inputFile.getName();
+        }
+        return directory.replace(File.separatorChar, '/') + '/' + inputFile.getName();
+    }
+
+    /**
+     * @param conversion the conversion the file belongs to
      * @param inputFile a not null existing file.
      * @param inputEncoding a not null supported encoding or {@link InputFileWrapper#AUTO_ENCODING}
      * @param parserFormat  a not null supported format
-     * @param output not null OutputFileWrapper object
+     * @param outputs not null OutputFileWrapper objects, one for each target format
      * @param relativeOutputDirectory the relative output directory (may be null, created if it does not exist yet)
-     * @return the output file
-     * @throws ConverterException if any
-     * @throws UnsupportedFormatException if any
+     * @return the conversion of the file, to be passed to {@link #read(FileConversion)},
+     * {@link #parse(FileConversion)} and {@link #finish(FileConversion)}
      */
-    private File convert(
+    private static FileConversion newFileConversion(
+            Conversion conversion,
             File inputFile,
             String inputEncoding,
             DoxiaFormat parserFormat,
-            OutputFileWrapper output,
-            File relativeOutputDirectory)
-            throws ConverterException, UnsupportedFormatException {
+            List<OutputFileWrapper> outputs,
+            File relativeOutputDirectory) {
+        List<TargetFile> targets = new ArrayList<>(outputs.size());
+        for (OutputFileWrapper output : outputs) {
+            File outputFile = getOutputFile(inputFile, inputEncoding, output, relativeOutputDirectory);
+            targets.add(new TargetFile(output, outputFile));
+        }
+        return new FileConversion(conversion, inputFile, inputEncoding, parserFormat, targets, relativeOutputDirectory);
+    }
+
+    /**
+     * @param inputFile a not null existing file.
+     * @param inputEncoding the encoding of the input file, only logged
+     * @param output not null OutputFileWrapper object
+     * @param relativeOutputDirectory the relative output directory (may be null, created if it does not exist yet)
+     * @return the file to write the converted input file to
+     */
+    private static File getOutputFile(
+            File inputFile, String inputEncoding, OutputFileWrapper output, File relativeOutputDirectory) {
         File outputDirectoryOrFile = relativeOutputDirectory != null
                 ? new File(output.getFile(), relativeOutputDirectory.getPath())
                 : output.getFile();
@@ -534,139 +1280,634 @@ public class DefaultConverter implements Converter {
                 outputDirectoryOrFile.getAbsolutePath(),
                 output.getEncoding());
 
-        if (InputFileWrapper.AUTO_ENCODING.equals(inputEncoding)) {
-            inputEncoding = autoDetectEncoding(inputFile);
-            LOGGER.debug("Auto detected encoding: '{}'", inputEncoding);
-        }
-
-        boolean isVelocityTemplate = inputFile.getName().endsWith(VELOCITY_TEMPLATE_EXTENSION);
-        Parser parser = parserFormat.getParser(parsers, MacroFormatter.forFormat(output.getFormat()));
-
-        File outputFile;
         if (outputDirectoryOrFile.isDirectory()
                 || !SelectorUtils.match("**.*", output.getFile().getName())
                 || relativeOutputDirectory != null) {
             // assume it is a directory
             outputDirectoryOrFile.mkdirs();
-            final String outputFileName;
-            if (isVelocityTemplate) {
-                outputFileName = FileUtils.removeExtension(inputFile
-                                .getName()
-                                .substring(0, inputFile.getName().length() - VELOCITY_TEMPLATE_EXTENSION.length()))
-                        + "."
-                        + output.getFormat().getExtension()
-                        + VELOCITY_TEMPLATE_EXTENSION;
+            return new File(outputDirectoryOrFile, getOutputFileName(inputFile.getName(), output.getFormat()));
+        }
+        outputDirectoryOrFile.getParentFile().mkdirs();
+        return output.getFile();
+    }
+
+    /**
+     * @param inputFileName the name of an input file
+     * @param outputFormat the target format
+     * @return the name of the output file in an output directory
+     */
+    private static String getOutputFileName(String inputFileName, DoxiaFormat outputFormat) {
+        if (inputFileName.endsWith(VELOCITY_TEMPLATE_EXTENSION)) {
+            return FileUtils.removeExtension(
+                            inputFileName.substring(0, inputFileName.length() - VELOCITY_TEMPLATE_EXTENSION.length()))
+                    + "."
+                    + outputFormat.getExtension()
+                    + VELOCITY_TEMPLATE_EXTENSION;
+        }
+        return FileUtils.removeExtension(inputFileName) + "." + outputFormat.getExtension();
+    }
+
+    /**
+     * Reads and decodes the input file, and masks the Velocity constructs of templates. A template is not read here
+     * beyond what detecting its encoding takes: it is streamed from the file while the parser reads it, and its hash
+     * is computed from the file as well.
+     *
+     * @param file the conversion of the file
+     * @throws ConverterException if any
+     */
+    private void read(FileConversion file) throws ConverterException {
+        ConversionOptions options = file.conversion.options;
+        HeapGovernor heapGovernor = file.conversion.heapGovernor;
+        if (heapGovernor != null) {
+            try {
+                heapGovernor.acquire(file.size);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ConverterException("Interrupted while waiting for heap: " + e.getMessage(), e);
+            }
+            file.holdsHeap = true;
+        }
+        Path path = file.inputFile.toPath();
+        boolean streamed = file.isVelocityTemplate();
+        // the whole content, or only its beginning for a template
+        byte[] bytes;
+        try {
+            if (streamed) {
+                bytes = FileProbe.readPrefix(file.inputFile);
+                file.sourceLength = (int) Math.min(Files.size(path), MAX_SOURCE_LENGTH);
+                if (file.relativeDirectory != null) {
+                    file.hash = ConversionManifest.hash(path);
+                }
             } else {
-                outputFileName = FileUtils.removeExtension(inputFile.getName()) + "."
-                        + output.getFormat().getExtension();
+                bytes = Files.readAllBytes(path);
+                file.sourceLength = bytes.length;
+            }
+        } catch (IOException e) {
+            throw new ConverterException("IOException: " + e.getMessage(), e);
+        }
+        ConversionManifest manifest = file.conversion.manifest;
+        if (manifest != null && file.relativeDirectory != null) {
+            // only touched since the last conversion if the content is the same
+            if (file.hash == null) {
+                file.hash = ConversionManifest.hash(bytes);
+            }
+            if (manifest.keepIfUnchanged(file.getRelativePath(), file.size, file.lastModified, file.hash)) {
+                file.unchanged = true;
+                file.conversion.unchanged.incrementAndGet();
+                return;
             }
-            outputFile = new File(outputDirectoryOrFile, outputFileName);
-        } else {
-            outputDirectoryOrFile.getParentFile().mkdirs();
-            outputFile = output.getFile();
+        }
+        if (InputFileWrapper.AUTO_ENCODING.equals(file.inputEncoding)) {
+            if (options.getInputEncoding() != null) {
+                file.inputEncoding = options.getInputEncoding();
+            } else if (file.conversion.encodings != null && !file.parserFormat.isXml()) {
+                // XML files declare their encoding. Only the beginning of a template is checked against the
+                // encoding of its directory
+                file.inputEncoding = requireEncoding(
+                        file.inputFile, file.conversion.encodings.getEncoding(file.relativeDirectory, bytes));
+                LOGGER.debug("Encoding of \"{}\": '{}'", file.inputFile, file.inputEncoding);
+            } else {
+                // probed from the content already read rather than reading the file again
+                file.inputEncoding = requireEncoding(file.inputFile, FileProbe.of(bytes).getEncoding());
+                LOGGER.debug("Auto detected encoding: '{}'", file.inputEncoding);
+            }
+        }
+
+        for (TargetFile target : file.targets) {
+            String outputEncoding = target.output.getEncoding();
+            if (StringUtils.isEmpty(outputEncoding) || outputEncoding.equals(OutputFileWrapper.AUTO_ENCODING)) {
+                outputEncoding =
+                        options.getOutputEncoding() != null ? options.getOutputEncoding() : file.inputEncoding;
+            }
+            target.outputEncoding = outputEncoding;
+        }
+
+        if (file.relativeDirectory != null
+                && options.getPostProcess() != PostProcess.GIT_MV_INPUT_TO_OUTPUT
+                && joinContentGroup(file, bytes)) {
+            return;
+        }
+        if (file.conversion.cache != null && !streamed && takeFromCache(file, bytes)) {
+            return;
         }
 
-        Reader reader;
         try {
-            if (inputEncoding != null) {
-                if (parser.getType() == Parser.XML_TYPE) {
-                    reader = XmlStreamReader.builder().setFile(inputFile).get();
-                } else {
-                    reader = new InputStreamReader(Files.newInputStream(inputFile.toPath()), inputEncoding);
+            // a *.vm source is only valid markup after Velocity has run, so hide the Velocity constructs
+            // from the parser and put them back into the converted document afterwards. The template is
+            // masked while the parser reads it from the file, so that it is never held in full
+            if (streamed) {
+                file.velocityMasker = new VelocityMasker();
+                file.maskedSource = file.velocityMasker.mask(
+                        () -> decode(file, new BufferedInputStream(Files.newInputStream(path))));
+            } else if (file.inputEncoding != null && file.parserFormat.isXml()) {
+                try (Reader reader = decode(file, new ByteArrayInputStream(bytes))) {
+                    file.source = IOUtils.toString(reader);
                 }
             } else {
-                reader = Files.newBufferedReader(inputFile.toPath());
+                file.source = new String(bytes, getInputCharset(file));
             }
         } catch (IOException e) {
             throw new ConverterException("IOException: " + e.getMessage(), e);
         }
+    }
 
-        // a *.vm source is only valid markup after Velocity has run, so hide the Velocity constructs
-        // from the parser and put them back into the converted document afterwards
-        final VelocityMasker velocityMasker;
-        if (isVelocityTemplate) {
-            velocityMasker = new VelocityMasker();
-            try (Reader r = reader) {
-                reader = new StringReader(velocityMasker.mask(IOUtils.toString(r)));
-            } catch (IOException e) {
-                throw new ConverterException("IOException: " + e.getMessage(), e);
-            }
-        } else {
-            velocityMasker = null;
+    /**
+     * @param file the conversion of the file, with its encoding resolved
+     * @param in the content of the input file
+     * @return the decoded content of the input file
+     * @throws IOException if the encoding declared by an XML file is not supported
+     */
+    private static Reader decode(FileConversion file, InputStream in) throws IOException {
+        if (file.inputEncoding != null && file.parserFormat.isXml()) {
+            return XmlStreamReader.builder().setInputStream(in).get();
         }
+        return new InputStreamReader(in, getInputCharset(file));
+    }
 
-        SinkFactory sinkFactory = output.getFormat().getSinkFactory(sinkFactories);
+    private static Charset getInputCharset(FileConversion file) {
+        return file.inputEncoding != null ? Charset.forName(file.inputEncoding) : StandardCharsets.UTF_8;
+    }
 
-        final String outputEncoding;
-        if (StringUtils.isEmpty(output.getEncoding()) || output.getEncoding().equals(OutputFileWrapper.AUTO_ENCODING)) {
-            outputEncoding = inputEncoding;
-        } else {
-            outputEncoding = output.getEncoding();
+    /**
+     * Finds the file of the conversion with the same content which is parsed for all of them. Besides the content,
+     * the file has to agree with it in the encodings and in being a Velocity template, as everything else is the same
+     * for all files of a conversion. Files moved with git are never grouped, as their output files are replaced by
+     * the input files.
+     *
+     * @param file the conversion of the file, with resolved encodings
+     * @param bytes the content of the input file
+     * @return <code>true</code> if another file with the same content is parsed, so this one need not be
+     */
+    private static boolean joinContentGroup(FileConversion file, byte[] bytes) {
+        if (file.hash == null) {
+            file.hash = ConversionManifest.hash(bytes);
+        }
+        StringBuilder key = new StringBuilder(file.hash)
+                .append(' ')
+                .append(file.isVelocityTemplate())
+                .append(' ')
+                .append(file.inputEncoding);
+        for (TargetFile target : file.targets) {
+            key.append(' ').append(target.outputEncoding);
         }
+        ContentGroup group = new ContentGroup();
+        ContentGroup first = file.conversion.contents.putIfAbsent(key.toString(), group);
+        if (first == null) {
+            file.contentGroup = group;
+            return false;
+        }
+        file.contentGroup = first;
+        file.duplicate = true;
+        file.conversion.duplicates.incrementAndGet();
+        return true;
+    }
 
-        Sink sink;
+    /**
+     * Looks up the outputs of the file in the cache. Velocity templates are never cached, as restoring the Velocity
+     * constructs may warn about the converted document.
+     *
+     * @param file the conversion of the file, with resolved encodings
+     * @param bytes the content of the input file
+     * @return <code>true</code> if all outputs were found, so the file need not be parsed
+     */
+    private boolean takeFromCache(FileConversion file, byte[] bytes) {
+        if (file.hash == null) {
+            file.hash = ConversionManifest.hash(bytes);
+        }
+        boolean found = true;
+        for (TargetFile target : file.targets) {
+            target.cacheKey = ConversionCache.key(
+                    file.hash,
+                    file.parserFormat,
+                    file.inputEncoding,
+                    target.getFormat(),
+                    target.outputEncoding,
+                    file.conversion.options.isFormatOutput(),
+                    components.getModuleVersions(file.parserFormat, target.getFormat()));
+            if (found) {
+                target.rendered = file.conversion.cache.get(target.cacheKey);
+                found = target.rendered != null;
+            }
+        }
+        if (!found) {
+            file.targets.forEach(target -> target.rendered = null);
+            return false;
+        }
+        file.cached = true;
+        file.conversion.cached.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Parses the decoded input document into a sink of each output format, rendering into memory. A document with
+     * several target formats is parsed once, into a {@link TeeSink} forwarding the events to the sinks of all of them.
+     * The output of a template read from its file while it is parsed is compared with the existing output file before
+     * being written as well, but a large template is rendered to a temporary file next to the output file instead.
+     *
+     * @param file the conversion of the file, already read
+     * @throws ConverterException if any
+     * @throws UnsupportedFormatException if any
+     */
+    private void parse(FileConversion file) throws ConverterException, UnsupportedFormatException {
+        if (file.unchanged || file.cached || file.duplicate) {
+            return;
+        }
+        List<DoxiaFormat> formats = new ArrayList<>(file.targets.size());
+        List<OutputStream> outs = new ArrayList<>(file.targets.size());
+        List<Sink> sinks = new ArrayList<>(file.targets.size());
         try {
-            OutputStream out = new FileOutputStream(outputFile);
-            sink = sinkFactory.createSink(out, outputEncoding);
+            for (TargetFile target : file.targets) {
+                SinkFactory sinkFactory = components.getSinkFactory(target.getFormat());
+                OutputStream out = openOutput(file, target);
+                outs.add(out);
+                OutputStream sinkOut = out;
+                if (file.velocityMasker != null) {
+                    Charset charset = Charset.forName(target.outputEncoding);
+                    if (UnmaskingOutputStream.supports(charset)) {
+                        target.unmasking = new UnmaskingOutputStream(out, file.velocityMasker, charset);
+                        sinkOut = target.unmasking;
+                    }
+                }
+                sinks.add(sinkFactory.createSink(sinkOut, target.outputEncoding));
+                formats.add(target.getFormat());
+            }
+            render(file, formats, sinks);
+            for (int i = 0; i < file.targets.size(); i++) {
+                TargetFile target = file.targets.get(i);
+                OutputStream out = outs.get(i);
+                if (target.unmasking != null) {
+                    // not every sink closes its stream, and the end of the document may still be held back
+                    target.unmasking.close();
+                }
+                out.close();
+                if (target.renderedFile == null) {
+                    target.rendered = ((ByteArrayOutputStream) out).toByteArray();
+                }
+            }
         } catch (IOException e) {
             throw new ConverterException("IOException: " + e.getMessage(), e);
+        } finally {
+            // so that the temporary files can be deleted if the conversion failed
+            outs.forEach(IOUtils::closeQuietly);
         }
+    }
 
-        LOGGER.debug("Sink used: {}", sink.getClass().getName());
+    /**
+     * @param file the conversion of the file, already read
+     * @param formats the target formats
+     * @param sinks the sink of each target format
+     * @throws ConverterException if any
+     * @see #parse(FileConversion)
+     */
+    private void render(FileConversion file, List<DoxiaFormat> formats, List<Sink> sinks) throws ConverterException {
+        Sink sink = sinks.size() == 1 ? sinks.get(0) : new TeeSink(formats, sinks).getSink();
+
+        LOGGER.debug("Sink used: {}", sink);
+        long start = System.nanoTime();
+        long splitSize = file.conversion.options.getDocumentSplitSize();
+        // with several target formats the macro executor of any of them writes each sink its own macros
+        DoxiaFormat targetFormat = formats.get(0);
         try (Sink s = sink) {
-            parse(parser, reader, s);
+            if (file.maskedSource != null) {
+                // the template is only opened here, so that it is closed whatever happens to the conversion
+                try (Reader reader = file.maskedSource.get()) {
+                    if (splitSize != 0 && file.sourceLength >= splitSize) {
+                        // the chunks are split from the whole document
+                        file.source = IOUtils.toString(reader);
+                    } else {
+                        parse(file.parserFormat, targetFormat, reader, s);
+                    }
+                }
+            }
+            if (file.source != null
+                    && (splitSize == 0
+                            || file.source.length() < splitSize
+                            || !chunkedParser.parse(
+                                    file.parserFormat,
+                                    targetFormat,
+                                    file.source,
+                                    file.conversion.options.getThreads(),
+                                    file.conversion::getPartExecutor,
+                                    s))) {
+                parse(file.parserFormat, targetFormat, new StringReader(file.source), s);
+            }
         } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
             throw new ConverterException(
-                    "Error converting file \"" + inputFile.getAbsolutePath() + "\": " + e.getMessage(), e);
+                    "Error converting file \"" + file.inputFile.getAbsolutePath() + "\": " + e.getMessage(), e);
         }
-        if (velocityMasker != null) {
-            restoreVelocityConstructs(velocityMasker, outputFile, outputEncoding);
+        if (file.conversion.costs != null && file.relativeDirectory != null) {
+            file.conversion.costs.record(file.getRelativePath(), System.nanoTime() - start);
         }
-        if (formatOutput && output.getFormat().isXml()) {
-            try (Reader r = XmlStreamReader.builder().setFile(outputFile).get();
-                    Writer w = XmlStreamWriter.builder().setFile(outputFile).get()) {
-                CharArrayWriter caw = new CharArrayWriter();
-                XmlUtil.prettyFormat(r, caw);
-                w.write(caw.toString());
-            } catch (IOException e) {
-                throw new ConverterException("IOException: " + e.getMessage(), e);
+        file.source = null;
+        file.maskedSource = null;
+    }
+
+    /**
+     * Opens the stream the output document of a target is rendered to. A large template is rendered to a temporary
+     * file next to the output file, provided its Velocity constructs are restored while rendering and the output is
+     * not formatted afterwards, as both need the whole document. Any other document is rendered into a buffer, which
+     * starts small as the size of the input tells little about the size of the output.
+     *
+     * @param file the conversion of the file, already read
+     * @param target the output
+     * @return the stream to render the output document to
+     * @throws IOException if the temporary file could not be created
+     */
+    private static OutputStream openOutput(FileConversion file, TargetFile target) throws IOException {
+        if (file.velocityMasker != null
+                && file.sourceLength >= RENDER_TO_FILE_SIZE
+                && UnmaskingOutputStream.supports(Charset.forName(target.outputEncoding))
+                && !(file.conversion.options.isFormatOutput() && target.getFormat().isXml())) {
+            target.renderedFile = OutputFiles.createTemporaryFile(target.outputFile.toPath());
+            return new BufferedOutputStream(Files.newOutputStream(target.renderedFile));
+        }
+        return new ByteArrayOutputStream((int) Math.min(file.sourceLength + file.sourceLength / 2L, MAX_OUTPUT_BUFFER));
+    }
+
+    /**
+     * Restores the Velocity constructs, formats and writes the output document, and post processes the input file.
+     *
+     * @param file the conversion of the file, already parsed
+     * @throws ConverterException if any
+     */
+    private void finish(FileConversion file) throws ConverterException {
+        try {
+            if (file.unchanged) {
+                return;
+            }
+            if (file.duplicate) {
+                writeDuplicate(file);
+            } else {
+                write(file);
             }
+        } finally {
+            release(file);
         }
-        LOGGER.info(
-                "Successfully converted file \"{}\" to \"{}\"",
-                inputFile.getAbsolutePath(),
-                outputFile.getAbsolutePath());
+    }
+
+    /**
+     * Records a file in the manifest once its outputs are written, so that the next conversion can skip it.
+     *
+     * @param file the conversion of the file, with all outputs written
+     */
+    private static void record(FileConversion file) {
+        ConversionManifest manifest = file.conversion.manifest;
+        if (manifest != null && file.relativeDirectory != null) {
+            List<File> outputFiles = new ArrayList<>(file.targets.size());
+            file.targets.forEach(target -> outputFiles.add(target.outputFile));
+            manifest.record(file.getRelativePath(), file.size, file.lastModified, file.hash, outputFiles);
+        }
+    }
+
+    /**
+     * Releases what the conversion of the given file holds once it is done, successful or not: the heap the governor
+     * admitted it with, and the temporary files its outputs were rendered to, unless moved to the output files.
+     *
+     * @param file the conversion of the file
+     */
+    private static void release(FileConversion file) {
+        if (file.holdsHeap) {
+            file.holdsHeap = false;
+            file.conversion.heapGovernor.release(file.size);
+        }
+        for (TargetFile target : file.targets) {
+            if (target.renderedFile != null) {
+                try {
+                    Files.deleteIfExists(target.renderedFile);
+                } catch (IOException e) {
+                    LOGGER.warn("Could not delete \"{}\": {}", target.renderedFile, e.getMessage());
+                }
+                target.renderedFile = null;
+            }
+        }
+    }
+
+    /**
+     * @param file the conversion of the file, already parsed
+     * @throws ConverterException if any
+     * @see #finish(FileConversion)
+     */
+    private void write(FileConversion file) throws ConverterException {
+        List<byte[]> contents = new ArrayList<>(file.targets.size());
+        for (TargetFile target : file.targets) {
+            byte[] rendered = target.rendered;
+            target.rendered = null;
+            if (target.unmasking != null) {
+                warnAboutVelocityConstructs(
+                        file.velocityMasker, target.unmasking.getNewReferences(), target.outputFile);
+                target.unmasking = null;
+            } else if (file.velocityMasker != null) {
+                rendered = restoreVelocityConstructs(
+                        file.velocityMasker, rendered, target.outputEncoding, target.outputFile);
+            }
+            if (rendered != null
+                    && !file.cached
+                    && file.conversion.options.isFormatOutput()
+                    && target.getFormat().isXml()) {
+                try {
+                    rendered = OutputFiles.prettyFormat(rendered);
+                } catch (IOException e) {
+                    throw new ConverterException("IOException: " + e.getMessage(), e);
+                }
+            }
+            byte[] content = rendered;
+            Path outputFile = target.outputFile.toPath();
+            boolean untouched = writeOutput(
+                    file.conversion,
+                    target.renderedFile != null
+                            ? () -> OutputFiles.write(outputFile, target.renderedFile, true)
+                            : () -> OutputFiles.write(outputFile, content));
+            target.renderedFile = null;
+            if (!file.cached && target.cacheKey != null) {
+                file.conversion.cache.put(target.cacheKey, rendered);
+            }
+            LOGGER.info(
+                    "Successfully converted file \"{}\" to \"{}\"{}{}",
+                    file.inputFile.getAbsolutePath(),
+                    target.outputFile.getAbsolutePath(),
+                    file.cached ? " from the cache" : "",
+                    untouched ? ", which already had this content" : "");
+            // a document rendered to a file is copied from its output file
+            contents.add(rendered);
+        }
+        record(file);
+        postProcessFile(file);
+        ContentGroup group = file.contentGroup;
+        if (group != null) {
+            List<FileConversion> waiting;
+            synchronized (group) {
+                group.outputFiles = new ArrayList<>(file.targets.size());
+                file.targets.forEach(target -> group.outputFiles.add(target.outputFile));
+                waiting = group.waiting;
+                group.waiting = null;
+            }
+            for (FileConversion duplicate : waiting) {
+                try {
+                    writeDuplicate(duplicate, contents);
+                } catch (ConverterException e) {
+                    if (!file.conversion.options.isKeepGoing()) {
+                        throw e;
+                    }
+                    fail(duplicate, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the outputs of a file with the same content as another file. If the other file was not written yet,
+     * this is left to it, so that no thread waits for another.
+     *
+     * @param file the conversion of the file, not parsed
+     * @throws ConverterException if any
+     */
+    private static void writeDuplicate(FileConversion file) throws ConverterException {
+        ContentGroup group = file.contentGroup;
+        synchronized (group) {
+            if (group.failed != null) {
+                throw new ConverterException(
+                        "Same content as \"" + group.failed.getAbsolutePath() + "\", which could not be converted");
+            }
+            if (group.outputFiles == null) {
+                group.waiting.add(file);
+                return;
+            }
+        }
+        // copied from the output files rather than read into memory
+        writeDuplicate(file, Collections.nCopies(group.outputFiles.size(), null));
+    }
+
+    /**
+     * @param file the conversion of the file, not parsed
+     * @param contents the content of each output of the file with the same content, <code>null</code> where it is
+     *     copied from the output file
+     * @throws ConverterException if any
+     */
+    private static void writeDuplicate(FileConversion file, List<byte[]> contents) throws ConverterException {
+        for (int i = 0; i < file.targets.size(); i++) {
+            TargetFile target = file.targets.get(i);
+            Path outputFile = target.outputFile.toPath();
+            byte[] content = contents.get(i);
+            Path copied = file.contentGroup.outputFiles.get(i).toPath();
+            boolean untouched = writeOutput(
+                    file.conversion,
+                    content != null
+                            ? () -> OutputFiles.write(outputFile, content)
+                            : () -> OutputFiles.write(outputFile, copied, false));
+            LOGGER.info(
+                    "Successfully converted file \"{}\" to \"{}\" as a copy of an identical file{}",
+                    file.inputFile.getAbsolutePath(),
+                    target.outputFile.getAbsolutePath(),
+                    untouched ? ", which already had this content" : "");
+        }
+        record(file);
+        postProcessFile(file);
+    }
+
+    /**
+     * Records a file which could not be converted while keeping going. If it is the first of several files with the
+     * same content, the others fail as well.
+     *
+     * @param file the conversion of the file
+     * @param cause why it could not be converted
+     */
+    private static void fail(FileConversion file, Exception cause) {
+        LOGGER.error("Could not convert file \"{}\": {}", file.inputFile.getAbsolutePath(), cause.getMessage());
+        file.conversion.failures.add(new BatchConversionException.Failure(file.inputFile, cause));
+        if (file.conversion.manifest != null && file.relativeDirectory != null) {
+            // the input file still exists, so its outputs of the last conversion are not stale
+            file.conversion.manifest.keepFailed(file.getRelativePath());
+        }
+        ContentGroup group = file.contentGroup;
+        if (group == null || file.duplicate) {
+            return;
+        }
+        List<FileConversion> waiting;
+        synchronized (group) {
+            if (group.outputFiles != null) {
+                return;
+            }
+            group.failed = file.inputFile;
+            waiting = group.waiting;
+            group.waiting = null;
+        }
+        for (FileConversion duplicate : waiting) {
+            fail(
+                    duplicate,
+                    new ConverterException("Same content as \"" + file.inputFile.getAbsolutePath()
+                            + "\", which could not be converted"));
+        }
+    }
+
+    /**
+     * Writes an output file, unless it already has the same content.
+     *
+     * @param conversion the conversion the file belongs to
+     * @param write writes the output file, telling whether it was left alone as it already had the content
+     * @return <code>true</code> if the file was left alone
+     * @throws ConverterException if any
+     */
+    private static boolean writeOutput(Conversion conversion, IOSupplier<Boolean> write) throws ConverterException {
+        boolean untouched;
+        try {
+            untouched = write.get();
+        } catch (IOException e) {
+            throw new ConverterException("IOException: " + e.getMessage(), e);
+        }
+        (untouched ? conversion.untouched : conversion.written).incrementAndGet();
+        return untouched;
+    }
+
+    /**
+     * Removes or moves the input file, once it was written in all target formats.
+     *
+     * @param file the conversion of the file, written
+     * @throws ConverterException if any
+     */
+    private static void postProcessFile(FileConversion file) throws ConverterException {
         try {
-            postProcessFile(inputFile, outputFile);
+            postProcessFile(file.conversion, file.inputFile, file.targets.get(0).outputFile);
+            if (file.conversion.journal != null) {
+                file.conversion.journal.done(file.getRelativePath());
+            }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new ConverterException("Error post processing files: " + e.getMessage(), e);
         } catch (IOException e) {
             throw new ConverterException("Error post processing files: " + e.getMessage(), e);
         }
-        return outputFile;
     }
 
     /**
      * Substitutes the Velocity constructs taken out of the source back into the converted document
-     * and reports the two cases the substitution cannot make good by itself.
+     * and reports the two cases the substitution cannot make good by itself. Only needed for output
+     * encodings which an {@link UnmaskingOutputStream} cannot restore while rendering.
      *
      * @param velocityMasker the masker holding the constructs taken out of the source
-     * @param outputFile the converted document
+     * @param rendered the converted document
      * @param outputEncoding the encoding the document was written with
-     * @throws ConverterException if the document cannot be read back or rewritten
+     * @param outputFile the file the document is written to
+     * @return the converted document with the Velocity constructs restored
      */
-    private void restoreVelocityConstructs(VelocityMasker velocityMasker, File outputFile, String outputEncoding)
-            throws ConverterException {
+    private static byte[] restoreVelocityConstructs(
+            VelocityMasker velocityMasker, byte[] rendered, String outputEncoding, File outputFile) {
         Charset charset = Charset.forName(outputEncoding);
-        String converted;
-        try {
-            converted = velocityMasker.unmask(new String(Files.readAllBytes(outputFile.toPath()), charset));
-            Files.write(outputFile.toPath(), converted.getBytes(charset));
-        } catch (IOException e) {
-            throw new ConverterException("IOException: " + e.getMessage(), e);
-        }
-        for (String reference : velocityMasker.findNewReferences(converted)) {
+        String converted = velocityMasker.unmask(new String(rendered, charset));
+        warnAboutVelocityConstructs(velocityMasker, velocityMasker.findNewReferences(converted), outputFile);
+        return converted.getBytes(charset);
+    }
+
+    /**
+     * @param velocityMasker the masker holding the constructs taken out of the source
+     * @param newReferences the references of the converted document which were not in the source
+     * @param outputFile the file the document is written to
+     */
+    private static void warnAboutVelocityConstructs(
+            VelocityMasker velocityMasker, List<String> newReferences, File outputFile) {
+        for (String reference : newReferences) {
             LOGGER.warn(
                     "\"{}\" was written literally in the source but is a live Velocity reference in \"{}\", "
                             + "so escape it there",
@@ -683,14 +1924,16 @@ public class DefaultConverter implements Converter {
     }
 
     /**
-     * @param parser not null
+     * @param sourceFormat not null
+     * @param targetFormat not null, decides how macros are written
      * @param reader not null
      * @param sink not null
      * @throws ConverterException if any
      */
-    private void parse(Parser parser, Reader reader, Sink sink) throws ConverterException {
+    private void parse(DoxiaFormat sourceFormat, DoxiaFormat targetFormat, Reader reader, Sink sink)
+            throws ConverterException {
         try (Reader r = reader) {
-            parser.parse(r, sink);
+            components.parse(sourceFormat, targetFormat, r, sink);
         } catch (ParseException e) {
             throw new ConverterException(
                     "ParseException in line " + e.getLineNumber() + ", column " + e.getColumnNumber() + ": "
@@ -703,38 +1946,45 @@ public class DefaultConverter implements Converter {
 
     /**
      * @param f not null file
-     * @return the detected encoding for f or <code>null</code> if not able to detect it.
+     * @return the detected encoding for f.
      * @throws IllegalArgumentException if f is not a file.
      * @throws UnsupportedOperationException if could not detect the file encoding.
-     * @see XmlStreamReader#getEncoding() for xml files
-     * @see CharsetDetector#detect() for text files
+     * @see FileProbe#getEncoding()
      */
     static String autoDetectEncoding(File f) {
         if (!f.isFile()) {
             throw new IllegalArgumentException(
                     "The file '" + f.getAbsolutePath() + "' is not a file, could not detect encoding.");
         }
-        try {
-            if (XmlUtil.isXml(f)) {
-                try (XmlStreamReader reader =
-                        XmlStreamReader.builder().setFile(f).get()) {
-                    return reader.getEncoding();
-                }
-            }
+        FileProbe probe = probe(f);
+        return requireEncoding(f, probe != null ? probe.getEncoding() : null);
+    }
 
-            try (InputStream is = new BufferedInputStream(new FileInputStream(f))) {
-                CharsetDetector detector = new CharsetDetector();
-                detector.setText(is);
-                CharsetMatch match = detector.detect();
+    /**
+     * @param f not null file
+     * @param encoding the detected encoding, may be null
+     * @return the detected encoding for f
+     * @throws UnsupportedOperationException if could not detect the file encoding.
+     */
+    private static String requireEncoding(File f, String encoding) {
+        if (encoding == null) {
+            throw new UnsupportedOperationException(format(
+                    "Could not detect the encoding for file: %s\n" + "Specify explicitly the encoding.",
+                    f.getAbsolutePath()));
+        }
+        return encoding;
+    }
 
-                return match.getName().toUpperCase(Locale.ENGLISH);
-            }
+    /**
+     * @param f not null file
+     * @return the probe of the beginning of the file, or <code>null</code> if it could not be read
+     */
+    private static FileProbe probe(File f) {
+        try {
+            return FileProbe.of(f);
         } catch (IOException e) {
-            // nop
+            return null;
         }
-        throw new UnsupportedOperationException(format(
-                "Could not detect the encoding for file: %s\n" + "Specify explicitly the encoding.",
-                f.getAbsolutePath()));
     }
 
     /**
@@ -747,33 +1997,4 @@ public class DefaultConverter implements Converter {
 
         return extension.equals(FileUtils.getExtension(name.toLowerCase(Locale.ENGLISH)));
     }
-
-    /**
-     * @param xmlFile not null and should be a file.
-     * @return the first tag name if found, <code>null</code> in other case.
-     */
-    private static String getFirstTag(File xmlFile) {
-        if (xmlFile == null) {
-            throw new IllegalArgumentException("xmlFile is required.");
-        }
-        if (!xmlFile.isFile()) {
-            throw new IllegalArgumentException("The file '" + xmlFile.getAbsolutePath() + "' is not a file.");
-        }
-
-        try (Reader reader = XmlStreamReader.builder().setFile(xmlFile).get()) {
-            XmlPullParser parser = new MXParser();
-            parser.setInput(reader);
-            int eventType = parser.getEventType();
-            while (eventType != XmlPullParser.END_DOCUMENT) {
-                if (eventType == XmlPullParser.START_TAG) {
-                    return parser.getName();
-                }
-                eventType = parser.nextToken();
-            }
-        } catch (IOException | XmlPullParserException e) {
-            return null;
-        }
-
-        return null;
-    }
 }
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ibm.icu.text.CharsetMatch;
+
+/**
+ * Infers the encoding of the files of an input directory per directory rather than per file.
+ *
+ * <p>The encoding of the first files of each directory is detected one by one. If all samples agree with a high
+ * confidence, the other files of the directory are decoded with that encoding, and only those which are not valid in
+ * it are detected on their own. If the samples disagree, every file of the directory is detected on its own.</p>
+ *
+ * <p>A directory only settles on a Unicode encoding, as checking a file against it tells whether the file is in
+ * another encoding. Any content is valid in a single byte encoding such as ISO-8859-1, so a UTF-8 file would be
+ * decoded as garbage. Files of ASCII characters only are no samples, as ICU takes them to be ISO-8859-1 although they
+ * are just as well UTF-8.</p>
+ */
+class DirectoryEncodings {
+    /** The confidence from which ICU is taken to be sure about an encoding, out of 100 */
+    static final int MIN_CONFIDENCE = 60;
+
+    /** The samples of a single directory */
+    private static final class Samples {
+        private int count;
+
+        /** The encoding all samples agreed on so far */
+        private String encoding;
+
+        /** Whether the samples disagreed, or one of them was not sure */
+        private boolean mixed;
+    }
+
+    private final int sampleSize;
+
+    private final Map<File, Samples> directories = new ConcurrentHashMap<>();
+
+    private final AtomicInteger inferred = new AtomicInteger();
+
+    private final AtomicInteger detected = new AtomicInteger();
+
+    /**
+     * @param sampleSize the number of files per directory to detect before settling on an encoding, at least 1
+     */
+    DirectoryEncodings(int sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * @param relativeDirectory the directory of the file, relative to the input directory
+     * @param content the content of a file which is not XML
+     * @return the encoding of the file, or <code>null</code> if it could not be detected
+     */
+    String getEncoding(File relativeDirectory, byte[] content) {
+        Samples samples = directories.computeIfAbsent(relativeDirectory, directory -> new Samples());
+        String settled;
+        synchronized (samples) {
+            settled = samples.count >= sampleSize && !samples.mixed ? samples.encoding : null;
+        }
+        if (settled != null && isValid(content, settled)) {
+            inferred.incrementAndGet();
+            return settled;
+        }
+        detected.incrementAndGet();
+        FileProbe probe = FileProbe.of(content);
+        String encoding = probe.getEncoding();
+        if (settled == null && !isAscii(content)) {
+            boolean sure = encoding != null && isUnicode(encoding);
+            if (sure && probe.getBomEncoding() == null && !probe.isXml()) {
+                CharsetMatch match = probe.getCharsetMatch();
+                sure = match.getConfidence() >= MIN_CONFIDENCE;
+            }
+            synchronized (samples) {
+                if (samples.count < sampleSize) {
+                    samples.mixed |= !sure || samples.encoding != null && !samples.encoding.equals(encoding);
+                    samples.encoding = encoding;
+                    samples.count++;
+                }
+            }
+        }
+        return encoding;
+    }
+
+    /**
+     * @return the number of files decoded with the encoding of their directory
+     */
+    int getInferred() {
+        return inferred.get();
+    }
+
+    /**
+     * @return the number of files whose encoding was detected on their own
+     */
+    int getDetected() {
+        return detected.get();
+    }
+
+    private static boolean isAscii(byte[] content) {
+        for (byte b : content) {
+            if (b < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> for the encodings in which not every sequence of bytes is valid
+     */
+    private static boolean isUnicode(String encoding) {
+        return encoding.toUpperCase(Locale.ENGLISH).startsWith("UTF-");
+    }
+
+    /**
+     * @return <code>true</code> if the content decodes without any malformed or unmappable bytes
+     */
+    private static boolean isValid(byte[] content, String encoding) {
+        try {
+            Charset.forName(encoding)
+                    .newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(content));
+            return true;
+        } catch (CharacterCodingException | IllegalArgumentException e) {
+            // not valid, or named by ICU but not supported by Java
+            return false;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.maven.doxia.DefaultConverter.DoxiaFormat;
+
+/**
+ * Splits APT and Markdown documents at the titles of top level sections, so that the parts can be parsed at the same
+ * time.
+ *
+ * <p>A part boundary is only placed where parsing the parts separately cannot change the result: before a top level
+ * section title that follows an empty line and is outside of any verbatim block or fenced code. Markdown documents
+ * which use reference definitions, footnotes or HTML blocks are not split at all, as those are resolved across the
+ * whole document.</p>
+ */
+final class DocumentSplitter {
+
+    /** Markdown constructs which refer to or span other parts of the document */
+    private static final Pattern MARKDOWN_DOCUMENT_WIDE = Pattern.compile(
+            "^ {0,3}\\[[^\\]]+\\]:|\\[\\^|^ {0,3}<(?!!--.*-->[ \\t]*$)", Pattern.MULTILINE);
+
+    private DocumentSplitter() {
+        // utility class
+    }
+
+    /**
+     * @param format the format of the document
+     * @return <code>true</code> if documents of the given format can be split
+     */
+    static boolean isSplittable(DoxiaFormat format) {
+        return format == DoxiaFormat.APT || format == DoxiaFormat.MARKDOWN;
+    }
+
+    /**
+     * @param format the format of the document, see {@link #isSplittable(DoxiaFormat)}
+     * @param document the whole document
+     * @param parts the number of parts to aim for
+     * @return the parts of the document in order, which put together give the document again, or only the whole
+     * document if it cannot be split
+     */
+    static List<String> split(DoxiaFormat format, String document, int parts) {
+        List<Integer> boundaries;
+        if (format == DoxiaFormat.APT) {
+            boundaries = findAptBoundaries(document);
+        } else if (format == DoxiaFormat.MARKDOWN && !MARKDOWN_DOCUMENT_WIDE.matcher(document).find()) {
+            boundaries = findMarkdownBoundaries(document);
+        } else {
+            boundaries = Collections.emptyList();
+        }
+        if (boundaries.isEmpty() || parts < 2) {
+            return Collections.singletonList(document);
+        }
+
+        // pick the first boundary after each share of the document
+        long share = document.length() / parts;
+        List<String> result = new ArrayList<>(parts);
+        int start = 0;
+        for (int boundary : boundaries) {
+            if (boundary - start >= share) {
+                result.add(document.substring(start, boundary));
+                start = boundary;
+            }
+        }
+        result.add(document.substring(start));
+        return result;
+    }
+
+    /**
+     * A top level section title in APT is any line starting with a letter or digit in the first column; verbatim
+     * blocks, which may contain such lines, start and end with a line of dashes.
+     */
+    private static List<Integer> findAptBoundaries(String document) {
+        List<Integer> boundaries = new ArrayList<>();
+        boolean verbatim = false;
+        boolean previousBlank = false;
+        int lineStart = 0;
+        while (lineStart < document.length()) {
+            int lineEnd = endOfLine(document, lineStart);
+            String line = document.substring(lineStart, lineEnd);
+            if (line.startsWith("+-") || line.startsWith("--")) {
+                verbatim = !verbatim;
+            } else if (!verbatim
+                    && previousBlank
+                    && lineStart > 0
+                    && !line.isEmpty()
+                    && Character.isLetterOrDigit(line.charAt(0))) {
+                boundaries.add(lineStart);
+            }
+            previousBlank = line.trim().isEmpty();
+            lineStart = nextLine(document, lineEnd);
+        }
+        return boundaries;
+    }
+
+    /**
+     * A top level section title in Markdown is an ATX heading of level 1; fenced code blocks, which may contain such
+     * lines, end with a fence of the same character at least as long as the opening one.
+     */
+    private static List<Integer> findMarkdownBoundaries(String document) {
+        List<Integer> boundaries = new ArrayList<>();
+        char fenceChar = 0;
+        int fenceLength = 0;
+        boolean previousBlank = false;
+        int lineStart = 0;
+        while (lineStart < document.length()) {
+            int lineEnd = endOfLine(document, lineStart);
+            String line = document.substring(lineStart, lineEnd);
+            String trimmed = stripIndent(line);
+            int fence = trimmed != null ? fenceLength(trimmed) : 0;
+            if (fenceChar != 0) {
+                if (fence >= fenceLength
+                        && trimmed.charAt(0) == fenceChar
+                        && trimmed.substring(fence).trim().isEmpty()) {
+                    fenceChar = 0;
+                }
+            } else if (fence > 0) {
+                fenceChar = trimmed.charAt(0);
+                fenceLength = fence;
+            } else if (previousBlank && lineStart > 0 && (line.equals("#") || line.startsWith("# "))) {
+                boundaries.add(lineStart);
+            }
+            previousBlank = line.trim().isEmpty();
+            lineStart = nextLine(document, lineEnd);
+        }
+        return boundaries;
+    }
+
+    /**
+     * @return the line without its indentation of up to three spaces, or <code>null</code> if indented further
+     */
+    private static String stripIndent(String line) {
+        int i = 0;
+        while (i < line.length() && i < 4 && line.charAt(i) == ' ') {
+            i++;
+        }
+        return i < 4 ? line.substring(i) : null;
+    }
+
+    /**
+     * @return the length of the code fence the line starts with, or 0 if it does not start with one
+     */
+    private static int fenceLength(String line) {
+        if (line.isEmpty() || (line.charAt(0) != '`' && line.charAt(0) != '~')) {
+            return 0;
+        }
+        int length = 0;
+        while (length < line.length() && line.charAt(length) == line.charAt(0)) {
+            length++;
+        }
+        return length >= 3 ? length : 0;
+    }
+
+    private static int endOfLine(String document, int lineStart) {
+        int i = lineStart;
+        while (i < document.length() && document.charAt(i) != '\n' && document.charAt(i) != '\r') {
+            i++;
+        }
+        return i;
+    }
+
+    private static int nextLine(String document, int lineEnd) {
+        if (lineEnd < document.length() && document.charAt(lineEnd) == '\r') {
+            lineEnd++;
+        }
+        if (lineEnd < document.length() && document.charAt(lineEnd) == '\n') {
+            lineEnd++;
+        }
+        return lineEnd;
+    }
+}
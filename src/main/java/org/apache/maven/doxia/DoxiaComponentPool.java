@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.Reader;
+import java.lang.reflect.Constructor;
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.google.inject.Binder;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Scopes;
+import com.google.inject.name.Names;
+import com.google.inject.spi.InjectionPoint;
+import org.apache.maven.doxia.DefaultConverter.DoxiaFormat;
+import org.apache.maven.doxia.DefaultConverter.DoxiaFormat.MacroConverterExecutor;
+import org.apache.maven.doxia.DefaultConverter.MacroFormatter;
+import org.apache.maven.doxia.macro.MacroExecutor;
+import org.apache.maven.doxia.parser.AbstractParser;
+import org.apache.maven.doxia.parser.ParseException;
+import org.apache.maven.doxia.parser.Parser;
+import org.apache.maven.doxia.sink.Sink;
+import org.apache.maven.doxia.sink.SinkFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Provides the Doxia parsers and sink factories by {@link DoxiaFormat}.
+ *
+ * <p>The registered parsers are singletons which keep the state of the document being parsed, and the macro
+ * executor they are given decides the target format of the macros. So rather than reconfiguring the singleton
+ * for every file, each thread gets a parser of its own for every pair of source and target format, configured
+ * once with the macro executor of that target. Sink factories only create new sinks, so the registered ones are
+ * shared.</p>
+ *
+ * <p>New parser instances are created by a child of the injector, which binds the class of each registered parser
+ * without a scope. Without an injector, the registered parser is used under its lock, so that conversions are still
+ * correct but no longer parse at the same time.</p>
+ */
+class DoxiaComponentPool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DoxiaComponentPool.class);
+
+    /** All available parsers, keyed by role hint */
+    private final Map<String, Parser> parsers;
+
+    /** All available sink factories, keyed by role hint */
+    private final Map<String, SinkFactory> registeredSinkFactories;
+
+    /** Creates a new parser instance for every lookup, <code>null</code> without an injector */
+    private final Injector parserInjector;
+
+    /** Macro executors do not keep any state, so there is only one per target format */
+    private final Map<DoxiaFormat, MacroExecutor> macroExecutors = new EnumMap<>(DoxiaFormat.class);
+
+    /** The parser of the current thread, by source format and target format */
+    private final Map<DoxiaFormat, Map<DoxiaFormat, ThreadLocal<Parser>>> threadParsers =
+            new EnumMap<>(DoxiaFormat.class);
+
+    private final Map<DoxiaFormat, SinkFactory> sinkFactories = new EnumMap<>(DoxiaFormat.class);
+
+    /**
+     * @param parsers all available parsers, keyed by role hint
+     * @param sinkFactories all available sink factories, keyed by role hint
+     * @param injector the injector to wire new parser instances with, may be <code>null</code>
+     */
+    DoxiaComponentPool(Map<String, Parser> parsers, Map<String, SinkFactory> sinkFactories, Injector injector) {
+        this.parsers = parsers;
+        this.registeredSinkFactories = sinkFactories;
+        this.parserInjector = injector != null ? newParserInjector(injector, parsers) : null;
+        for (DoxiaFormat target : DoxiaFormat.values()) {
+            macroExecutors.put(target, new MacroConverterExecutor(MacroFormatter.forFormat(target)));
+            if (target.hasSink() && sinkFactories.containsKey(target.roleHint())) {
+                this.sinkFactories.put(target, target.getSinkFactory(sinkFactories));
+            }
+        }
+        // the maps are never modified afterwards, so they can be read by any thread without locking
+        for (DoxiaFormat source : DoxiaFormat.values()) {
+            if (!source.hasParser() || !parsers.containsKey(source.roleHint())) {
+                continue;
+            }
+            Map<DoxiaFormat, ThreadLocal<Parser>> byTarget = new EnumMap<>(DoxiaFormat.class);
+            for (DoxiaFormat target : this.sinkFactories.keySet()) {
+                MacroExecutor macroExecutor = macroExecutors.get(target);
+                byTarget.put(target, ThreadLocal.withInitial(() -> newParser(source, macroExecutor)));
+            }
+            threadParsers.put(source, byTarget);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if each thread parses with a parser of its own, <code>false</code> if all threads
+     * share the registered parsers
+     */
+    boolean isParsingConcurrently() {
+        return parserInjector != null;
+    }
+
+    /**
+     * Parses with the parser of the current thread for the given formats.
+     *
+     * @param source the format of the document to parse
+     * @param target the format the document is converted to, decides how macros are written
+     * @param reader not null
+     * @param sink not null
+     * @throws ParseException if the document could not be parsed
+     * @throws IllegalStateException if no parser or sink factory is registered for the formats
+     */
+    void parse(DoxiaFormat source, DoxiaFormat target, Reader reader, Sink sink) throws ParseException {
+        Parser parser = source.getRegisteredParser(parsers);
+        if (parserInjector == null) {
+            // no way to create further instances, the registered parser is shared with every other conversion
+            synchronized (parser) {
+                LOGGER.debug("Parser used: {}", parser.getClass().getName());
+                parser.setMacroExecutor(macroExecutors.get(target));
+                parser.parse(reader, sink);
+            }
+            return;
+        }
+        getSinkFactory(target);
+        parser = threadParsers.get(source).get(target).get();
+        LOGGER.debug("Parser used: {}", parser.getClass().getName());
+        parser.parse(reader, sink);
+    }
+
+    /**
+     * @return the version of Doxia on the classpath, as given by the manifest of doxia-core, or <code>unknown</code>
+     * if it has none
+     */
+    static String getDoxiaVersion() {
+        Package p = AbstractParser.class.getPackage();
+        String version = p != null ? p.getImplementationVersion() : null;
+        return version != null ? version : "unknown";
+    }
+
+    /**
+     * @param source the format of the document to parse
+     * @param target the format the document is converted to
+     * @return the classes and versions of the Doxia modules converting between the given formats, as text
+     * @throws IllegalStateException if no parser or sink factory is registered for the formats
+     */
+    String getModuleVersions(DoxiaFormat source, DoxiaFormat target) {
+        return getDoxiaVersion() + ' ' + getModuleVersion(source.getRegisteredParser(parsers).getClass()) + ' '
+                + getModuleVersion(getSinkFactory(target).getClass());
+    }
+
+    private static String getModuleVersion(Class<?> component) {
+        Package p = component.getPackage();
+        return component.getName() + ':' + (p != null ? p.getImplementationVersion() : null);
+    }
+
+    /**
+     * @param format the target format
+     * @return the registered sink factory of the given format
+     * @throws IllegalStateException if no sink factory is registered for the format
+     */
+    SinkFactory getSinkFactory(DoxiaFormat format) {
+        SinkFactory sinkFactory = sinkFactories.get(format);
+        if (sinkFactory == null) {
+            // produces the appropriate error message
+            return format.getSinkFactory(registeredSinkFactories);
+        }
+        return sinkFactory;
+    }
+
+    /**
+     * @param injector the injector which wired the registered parsers
+     * @param parsers all available parsers, keyed by role hint
+     * @return a child injector binding each registered parser by its role hint, without a scope
+     */
+    private static Injector newParserInjector(Injector injector, Map<String, Parser> parsers) {
+        return injector.createChildInjector(binder -> {
+            for (DoxiaFormat format : DoxiaFormat.values()) {
+                if (format.hasParser() && parsers.containsKey(format.roleHint())) {
+                    bindParser(binder, format.roleHint(), format.getRegisteredParser(parsers).getClass());
+                }
+            }
+        });
+    }
+
+    private static <T extends Parser> void bindParser(Binder binder, String roleHint, Class<T> type) {
+        @SuppressWarnings("unchecked")
+        Constructor<T> constructor = (Constructor<T>) InjectionPoint.forConstructorOf(type).getMember();
+        // the parsers are singletons by their annotation, which only an explicit scope overrides
+        binder.bind(Key.get(Parser.class, Names.named(roleHint))).toConstructor(constructor).in(Scopes.NO_SCOPE);
+    }
+
+    /**
+     * @param format the source format
+     * @param macroExecutor the macro executor for the target format
+     * @return a new parser instance, wired by the injector
+     */
+    private Parser newParser(DoxiaFormat format, MacroExecutor macroExecutor) {
+        Parser parser = parserInjector.getInstance(Key.get(Parser.class, Names.named(format.roleHint())));
+        parser.setMacroExecutor(macroExecutor);
+        LOGGER.debug("Created parser {} for thread {}", parser.getClass().getName(), Thread.currentThread().getName());
+        return parser;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Locale;
+
+import com.ibm.icu.text.CharsetDetector;
+import com.ibm.icu.text.CharsetMatch;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.XmlStreamReader;
+import org.codehaus.plexus.util.xml.pull.MXParser;
+import org.codehaus.plexus.util.xml.pull.XmlPullParser;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+
+/**
+ * What the beginning of a file tells about its format and encoding, read only once.
+ *
+ * <p>Only a prefix of the file is kept, as many bytes as ICU's {@link CharsetDetector} reads from a stream. A single
+ * pass of the XML parser tells whether the file is XML, the encoding it declares and its first element. The parser
+ * starts on the prefix and only reads on into the rest of the file if the prolog of an XML file, with its comments,
+ * processing instructions and document type declaration, is longer. The encoding of other files is guessed by ICU on
+ * demand, unless a byte order mark names it.</p>
+ */
+class FileProbe {
+    /** The number of bytes looked at */
+    static final int PREFIX_LENGTH = 8000;
+
+    private final byte[] prefix;
+
+    private final String bomEncoding;
+
+    private boolean xml;
+
+    private String xmlEncoding;
+
+    private String firstElement;
+
+    private CharsetMatch charsetMatch;
+
+    /**
+     * @param prefix the beginning of the file
+     * @param rest the rest of the file, only read while looking for the first element of an XML file
+     */
+    private FileProbe(byte[] prefix, InputStream rest) {
+        this.prefix = prefix;
+        this.bomEncoding = getBomEncoding(prefix);
+        probeXml(rest);
+    }
+
+    /**
+     * @param file not null
+     * @return the probe of the beginning of the file, which is opened once
+     * @throws IOException if the file could not be read
+     */
+    static FileProbe of(File file) throws IOException {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            return new FileProbe(readPrefix(in), in);
+        }
+    }
+
+    /**
+     * @param file a file
+     * @return the beginning of the file a probe looks at, the whole file if it is shorter
+     * @throws IOException if the file cannot be read
+     */
+    static byte[] readPrefix(File file) throws IOException {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            return readPrefix(in);
+        }
+    }
+
+    private static byte[] readPrefix(InputStream in) throws IOException {
+        byte[] buffer = new byte[PREFIX_LENGTH];
+        int length = IOUtils.read(in, buffer);
+        return length < buffer.length ? Arrays.copyOf(buffer, length) : buffer;
+    }
+
+    /**
+     * @param content the content of a file already read
+     * @return the probe of the beginning of the content
+     */
+    static FileProbe of(byte[] content) {
+        if (content.length <= PREFIX_LENGTH) {
+            return new FileProbe(content, new ByteArrayInputStream(new byte[0]));
+        }
+        return new FileProbe(
+                Arrays.copyOf(content, PREFIX_LENGTH),
+                new ByteArrayInputStream(content, PREFIX_LENGTH, content.length - PREFIX_LENGTH));
+    }
+
+    /**
+     * @return the encoding named by the byte order mark, or <code>null</code> if there is none
+     */
+    String getBomEncoding() {
+        return bomEncoding;
+    }
+
+    /**
+     * @return <code>true</code> if the file starts like an XML document, as told by
+     * {@link org.codehaus.plexus.util.xml.XmlUtil#isXml(File)}
+     */
+    boolean isXml() {
+        return xml;
+    }
+
+    /**
+     * @return the encoding of an XML file, from its byte order mark or declaration, <code>null</code> if not XML
+     */
+    String getXmlEncoding() {
+        return xmlEncoding;
+    }
+
+    /**
+     * @return the name of the first element of an XML file, or <code>null</code> if there is none
+     */
+    String getFirstElement() {
+        return firstElement;
+    }
+
+    /**
+     * @return ICU's best guess of the encoding, or <code>null</code> if it has none
+     */
+    synchronized CharsetMatch getCharsetMatch() {
+        if (charsetMatch == null) {
+            CharsetDetector detector = new CharsetDetector();
+            detector.setText(prefix);
+            charsetMatch = detector.detect();
+        }
+        return charsetMatch;
+    }
+
+    /**
+     * @return the encoding of the file, upper case for other than XML files, or <code>null</code> if not detected
+     */
+    String getEncoding() {
+        if (xml) {
+            return xmlEncoding;
+        }
+        if (bomEncoding != null) {
+            return bomEncoding;
+        }
+        CharsetMatch match = getCharsetMatch();
+        return match != null ? match.getName().toUpperCase(Locale.ENGLISH) : null;
+    }
+
+    private void probeXml(InputStream rest) {
+        try (XmlStreamReader reader = XmlStreamReader.builder()
+                .setInputStream(new SequenceInputStream(new ByteArrayInputStream(prefix), rest))
+                .get()) {
+            XmlPullParser parser = new MXParser();
+            parser.setInput((Reader) reader);
+            int eventType = parser.nextToken();
+            xml = true;
+            xmlEncoding = reader.getEncoding();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG) {
+                    firstElement = parser.getName();
+                    return;
+                }
+                eventType = parser.nextToken();
+            }
+        } catch (IOException | XmlPullParserException e) {
+            // not XML, or not well-formed before its first element
+        }
+    }
+
+    private static String getBomEncoding(byte[] bytes) {
+        if (startsWith(bytes, 0xEF, 0xBB, 0xBF)) {
+            return "UTF-8";
+        }
+        if (startsWith(bytes, 0xFF, 0xFE, 0x00, 0x00)) {
+            return "UTF-32LE";
+        }
+        if (startsWith(bytes, 0x00, 0x00, 0xFE, 0xFF)) {
+            return "UTF-32BE";
+        }
+        if (startsWith(bytes, 0xFE, 0xFF)) {
+            return "UTF-16BE";
+        }
+        if (startsWith(bytes, 0xFF, 0xFE)) {
+            return "UTF-16LE";
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] bytes, int... bom) {
+        if (bytes.length < bom.length) {
+            return false;
+        }
+        for (int i = 0; i < bom.length; i++) {
+            if ((bytes[i] & 0xFF) != bom[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
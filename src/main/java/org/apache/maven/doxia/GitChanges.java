@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The files below a directory of a git working tree which changed since a given revision, as reported by
+ * <code>git diff --name-status -M</code>, including the changes not committed yet and the untracked files which are not
+ * ignored.
+ *
+ * <p>All paths are relative to the directory and use the platform separator, like the paths matched by
+ * {@link SourceTreeWalker}.</p>
+ */
+class GitChanges {
+
+    /** The files added, modified, copied or renamed to since the revision */
+    private final Set<String> changed = new TreeSet<>();
+
+    /** The files deleted or renamed from since the revision */
+    private final Set<String> removed = new TreeSet<>();
+
+    private GitChanges() {}
+
+    /**
+     * @param directory a directory within a git working tree
+     * @param revision the revision to compare with, not starting with <code>-</code>
+     * @return the changes below the directory
+     * @throws IOException if git could not be run or failed, for example because the revision is unknown
+     * @throws InterruptedException if interrupted while waiting for git
+     */
+    static GitChanges since(Path directory, String revision) throws IOException, InterruptedException {
+        GitChanges changes = new GitChanges();
+        // NUL separated, so that no path is quoted
+        String[] diff = git(directory, "diff", "--name-status", "-z", "-M", "--relative", revision, "--", ".");
+        for (int i = 0; i < diff.length; i++) {
+            char status = diff[i].charAt(0);
+            if (status == 'R' || status == 'C') {
+                if (status == 'R') {
+                    changes.removed.add(toPath(diff[i + 1]));
+                }
+                changes.changed.add(toPath(diff[i + 2]));
+                i += 2;
+            } else if (status == 'D') {
+                changes.removed.add(toPath(diff[++i]));
+            } else {
+                changes.changed.add(toPath(diff[++i]));
+            }
+        }
+        for (String untracked : git(directory, "ls-files", "-z", "--others", "--exclude-standard", "--", ".")) {
+            changes.changed.add(toPath(untracked));
+        }
+        // a file may have been deleted and added again
+        changes.removed.removeAll(changes.changed);
+        return changes;
+    }
+
+    /**
+     * @return the files added, modified, copied or renamed to since the revision, in lexical order
+     */
+    Set<String> getChanged() {
+        return changed;
+    }
+
+    /**
+     * @return the files deleted or renamed from since the revision which do not exist again, in lexical order
+     */
+    Set<String> getRemoved() {
+        return removed;
+    }
+
+    private static String toPath(String gitPath) {
+        return gitPath.replace('/', File.separatorChar);
+    }
+
+    /**
+     * @param directory the working directory of git
+     * @param args the git command and its arguments
+     * @return the NUL separated fields of the output
+     */
+    private static String[] git(Path directory, String... args) throws IOException, InterruptedException {
+        String[] command = new String[args.length + 1];
+        command[0] = "git";
+        System.arraycopy(args, 0, command, 1, args.length);
+        Process process = new ProcessBuilder(command).directory(directory.toFile()).start();
+        // read along with the output, so that git does not block on a full pipe when it reports much
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        Thread errorReader = new Thread(() -> {
+            try (InputStream err = process.getErrorStream()) {
+                IOUtils.copy(err, errors);
+            } catch (IOException e) {
+                // only logged if git fails, which the exit code tells anyway
+            }
+        });
+        errorReader.start();
+        String output;
+        try (InputStream in = process.getInputStream()) {
+            output = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        int exitCode = process.waitFor();
+        errorReader.join();
+        if (exitCode != 0) {
+            DefaultConverter.logOutput(new ByteArrayInputStream(errors.toByteArray()), "Error: ");
+            throw new IOException("Command " + String.join(" ", command) + " failed with exit code " + exitCode);
+        }
+        return output.isEmpty() ? new String[0] : output.split("\0");
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Admits the conversion of another file only while the heap has room for it, so that the number of files converted
+ * at the same time follows the memory available rather than a fixed thread count.
+ *
+ * <p>A conversion is expected to need {@link #FOOTPRINT_PER_BYTE} times the size of its input file on the heap,
+ * for the decoded document, the parser state and the rendered output. A file is admitted if that fits below the
+ * heap limit next to the heap currently used, or if no other file is being converted, so that every file is
+ * converted eventually. Files whose footprint exceeds the exclusive size are only converted while no other file is,
+ * and no other file is admitted until they are done.</p>
+ */
+class HeapGovernor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HeapGovernor.class);
+
+    /** The heap needed to convert a file, relative to its size */
+    static final int FOOTPRINT_PER_BYTE = 16;
+
+    /** How long to wait for the garbage collector to make room before looking at the heap again */
+    private static final long RECHECK_MILLIS = 100;
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    /** The heap which may be used at most, in bytes */
+    private final long heapLimit;
+
+    /** Files of at least this size are converted on their own */
+    private final long exclusiveSize;
+
+    /** The files being converted */
+    private int admitted;
+
+    /** The expected footprint of the files being converted */
+    private long admittedFootprint;
+
+    private boolean exclusive;
+
+    /** The large files waiting to be converted on their own, which hold back the admission of others */
+    private int waitingExclusive;
+
+    private int throttled;
+
+    /**
+     * @param heapLimitPercent the share of the maximum heap which may be used, between 1 and 100
+     * @param exclusiveSize the size from which files are converted on their own, or 0 to use a quarter of the heap
+     * limit divided by {@link #FOOTPRINT_PER_BYTE}
+     */
+    HeapGovernor(int heapLimitPercent, long exclusiveSize) {
+        MemoryUsage heap = memory.getHeapMemoryUsage();
+        long max = heap.getMax() > 0 ? heap.getMax() : Runtime.getRuntime().maxMemory();
+        this.heapLimit = max / 100 * heapLimitPercent;
+        this.exclusiveSize = exclusiveSize > 0 ? exclusiveSize : heapLimit / 4 / FOOTPRINT_PER_BYTE;
+        LOGGER.debug(
+                "Limiting the heap used by conversions to {} MB, converting files of at least {} KB on their own",
+                heapLimit / (1024 * 1024),
+                this.exclusiveSize / 1024);
+    }
+
+    /**
+     * Waits until the conversion of a file of the given size may start.
+     *
+     * @param size the size of the input file
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized void acquire(long size) throws InterruptedException {
+        if (size >= exclusiveSize) {
+            waitingExclusive++;
+            try {
+                while (admitted > 0) {
+                    wait();
+                }
+            } finally {
+                waitingExclusive--;
+            }
+            exclusive = true;
+        } else {
+            boolean waited = false;
+            while (exclusive || waitingExclusive > 0 || (admitted > 0 && !hasRoomFor(size))) {
+                waited = true;
+                wait(RECHECK_MILLIS);
+            }
+            if (waited) {
+                throttled++;
+            }
+        }
+        admitted++;
+        admittedFootprint += size * FOOTPRINT_PER_BYTE;
+    }
+
+    /**
+     * Marks the conversion of a file as done, whether successful or not.
+     *
+     * @param size the size of the input file, as given to {@link #acquire(long)}
+     */
+    synchronized void release(long size) {
+        admitted--;
+        admittedFootprint -= size * FOOTPRINT_PER_BYTE;
+        if (size >= exclusiveSize) {
+            exclusive = false;
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return the number of files which had to wait for heap
+     */
+    synchronized int getThrottled() {
+        return throttled;
+    }
+
+    private boolean hasRoomFor(long size) {
+        // the footprint of the files just admitted may not show in the heap yet, so count the larger of both
+        long used = Math.max(memory.getHeapMemoryUsage().getUsed(), admittedFootprint);
+        return used + size * FOOTPRINT_PER_BYTE <= heapLimit;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.XmlStreamReader;
+import org.apache.commons.io.output.XmlStreamWriter;
+import org.codehaus.plexus.util.xml.XmlUtil;
+
+/**
+ * Formats output documents and writes them only where their content changes, so that the modification time of the
+ * output files is kept otherwise and nothing depending on them is rebuilt. A document is either held in memory or, if
+ * too large for it, in a temporary file next to its output file, which is moved over it.
+ */
+final class OutputFiles {
+    private OutputFiles() {
+        // no instances
+    }
+
+    /**
+     * Writes a file, unless it already has the given content.
+     *
+     * @param file the file to write
+     * @param content the converted document
+     * @return <code>true</code> if the file was left alone as it already had the content
+     * @throws IOException if any
+     */
+    static boolean write(Path file, byte[] content) throws IOException {
+        if (hasContent(file, content)) {
+            return true;
+        }
+        Files.write(file, content);
+        return false;
+    }
+
+    /**
+     * Writes a file from another file, unless it already has the same content.
+     *
+     * @param file the file to write
+     * @param content the file with the converted document
+     * @param move <code>true</code> to move the file with the converted document, which is deleted if not needed,
+     *     <code>false</code> to copy it
+     * @return <code>true</code> if the file was left alone as it already had the content
+     * @throws IOException if any
+     */
+    static boolean write(Path file, Path content, boolean move) throws IOException {
+        if (hasContent(file, content)) {
+            if (move) {
+                Files.delete(content);
+            }
+            return true;
+        }
+        if (move) {
+            Files.move(content, file, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.copy(content, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return false;
+    }
+
+    /**
+     * Creates a temporary file next to the given file, so that it can be moved over it without copying. Unlike
+     * {@link Files#createTempFile(Path, String, String, java.nio.file.attribute.FileAttribute[])}, the file gets the
+     * default permissions of new files, which it keeps once moved.
+     *
+     * @param file the file to write
+     * @return the new empty temporary file
+     * @throws IOException if any
+     */
+    static Path createTemporaryFile(Path file) throws IOException {
+        File absolute = file.toFile().getAbsoluteFile();
+        return File.createTempFile(absolute.getName(), ".tmp", absolute.getParentFile()).toPath();
+    }
+
+    /**
+     * Compares a file with the given content, reading no further than the first difference. Comparing the bytes
+     * directly is cheaper than hashing them, as the file has to be read either way.
+     *
+     * @param file the file, which may not exist
+     * @param content the content to compare with
+     * @return <code>true</code> if the file exists and has exactly the given content
+     * @throws IOException if the file could not be read
+     */
+    static boolean hasContent(Path file, byte[] content) throws IOException {
+        try {
+            if (Files.size(file) != content.length) {
+                return false;
+            }
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        byte[] buffer = new byte[Math.min(content.length, 8192)];
+        try (InputStream in = Files.newInputStream(file)) {
+            int offset = 0;
+            while (offset < content.length) {
+                int read = in.read(buffer, 0, Math.min(buffer.length, content.length - offset));
+                if (read < 0) {
+                    return false;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] != content[offset + i]) {
+                        return false;
+                    }
+                }
+                offset += read;
+            }
+            // the file may have grown since its size was read
+            return in.read() < 0;
+        }
+    }
+
+    /**
+     * Compares a file with the content of another file, reading no further than the first difference.
+     *
+     * @param file the file, which may not exist
+     * @param content the file with the content to compare with
+     * @return <code>true</code> if the file exists and has exactly the given content
+     * @throws IOException if either file could not be read
+     */
+    static boolean hasContent(Path file, Path content) throws IOException {
+        long size = Files.size(content);
+        try {
+            if (Files.size(file) != size) {
+                return false;
+            }
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        try (InputStream in = Files.newInputStream(file);
+                InputStream expected = Files.newInputStream(content)) {
+            return IOUtils.contentEquals(in, expected);
+        }
+    }
+
+    /**
+     * @param xml an encoded XML document
+     * @return the document formatted to be human readable, in the encoding given by its XML declaration
+     * @throws IOException if any
+     */
+    static byte[] prettyFormat(byte[] xml) throws IOException {
+        CharArrayWriter caw = new CharArrayWriter();
+        try (Reader r = XmlStreamReader.builder()
+                .setInputStream(new ByteArrayInputStream(xml))
+                .get()) {
+            XmlUtil.prettyFormat(r, caw);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(xml.length);
+        try (Writer w = XmlStreamWriter.builder().setOutputStream(out).get()) {
+            w.write(caw.toString());
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,1090 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.doxia.sink.Sink;
+import org.apache.maven.doxia.sink.SinkEventAttributes;
+import org.apache.maven.doxia.sink.impl.AbstractSink;
+
+/**
+ * Records the events a parser emits, to replay them into any number of other sinks later, so that a document parsed
+ * once can be rendered again without paying for the parser.
+ *
+ * <p>The events are kept in a single <code>int</code> array: the opcode of the event followed by one value per
+ * argument. Numbers and flags are stored as they are, strings as index into a table in which each distinct string is
+ * kept once, and all other arguments (attributes and arrays) as index into a table of objects. The arguments are kept
+ * by reference, which is safe as parsers create new ones for each event. Replaying switches on the opcode to call the
+ * method of the event directly. {@link AbstractSink} passes the events without attributes on to their variant with
+ * attributes, so only the latter have an opcode.</p>
+ *
+ * <p>The document locator and closing the sink are not recorded, the sink the events are replayed into keeps its own.
+ * A recorder is not thread safe, but once recorded the events may be replayed by several threads at the same time.</p>
+ */
+class SinkEventRecorder extends AbstractSink {
+
+    /** The recorded methods of {@link Sink}, named after them */
+    private enum Op {
+        HEAD,
+        HEAD_,
+        TITLE,
+        TITLE_,
+        AUTHOR,
+        AUTHOR_,
+        DATE,
+        DATE_,
+        BODY,
+        BODY_,
+        ARTICLE,
+        ARTICLE_,
+        NAVIGATION,
+        NAVIGATION_,
+        SIDEBAR,
+        SIDEBAR_,
+        SECTION,
+        SECTION_,
+        SECTION_TITLE,
+        SECTION_TITLE_,
+        HEADER,
+        HEADER_,
+        CONTENT,
+        CONTENT_,
+        FOOTER,
+        FOOTER_,
+        LIST,
+        LIST_,
+        LIST_ITEM,
+        LIST_ITEM_,
+        NUMBERED_LIST,
+        NUMBERED_LIST_,
+        NUMBERED_LIST_ITEM,
+        NUMBERED_LIST_ITEM_,
+        DEFINITION_LIST,
+        DEFINITION_LIST_,
+        DEFINITION_LIST_ITEM,
+        DEFINITION_LIST_ITEM_,
+        DEFINITION,
+        DEFINITION_,
+        DEFINED_TERM,
+        DEFINED_TERM_,
+        FIGURE,
+        FIGURE_,
+        FIGURE_CAPTION,
+        FIGURE_CAPTION_,
+        FIGURE_GRAPHICS,
+        TABLE,
+        TABLE_,
+        TABLE_ROWS,
+        TABLE_ROWS_,
+        TABLE_ROW,
+        TABLE_ROW_,
+        TABLE_CELL,
+        TABLE_CELL_,
+        TABLE_HEADER_CELL,
+        TABLE_HEADER_CELL_,
+        TABLE_CAPTION,
+        TABLE_CAPTION_,
+        PARAGRAPH,
+        PARAGRAPH_,
+        DATA,
+        DATA_,
+        TIME,
+        TIME_,
+        ADDRESS,
+        ADDRESS_,
+        BLOCKQUOTE,
+        BLOCKQUOTE_,
+        DIVISION,
+        DIVISION_,
+        VERBATIM,
+        VERBATIM_,
+        HORIZONTAL_RULE,
+        PAGE_BREAK,
+        ANCHOR,
+        ANCHOR_,
+        LINK,
+        LINK_,
+        INLINE,
+        INLINE_,
+        ITALIC,
+        ITALIC_,
+        BOLD,
+        BOLD_,
+        MONOSPACED,
+        MONOSPACED_,
+        LINE_BREAK,
+        LINE_BREAK_OPPORTUNITY,
+        NON_BREAKING_SPACE,
+        TEXT,
+        RAW_TEXT,
+        COMMENT,
+        MARKUP_LINE_BREAK,
+        UNKNOWN,
+        FLUSH
+    }
+
+    private static final Op[] OPS = Op.values();
+
+    private static final int NULL = -1;
+
+    /** The opcode of each event followed by its arguments */
+    private int[] events = new int[1024];
+
+    private int length;
+
+    /** The position of each event in {@link #events} */
+    private int[] offsets = new int[256];
+
+    private int count;
+
+    private final Map<String, Integer> stringCodes = new HashMap<>();
+
+    private final List<String> strings = new ArrayList<>();
+
+    private final List<Object> objects = new ArrayList<>();
+
+    private int firstBody = -1;
+
+    private int lastBodyEnd = -1;
+
+    private final Set<String> ids = new HashSet<>();
+
+    /**
+     * @return the number of recorded events
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return the index of the first <code>body</code> event, or -1 if there is none
+     */
+    int indexOfBody() {
+        return firstBody;
+    }
+
+    /**
+     * @return the index of the last <code>body_</code> event, or -1 if there is none
+     */
+    int lastIndexOfBodyEnd() {
+        return lastBodyEnd;
+    }
+
+    /**
+     * @return the names of all anchors and all ids given as attribute
+     */
+    Set<String> getIds() {
+        return Collections.unmodifiableSet(ids);
+    }
+
+    /**
+     * Emits all recorded events again.
+     *
+     * @param target the sink to emit the events to, not closed afterwards
+     */
+    void replay(Sink target) {
+        replay(target, 0, count);
+    }
+
+    /**
+     * Emits the recorded events in the given range again.
+     *
+     * @param target the sink to emit the events to
+     * @param from the index of the first event, inclusive
+     * @param to the index of the last event, exclusive
+     */
+    @SuppressWarnings("checkstyle:MethodLength")
+    void replay(Sink target, int from, int to) {
+        for (int i = from; i < to; i++) {
+            // the arguments follow the opcode
+            int p = offsets[i] + 1;
+            switch (OPS[events[offsets[i]]]) {
+                case HEAD:
+                    target.head(attributes(events[p]));
+                    break;
+                case HEAD_:
+                    target.head_();
+                    break;
+                case TITLE:
+                    target.title(attributes(events[p]));
+                    break;
+                case TITLE_:
+                    target.title_();
+                    break;
+                case AUTHOR:
+                    target.author(attributes(events[p]));
+                    break;
+                case AUTHOR_:
+                    target.author_();
+                    break;
+                case DATE:
+                    target.date(attributes(events[p]));
+                    break;
+                case DATE_:
+                    target.date_();
+                    break;
+                case BODY:
+                    target.body(attributes(events[p]));
+                    break;
+                case BODY_:
+                    target.body_();
+                    break;
+                case ARTICLE:
+                    target.article(attributes(events[p]));
+                    break;
+                case ARTICLE_:
+                    target.article_();
+                    break;
+                case NAVIGATION:
+                    target.navigation(attributes(events[p]));
+                    break;
+                case NAVIGATION_:
+                    target.navigation_();
+                    break;
+                case SIDEBAR:
+                    target.sidebar(attributes(events[p]));
+                    break;
+                case SIDEBAR_:
+                    target.sidebar_();
+                    break;
+                case SECTION:
+                    target.section(events[p], attributes(events[p + 1]));
+                    break;
+                case SECTION_:
+                    target.section_(events[p]);
+                    break;
+                case SECTION_TITLE:
+                    target.sectionTitle(events[p], attributes(events[p + 1]));
+                    break;
+                case SECTION_TITLE_:
+                    target.sectionTitle_(events[p]);
+                    break;
+                case HEADER:
+                    target.header(attributes(events[p]));
+                    break;
+                case HEADER_:
+                    target.header_();
+                    break;
+                case CONTENT:
+                    target.content(attributes(events[p]));
+                    break;
+                case CONTENT_:
+                    target.content_();
+                    break;
+                case FOOTER:
+                    target.footer(attributes(events[p]));
+                    break;
+                case FOOTER_:
+                    target.footer_();
+                    break;
+                case LIST:
+                    target.list(attributes(events[p]));
+                    break;
+                case LIST_:
+                    target.list_();
+                    break;
+                case LIST_ITEM:
+                    target.listItem(attributes(events[p]));
+                    break;
+                case LIST_ITEM_:
+                    target.listItem_();
+                    break;
+                case NUMBERED_LIST:
+                    target.numberedList(events[p], attributes(events[p + 1]));
+                    break;
+                case NUMBERED_LIST_:
+                    target.numberedList_();
+                    break;
+                case NUMBERED_LIST_ITEM:
+                    target.numberedListItem(attributes(events[p]));
+                    break;
+                case NUMBERED_LIST_ITEM_:
+                    target.numberedListItem_();
+                    break;
+                case DEFINITION_LIST:
+                    target.definitionList(attributes(events[p]));
+                    break;
+                case DEFINITION_LIST_:
+                    target.definitionList_();
+                    break;
+                case DEFINITION_LIST_ITEM:
+                    target.definitionListItem(attributes(events[p]));
+                    break;
+                case DEFINITION_LIST_ITEM_:
+                    target.definitionListItem_();
+                    break;
+                case DEFINITION:
+                    target.definition(attributes(events[p]));
+                    break;
+                case DEFINITION_:
+                    target.definition_();
+                    break;
+                case DEFINED_TERM:
+                    target.definedTerm(attributes(events[p]));
+                    break;
+                case DEFINED_TERM_:
+                    target.definedTerm_();
+                    break;
+                case FIGURE:
+                    target.figure(attributes(events[p]));
+                    break;
+                case FIGURE_:
+                    target.figure_();
+                    break;
+                case FIGURE_CAPTION:
+                    target.figureCaption(attributes(events[p]));
+                    break;
+                case FIGURE_CAPTION_:
+                    target.figureCaption_();
+                    break;
+                case FIGURE_GRAPHICS:
+                    target.figureGraphics(string(events[p]), attributes(events[p + 1]));
+                    break;
+                case TABLE:
+                    target.table(attributes(events[p]));
+                    break;
+                case TABLE_:
+                    target.table_();
+                    break;
+                case TABLE_ROWS:
+                    target.tableRows((int[]) object(events[p]), events[p + 1] != 0);
+                    break;
+                case TABLE_ROWS_:
+                    target.tableRows_();
+                    break;
+                case TABLE_ROW:
+                    target.tableRow(attributes(events[p]));
+                    break;
+                case TABLE_ROW_:
+                    target.tableRow_();
+                    break;
+                case TABLE_CELL:
+                    target.tableCell(attributes(events[p]));
+                    break;
+                case TABLE_CELL_:
+                    target.tableCell_();
+                    break;
+                case TABLE_HEADER_CELL:
+                    target.tableHeaderCell(attributes(events[p]));
+                    break;
+                case TABLE_HEADER_CELL_:
+                    target.tableHeaderCell_();
+                    break;
+                case TABLE_CAPTION:
+                    target.tableCaption(attributes(events[p]));
+                    break;
+                case TABLE_CAPTION_:
+                    target.tableCaption_();
+                    break;
+                case PARAGRAPH:
+                    target.paragraph(attributes(events[p]));
+                    break;
+                case PARAGRAPH_:
+                    target.paragraph_();
+                    break;
+                case DATA:
+                    target.data(string(events[p]), attributes(events[p + 1]));
+                    break;
+                case DATA_:
+                    target.data_();
+                    break;
+                case TIME:
+                    target.time(string(events[p]), attributes(events[p + 1]));
+                    break;
+                case TIME_:
+                    target.time_();
+                    break;
+                case ADDRESS:
+                    target.address(attributes(events[p]));
+                    break;
+                case ADDRESS_:
+                    target.address_();
+                    break;
+                case BLOCKQUOTE:
+                    target.blockquote(attributes(events[p]));
+                    break;
+                case BLOCKQUOTE_:
+                    target.blockquote_();
+                    break;
+                case DIVISION:
+                    target.division(attributes(events[p]));
+                    break;
+                case DIVISION_:
+                    target.division_();
+                    break;
+                case VERBATIM:
+                    target.verbatim(attributes(events[p]));
+                    break;
+                case VERBATIM_:
+                    target.verbatim_();
+                    break;
+                case HORIZONTAL_RULE:
+                    target.horizontalRule(attributes(events[p]));
+                    break;
+                case PAGE_BREAK:
+                    target.pageBreak();
+                    break;
+                case ANCHOR:
+                    target.anchor(string(events[p]), attributes(events[p + 1]));
+                    break;
+                case ANCHOR_:
+                    target.anchor_();
+                    break;
+                case LINK:
+                    target.link(string(events[p]), attributes(events[p + 1]));
+                    break;
+                case LINK_:
+                    target.link_();
+                    break;
+                case INLINE:
+                    target.inline(attributes(events[p]));
+                    break;
+                case INLINE_:
+                    target.inline_();
+                    break;
+                case ITALIC:
+                    target.italic();
+                    break;
+                case ITALIC_:
+                    target.italic_();
+                    break;
+                case BOLD:
+                    target.bold();
+                    break;
+                case BOLD_:
+                    target.bold_();
+                    break;
+                case MONOSPACED:
+                    target.monospaced();
+                    break;
+                case MONOSPACED_:
+                    target.monospaced_();
+                    break;
+                case LINE_BREAK:
+                    target.lineBreak(attributes(events[p]));
+                    break;
+                case LINE_BREAK_OPPORTUNITY:
+                    target.lineBreakOpportunity(attributes(events[p]));
+                    break;
+                case NON_BREAKING_SPACE:
+                    target.nonBreakingSpace();
+                    break;
+                case TEXT:
+                    target.text(string(events[p]), attributes(events[p + 1]));
+                    break;
+                case RAW_TEXT:
+                    target.rawText(string(events[p]));
+                    break;
+                case COMMENT:
+                    target.comment(string(events[p]));
+                    break;
+                case MARKUP_LINE_BREAK:
+                    target.markupLineBreak(events[p]);
+                    break;
+                case UNKNOWN:
+                    target.unknown(
+                            string(events[p]), (Object[]) object(events[p + 1]), attributes(events[p + 2]));
+                    break;
+                case FLUSH:
+                    target.flush();
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown event " + OPS[events[offsets[i]]]);
+            }
+        }
+    }
+
+    private void record(Op op) {
+        start(op, 0);
+    }
+
+    private void record(Op op, int argument) {
+        start(op, 1);
+        events[length++] = argument;
+    }
+
+    private void record(Op op, int first, int second) {
+        start(op, 2);
+        events[length++] = first;
+        events[length++] = second;
+    }
+
+    private void record(Op op, int first, int second, int third) {
+        start(op, 3);
+        events[length++] = first;
+        events[length++] = second;
+        events[length++] = third;
+    }
+
+    private void start(Op op, int arguments) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        offsets[count++] = length;
+        if (length + 1 + arguments > events.length) {
+            events = Arrays.copyOf(events, Math.max(events.length * 2, length + 1 + arguments));
+        }
+        events[length++] = op.ordinal();
+    }
+
+    private int encode(String value) {
+        if (value == null) {
+            return NULL;
+        }
+        return stringCodes.computeIfAbsent(value, s -> {
+            strings.add(s);
+            return strings.size() - 1;
+        });
+    }
+
+    private int encode(SinkEventAttributes attributes) {
+        if (attributes != null) {
+            Object id = attributes.getAttribute(SinkEventAttributes.ID);
+            if (id != null) {
+                ids.add(id.toString());
+            }
+        }
+        return store(attributes);
+    }
+
+    private int store(Object value) {
+        if (value == null) {
+            return NULL;
+        }
+        objects.add(value);
+        return objects.size() - 1;
+    }
+
+    private String string(int code) {
+        return code == NULL ? null : strings.get(code);
+    }
+
+    private SinkEventAttributes attributes(int code) {
+        return (SinkEventAttributes) object(code);
+    }
+
+    private Object object(int code) {
+        return code == NULL ? null : objects.get(code);
+    }
+
+    @Override
+    public void head(SinkEventAttributes attributes) {
+        record(Op.HEAD, encode(attributes));
+    }
+
+    @Override
+    public void head_() {
+        record(Op.HEAD_);
+    }
+
+    @Override
+    public void title(SinkEventAttributes attributes) {
+        record(Op.TITLE, encode(attributes));
+    }
+
+    @Override
+    public void title_() {
+        record(Op.TITLE_);
+    }
+
+    @Override
+    public void author(SinkEventAttributes attributes) {
+        record(Op.AUTHOR, encode(attributes));
+    }
+
+    @Override
+    public void author_() {
+        record(Op.AUTHOR_);
+    }
+
+    @Override
+    public void date(SinkEventAttributes attributes) {
+        record(Op.DATE, encode(attributes));
+    }
+
+    @Override
+    public void date_() {
+        record(Op.DATE_);
+    }
+
+    @Override
+    public void body(SinkEventAttributes attributes) {
+        if (firstBody < 0) {
+            firstBody = count;
+        }
+        record(Op.BODY, encode(attributes));
+    }
+
+    @Override
+    public void body_() {
+        lastBodyEnd = count;
+        record(Op.BODY_);
+    }
+
+    @Override
+    public void article(SinkEventAttributes attributes) {
+        record(Op.ARTICLE, encode(attributes));
+    }
+
+    @Override
+    public void article_() {
+        record(Op.ARTICLE_);
+    }
+
+    @Override
+    public void navigation(SinkEventAttributes attributes) {
+        record(Op.NAVIGATION, encode(attributes));
+    }
+
+    @Override
+    public void navigation_() {
+        record(Op.NAVIGATION_);
+    }
+
+    @Override
+    public void sidebar(SinkEventAttributes attributes) {
+        record(Op.SIDEBAR, encode(attributes));
+    }
+
+    @Override
+    public void sidebar_() {
+        record(Op.SIDEBAR_);
+    }
+
+    @Override
+    public void section(int level, SinkEventAttributes attributes) {
+        record(Op.SECTION, level, encode(attributes));
+    }
+
+    @Override
+    public void section_(int level) {
+        record(Op.SECTION_, level);
+    }
+
+    @Override
+    public void sectionTitle(int level, SinkEventAttributes attributes) {
+        record(Op.SECTION_TITLE, level, encode(attributes));
+    }
+
+    @Override
+    public void sectionTitle_(int level) {
+        record(Op.SECTION_TITLE_, level);
+    }
+
+    @Override
+    public void header(SinkEventAttributes attributes) {
+        record(Op.HEADER, encode(attributes));
+    }
+
+    @Override
+    public void header_() {
+        record(Op.HEADER_);
+    }
+
+    @Override
+    public void content(SinkEventAttributes attributes) {
+        record(Op.CONTENT, encode(attributes));
+    }
+
+    @Override
+    public void content_() {
+        record(Op.CONTENT_);
+    }
+
+    @Override
+    public void footer(SinkEventAttributes attributes) {
+        record(Op.FOOTER, encode(attributes));
+    }
+
+    @Override
+    public void footer_() {
+        record(Op.FOOTER_);
+    }
+
+    @Override
+    public void list(SinkEventAttributes attributes) {
+        record(Op.LIST, encode(attributes));
+    }
+
+    @Override
+    public void list_() {
+        record(Op.LIST_);
+    }
+
+    @Override
+    public void listItem(SinkEventAttributes attributes) {
+        record(Op.LIST_ITEM, encode(attributes));
+    }
+
+    @Override
+    public void listItem_() {
+        record(Op.LIST_ITEM_);
+    }
+
+    @Override
+    public void numberedList(int numbering, SinkEventAttributes attributes) {
+        record(Op.NUMBERED_LIST, numbering, encode(attributes));
+    }
+
+    @Override
+    public void numberedList_() {
+        record(Op.NUMBERED_LIST_);
+    }
+
+    @Override
+    public void numberedListItem(SinkEventAttributes attributes) {
+        record(Op.NUMBERED_LIST_ITEM, encode(attributes));
+    }
+
+    @Override
+    public void numberedListItem_() {
+        record(Op.NUMBERED_LIST_ITEM_);
+    }
+
+    @Override
+    public void definitionList(SinkEventAttributes attributes) {
+        record(Op.DEFINITION_LIST, encode(attributes));
+    }
+
+    @Override
+    public void definitionList_() {
+        record(Op.DEFINITION_LIST_);
+    }
+
+    @Override
+    public void definitionListItem(SinkEventAttributes attributes) {
+        record(Op.DEFINITION_LIST_ITEM, encode(attributes));
+    }
+
+    @Override
+    public void definitionListItem_() {
+        record(Op.DEFINITION_LIST_ITEM_);
+    }
+
+    @Override
+    public void definition(SinkEventAttributes attributes) {
+        record(Op.DEFINITION, encode(attributes));
+    }
+
+    @Override
+    public void definition_() {
+        record(Op.DEFINITION_);
+    }
+
+    @Override
+    public void definedTerm(SinkEventAttributes attributes) {
+        record(Op.DEFINED_TERM, encode(attributes));
+    }
+
+    @Override
+    public void definedTerm_() {
+        record(Op.DEFINED_TERM_);
+    }
+
+    @Override
+    public void figure(SinkEventAttributes attributes) {
+        record(Op.FIGURE, encode(attributes));
+    }
+
+    @Override
+    public void figure_() {
+        record(Op.FIGURE_);
+    }
+
+    @Override
+    public void figureCaption(SinkEventAttributes attributes) {
+        record(Op.FIGURE_CAPTION, encode(attributes));
+    }
+
+    @Override
+    public void figureCaption_() {
+        record(Op.FIGURE_CAPTION_);
+    }
+
+    @Override
+    public void figureGraphics(String src, SinkEventAttributes attributes) {
+        record(Op.FIGURE_GRAPHICS, encode(src), encode(attributes));
+    }
+
+    @Override
+    public void table(SinkEventAttributes attributes) {
+        record(Op.TABLE, encode(attributes));
+    }
+
+    @Override
+    public void table_() {
+        record(Op.TABLE_);
+    }
+
+    @Override
+    public void tableRows(int[] justification, boolean grid) {
+        record(Op.TABLE_ROWS, store(justification), grid ? 1 : 0);
+    }
+
+    @Override
+    public void tableRows_() {
+        record(Op.TABLE_ROWS_);
+    }
+
+    @Override
+    public void tableRow(SinkEventAttributes attributes) {
+        record(Op.TABLE_ROW, encode(attributes));
+    }
+
+    @Override
+    public void tableRow_() {
+        record(Op.TABLE_ROW_);
+    }
+
+    @Override
+    public void tableCell(SinkEventAttributes attributes) {
+        record(Op.TABLE_CELL, encode(attributes));
+    }
+
+    @Override
+    public void tableCell_() {
+        record(Op.TABLE_CELL_);
+    }
+
+    @Override
+    public void tableHeaderCell(SinkEventAttributes attributes) {
+        record(Op.TABLE_HEADER_CELL, encode(attributes));
+    }
+
+    @Override
+    public void tableHeaderCell_() {
+        record(Op.TABLE_HEADER_CELL_);
+    }
+
+    @Override
+    public void tableCaption(SinkEventAttributes attributes) {
+        record(Op.TABLE_CAPTION, encode(attributes));
+    }
+
+    @Override
+    public void tableCaption_() {
+        record(Op.TABLE_CAPTION_);
+    }
+
+    @Override
+    public void paragraph(SinkEventAttributes attributes) {
+        record(Op.PARAGRAPH, encode(attributes));
+    }
+
+    @Override
+    public void paragraph_() {
+        record(Op.PARAGRAPH_);
+    }
+
+    @Override
+    public void data(String value, SinkEventAttributes attributes) {
+        record(Op.DATA, encode(value), encode(attributes));
+    }
+
+    @Override
+    public void data_() {
+        record(Op.DATA_);
+    }
+
+    @Override
+    public void time(String datetime, SinkEventAttributes attributes) {
+        record(Op.TIME, encode(datetime), encode(attributes));
+    }
+
+    @Override
+    public void time_() {
+        record(Op.TIME_);
+    }
+
+    @Override
+    public void address(SinkEventAttributes attributes) {
+        record(Op.ADDRESS, encode(attributes));
+    }
+
+    @Override
+    public void address_() {
+        record(Op.ADDRESS_);
+    }
+
+    @Override
+    public void blockquote(SinkEventAttributes attributes) {
+        record(Op.BLOCKQUOTE, encode(attributes));
+    }
+
+    @Override
+    public void blockquote_() {
+        record(Op.BLOCKQUOTE_);
+    }
+
+    @Override
+    public void division(SinkEventAttributes attributes) {
+        record(Op.DIVISION, encode(attributes));
+    }
+
+    @Override
+    public void division_() {
+        record(Op.DIVISION_);
+    }
+
+    @Override
+    public void verbatim(SinkEventAttributes attributes) {
+        record(Op.VERBATIM, encode(attributes));
+    }
+
+    @Override
+    public void verbatim_() {
+        record(Op.VERBATIM_);
+    }
+
+    @Override
+    public void horizontalRule(SinkEventAttributes attributes) {
+        record(Op.HORIZONTAL_RULE, encode(attributes));
+    }
+
+    @Override
+    public void pageBreak() {
+        record(Op.PAGE_BREAK);
+    }
+
+    @Override
+    public void anchor(String name, SinkEventAttributes attributes) {
+        if (name != null) {
+            ids.add(name);
+        }
+        record(Op.ANCHOR, encode(name), encode(attributes));
+    }
+
+    @Override
+    public void anchor_() {
+        record(Op.ANCHOR_);
+    }
+
+    @Override
+    public void link(String name, SinkEventAttributes attributes) {
+        record(Op.LINK, encode(name), encode(attributes));
+    }
+
+    @Override
+    public void link_() {
+        record(Op.LINK_);
+    }
+
+    @Override
+    public void inline(SinkEventAttributes attributes) {
+        record(Op.INLINE, encode(attributes));
+    }
+
+    @Override
+    public void inline_() {
+        record(Op.INLINE_);
+    }
+
+    @Override
+    public void italic() {
+        record(Op.ITALIC);
+    }
+
+    @Override
+    public void italic_() {
+        record(Op.ITALIC_);
+    }
+
+    @Override
+    public void bold() {
+        record(Op.BOLD);
+    }
+
+    @Override
+    public void bold_() {
+        record(Op.BOLD_);
+    }
+
+    @Override
+    public void monospaced() {
+        record(Op.MONOSPACED);
+    }
+
+    @Override
+    public void monospaced_() {
+        record(Op.MONOSPACED_);
+    }
+
+    @Override
+    public void lineBreak(SinkEventAttributes attributes) {
+        record(Op.LINE_BREAK, encode(attributes));
+    }
+
+    @Override
+    public void lineBreakOpportunity(SinkEventAttributes attributes) {
+        record(Op.LINE_BREAK_OPPORTUNITY, encode(attributes));
+    }
+
+    @Override
+    public void nonBreakingSpace() {
+        record(Op.NON_BREAKING_SPACE);
+    }
+
+    @Override
+    public void text(String text, SinkEventAttributes attributes) {
+        record(Op.TEXT, encode(text), encode(attributes));
+    }
+
+    @Override
+    public void rawText(String text) {
+        record(Op.RAW_TEXT, encode(text));
+    }
+
+    @Override
+    public void comment(String comment) {
+        record(Op.COMMENT, encode(comment));
+    }
+
+    @Override
+    public void markupLineBreak(int indentLevel) {
+        record(Op.MARKUP_LINE_BREAK, indentLevel);
+    }
+
+    @Override
+    public void unknown(String name, Object[] requiredParams, SinkEventAttributes attributes) {
+        record(Op.UNKNOWN, encode(name), store(requiredParams), encode(attributes));
+    }
+
+    @Override
+    public void flush() {
+        record(Op.FLUSH);
+    }
+
+    @Override
+    public void close() {
+        // not recorded
+    }
+
+    @Override
+    public String toString() {
+        return "SinkEventRecorder with " + count + " events";
+    }
+}
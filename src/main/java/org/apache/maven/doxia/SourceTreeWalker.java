@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.codehaus.plexus.util.SelectorUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Walks an input directory and hands every source file to a visitor as soon as it is found, so that conversion
+ * starts while the rest of the tree is still being read and no list of all files is ever held.
+ *
+ * <p>Patterns use the Ant syntax of {@link org.codehaus.plexus.util.DirectoryScanner} and are matched against the
+ * path relative to the input directory. A file is visited if it matches any of the patterns, any of the includes
+ * (if any are given), and none of the excludes. Directories matching an exclude ending with <code>/**</code> are
+ * not entered at all.</p>
+ */
+class SourceTreeWalker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SourceTreeWalker.class);
+
+    private static final String ALL_BELOW = File.separator + "**";
+
+    /**
+     * Receives the source files found by the walker.
+     */
+    @FunctionalInterface
+    interface Visitor {
+        /**
+         * @param file the source file
+         * @param attributes the attributes read along with the directory entry
+         * @param relativeDirectory the directory of the file, relative to the input directory
+         * @throws ConverterException if any
+         * @throws UnsupportedFormatException if any
+         */
+        void visit(Path file, BasicFileAttributes attributes, File relativeDirectory)
+                throws ConverterException, UnsupportedFormatException;
+    }
+
+    private final Path root;
+
+    private final List<String> patterns;
+
+    private final List<String> includes;
+
+    private final List<String> excludes;
+
+    /**
+     * @param root the input directory
+     * @param patterns the patterns of the files the parser understands, a file has to match one of them
+     * @param includes further patterns of which a file has to match one, ignored if empty
+     * @param excludes the patterns of files and directories to skip
+     */
+    SourceTreeWalker(
+            Path root, Collection<String> patterns, Collection<String> includes, Collection<String> excludes) {
+        this.root = root;
+        this.patterns = normalize(patterns);
+        this.includes = normalize(includes);
+        this.excludes = normalize(excludes);
+    }
+
+    /**
+     * Walks the tree, calling the visitor for each matching file in the order the file system lists them.
+     *
+     * @param visitor not null
+     * @return the number of files handed to the visitor
+     * @throws IOException if the tree could not be read
+     * @throws ConverterException if thrown by the visitor, which ends the walk
+     * @throws UnsupportedFormatException if thrown by the visitor, which ends the walk
+     */
+    int walk(Visitor visitor) throws IOException, ConverterException, UnsupportedFormatException {
+        TreeVisitor treeVisitor = new TreeVisitor(visitor);
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, treeVisitor);
+        if (treeVisitor.converterException != null) {
+            throw treeVisitor.converterException;
+        }
+        if (treeVisitor.unsupportedFormatException != null) {
+            throw treeVisitor.unsupportedFormatException;
+        }
+        return treeVisitor.count;
+    }
+
+    /**
+     * Calls the visitor for each of the given files which exists and matches, without walking the tree.
+     *
+     * @param relativePaths the paths of the files relative to the input directory, with the platform separator
+     * @param visitor not null
+     * @return the number of files handed to the visitor
+     * @throws IOException if the attributes of a file could not be read
+     * @throws ConverterException if thrown by the visitor, which ends the visit
+     * @throws UnsupportedFormatException if thrown by the visitor, which ends the visit
+     */
+    int visit(Collection<String> relativePaths, Visitor visitor)
+            throws IOException, ConverterException, UnsupportedFormatException {
+        int count = 0;
+        for (String relativePath : relativePaths) {
+            if (!isIncluded(relativePath) || isInExcludedDirectory(relativePath)) {
+                continue;
+            }
+            Path file = root.resolve(relativePath);
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            if (!attributes.isRegularFile()) {
+                continue;
+            }
+            count++;
+            String parent = new File(relativePath).getParent();
+            visitor.visit(file, attributes, new File(parent != null ? parent : ""));
+        }
+        return count;
+    }
+
+    boolean isIncluded(String relativePath) {
+        return matchesAny(patterns, relativePath)
+                && (includes.isEmpty() || matchesAny(includes, relativePath))
+                && !matchesAny(excludes, relativePath);
+    }
+
+    boolean isExcludedDirectory(String relativePath) {
+        for (String exclude : excludes) {
+            if (exclude.endsWith(ALL_BELOW)
+                    && SelectorUtils.matchPath(
+                            exclude.substring(0, exclude.length() - ALL_BELOW.length()), relativePath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param relativePath the path of a file relative to the input directory
+     * @return <code>true</code> if any directory the file is in would not be entered by {@link #walk(Visitor)}
+     */
+    private boolean isInExcludedDirectory(String relativePath) {
+        for (File directory = new File(relativePath).getParentFile();
+                directory != null;
+                directory = directory.getParentFile()) {
+            if (isExcludedDirectory(directory.getPath())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesAny(List<String> patterns, String relativePath) {
+        for (String pattern : patterns) {
+            if (SelectorUtils.matchPath(pattern, relativePath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Normalizes the patterns the same way as {@link org.codehaus.plexus.util.DirectoryScanner} does.
+     */
+    private static List<String> normalize(Collection<String> patterns) {
+        List<String> normalized = new ArrayList<>(patterns.size());
+        for (String pattern : patterns) {
+            String p = pattern.trim().replace('/', File.separatorChar).replace('\\', File.separatorChar);
+            if (p.isEmpty()) {
+                continue;
+            }
+            if (p.endsWith(File.separator)) {
+                p += "**";
+            }
+            normalized.add(p);
+        }
+        return normalized;
+    }
+
+    /**
+     * Keeps the relative path of the directory being visited, so that it is computed once per directory rather
+     * than once per file.
+     */
+    private final class TreeVisitor extends SimpleFileVisitor<Path> {
+        private final Visitor visitor;
+
+        private final Deque<String> relativePaths = new ArrayDeque<>();
+
+        private final Deque<File> relativeDirectories = new ArrayDeque<>();
+
+        private int count;
+
+        private ConverterException converterException;
+
+        private UnsupportedFormatException unsupportedFormatException;
+
+        TreeVisitor(Visitor visitor) {
+            this.visitor = visitor;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            String relativePath;
+            if (relativePaths.isEmpty()) {
+                relativePath = "";
+            } else {
+                relativePath = prefix() + dir.getFileName();
+                if (isExcludedDirectory(relativePath)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+            }
+            relativePaths.push(relativePath);
+            relativeDirectories.push(new File(relativePath));
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+            if (exc != null) {
+                throw exc;
+            }
+            relativePaths.pop();
+            relativeDirectories.pop();
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            if (!attrs.isRegularFile() || !isIncluded(prefix() + file.getFileName())) {
+                return FileVisitResult.CONTINUE;
+            }
+            count++;
+            try {
+                visitor.visit(file, attrs, relativeDirectories.peek());
+            } catch (ConverterException e) {
+                converterException = e;
+                return FileVisitResult.TERMINATE;
+            } catch (UnsupportedFormatException e) {
+                unsupportedFormatException = e;
+                return FileVisitResult.TERMINATE;
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+            if (exc instanceof FileSystemLoopException) {
+                LOGGER.warn("Skipping \"{}\" as it links back to one of its parent directories", file);
+                return FileVisitResult.CONTINUE;
+            }
+            throw exc;
+        }
+
+        private String prefix() {
+            String parent = relativePaths.peek();
+            return parent.isEmpty() ? "" : parent + File.separator;
+        }
+    }
+}
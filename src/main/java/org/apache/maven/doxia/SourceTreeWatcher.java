@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches an input directory and all its subdirectories for changed source files.
+ *
+ * <p>Editors and version control tools usually touch a file several times in a row, or many files at once. So after
+ * the first change, the watcher keeps collecting changes until none came for a quiet period, and then reports the
+ * whole burst at once. Each file is reported only once per burst, as changed if it exists at that time and as removed
+ * otherwise. Files in a new directory are reported as changed, files of a removed directory are not reported.</p>
+ *
+ * <p>The paths are relative to the input directory and use the platform separator, like the paths matched by
+ * {@link SourceTreeWalker}.</p>
+ */
+class SourceTreeWatcher implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SourceTreeWatcher.class);
+
+    /** A burst of changes */
+    static final class Changes {
+        /** The files changed or created, or <code>null</code> if too many events were lost to tell */
+        private final Set<String> changed;
+
+        /** The files deleted or renamed from */
+        private final Set<String> removed;
+
+        Changes(Set<String> changed, Set<String> removed) {
+            this.changed = changed;
+            this.removed = removed;
+        }
+
+        /**
+         * @return the files changed or created, in lexical order, or <code>null</code> if all files have to be
+         * converted again as the file system dropped events
+         */
+        Set<String> getChanged() {
+            return changed;
+        }
+
+        /**
+         * @return the files deleted or renamed from, in lexical order
+         */
+        Set<String> getRemoved() {
+            return removed;
+        }
+    }
+
+    private final Path root;
+
+    private final SourceTreeWalker walker;
+
+    private final long quietPeriod;
+
+    private final WatchService watchService;
+
+    /** The directory of each registration, as the events only name the file */
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+
+    /**
+     * @param root the input directory
+     * @param walker the walker selecting the source files and directories of the input directory
+     * @param quietPeriod the milliseconds without further changes which end a burst
+     * @throws IOException if the file system cannot be watched
+     */
+    SourceTreeWatcher(Path root, SourceTreeWalker walker, long quietPeriod) throws IOException {
+        this.root = root;
+        this.walker = walker;
+        this.quietPeriod = quietPeriod;
+        this.watchService = root.getFileSystem().newWatchService();
+        register(root, null);
+    }
+
+    /**
+     * Waits for the next burst of changes to source files.
+     *
+     * @return the changes, never empty
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IOException if a new directory could not be watched
+     */
+    Changes take() throws InterruptedException, IOException {
+        while (true) {
+            Set<String> touched = new TreeSet<>();
+            boolean overflow = false;
+            WatchKey key = watchService.take();
+            while (key != null) {
+                overflow |= poll(key, touched);
+                key = watchService.poll(quietPeriod, TimeUnit.MILLISECONDS);
+            }
+            if (overflow) {
+                LOGGER.warn("Lost track of changes in \"{}\", converting all files again", root);
+                return new Changes(null, new TreeSet<>());
+            }
+            Set<String> changed = new TreeSet<>();
+            Set<String> removed = new TreeSet<>();
+            for (String path : touched) {
+                if (walker.isIncluded(path)) {
+                    (Files.isRegularFile(root.resolve(path)) ? changed : removed).add(path);
+                }
+            }
+            if (!changed.isEmpty() || !removed.isEmpty()) {
+                return new Changes(changed, removed);
+            }
+        }
+    }
+
+    /**
+     * @param key a signalled key
+     * @param touched the paths of all files touched by the burst
+     * @return <code>true</code> if events were lost
+     */
+    private boolean poll(WatchKey key, Set<String> touched) throws IOException {
+        Path directory = directories.get(key);
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                // files may have been created before the directory is watched
+                register(path, touched);
+            } else {
+                touched.add(root.relativize(path).toString());
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+        return overflow;
+    }
+
+    /**
+     * Watches a directory and all its subdirectories which are not excluded.
+     *
+     * @param start the directory
+     * @param found receives the paths of the files already in the directories, may be null
+     */
+    private void register(Path start, Set<String> found) throws IOException {
+        Files.walkFileTree(
+                start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                        if (!dir.equals(root) && walker.isExcludedDirectory(root.relativize(dir).toString())) {
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        directories.put(
+                                dir.register(
+                                        watchService,
+                                        StandardWatchEventKinds.ENTRY_CREATE,
+                                        StandardWatchEventKinds.ENTRY_MODIFY,
+                                        StandardWatchEventKinds.ENTRY_DELETE),
+                                dir);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (found != null) {
+                            found.add(root.relativize(file).toString());
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                        // links back to a parent directory, or already gone again
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.doxia.DefaultConverter.DoxiaFormat;
+import org.apache.maven.doxia.sink.Sink;
+import org.apache.maven.doxia.sink.impl.SinkWrapper;
+
+/**
+ * Forwards every event to the sinks of several target formats, so that a document is parsed once however many
+ * formats it is converted to.
+ *
+ * <p>Macros are the only events whose content depends on the target format. The
+ * {@link DoxiaFormat.MacroConverterExecutor} therefore looks for a tee behind the sink it is given, see
+ * {@link #find(Sink)}, and writes each branch the macro in the format of that branch.</p>
+ */
+class TeeSink implements InvocationHandler {
+
+    private final List<DoxiaFormat> formats;
+
+    private final List<Sink> branches;
+
+    private final Sink sink;
+
+    /**
+     * @param formats the target format of each branch
+     * @param branches the sinks to forward the events to, in the same order as the formats
+     */
+    TeeSink(List<DoxiaFormat> formats, List<Sink> branches) {
+        if (formats.size() != branches.size() || branches.isEmpty()) {
+            throw new IllegalArgumentException("Each of the branches requires a format");
+        }
+        this.formats = new ArrayList<>(formats);
+        this.branches = new ArrayList<>(branches);
+        this.sink = (Sink) Proxy.newProxyInstance(TeeSink.class.getClassLoader(), new Class<?>[] {Sink.class}, this);
+    }
+
+    /**
+     * @param sink any sink, possibly wrapped by {@link SinkWrapper}s such as the ones a parser adds
+     * @return the tee the events of the given sink end up in, or <code>null</code> if the sink is no tee
+     */
+    static TeeSink find(Sink sink) {
+        Sink unwrapped = sink;
+        while (unwrapped instanceof SinkWrapper) {
+            unwrapped = ((SinkWrapper) unwrapped).getWrappedSink();
+        }
+        if (unwrapped != null && Proxy.isProxyClass(unwrapped.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(unwrapped);
+            if (handler instanceof TeeSink) {
+                return (TeeSink) handler;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the sink forwarding the events to all branches
+     */
+    Sink getSink() {
+        return sink;
+    }
+
+    /**
+     * @return the number of branches
+     */
+    int size() {
+        return branches.size();
+    }
+
+    /**
+     * @return the target format of each branch
+     */
+    List<DoxiaFormat> getFormats() {
+        return formats;
+    }
+
+    /**
+     * @param index the index of the branch
+     * @return the target format of the branch
+     */
+    DoxiaFormat getFormat(int index) {
+        return formats.get(index);
+    }
+
+    /**
+     * @param index the index of the branch
+     * @return the sink of the branch
+     */
+    Sink getBranch(int index) {
+        return branches.get(index);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "TeeSink to " + formats;
+            }
+        }
+        if ("getDocumentLocator".equals(method.getName())) {
+            return branches.get(0).getDocumentLocator();
+        }
+        // every branch gets the event, even if an earlier one failed, so that all of them are closed
+        Throwable failure = null;
+        for (Sink branch : branches) {
+            try {
+                method.invoke(branch, args);
+            } catch (InvocationTargetException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return null;
+    }
+}
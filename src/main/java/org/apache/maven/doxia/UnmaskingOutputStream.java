@@ -0,0 +1,297 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Restores the Velocity constructs masked by a {@link VelocityMasker} while a sink writes the converted document, so
+ * that the document is not decoded, restored and encoded again once complete. The references of the restored document
+ * are collected in the same pass, for {@link VelocityMasker#findNewReferences(List)}.
+ *
+ * <p>The stream works on the encoded bytes, holding back no more than the length of a placeholder. This takes an
+ * encoding in which the ASCII characters of the placeholders and references are single bytes which never occur
+ * within the encoding of another character, see {@link #supports(Charset)}. The result is the same as
+ * {@link VelocityMasker#unmask(String)} and {@link VelocityMasker#findNewReferences(String)} give for the whole
+ * document.</p>
+ */
+class UnmaskingOutputStream extends FilterOutputStream {
+    private static final byte[] START = VelocityMasker.PLACEHOLDER_START.getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] END = VelocityMasker.PLACEHOLDER_END.getBytes(StandardCharsets.US_ASCII);
+
+    /** The most digits of a placeholder, as many as an int has */
+    private static final int MAX_DIGITS = 10;
+
+    /** The ASCII characters the stream looks for, which have to be encoded as themselves */
+    private static final String MATCHED =
+            VelocityMasker.PLACEHOLDER_START + VelocityMasker.PLACEHOLDER_END + "0123456789$!{}\n";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Not in a reference */
+    private static final int NONE = 0;
+
+    /** After the <code>$</code> of a reference */
+    private static final int DOLLAR = 1;
+
+    /** After the <code>$!</code> of a quiet reference */
+    private static final int QUIET = 2;
+
+    /** Within the braces of a reference */
+    private static final int BODY = 3;
+
+    private final VelocityMasker masker;
+
+    private final Charset charset;
+
+    /** The bytes of what may be a placeholder, held back until it is known to be one */
+    private final byte[] pending = new byte[START.length + MAX_DIGITS + END.length];
+
+    private int pendingLength;
+
+    /** The length of the digits of the pending placeholder, once its end marker started */
+    private int digits = -1;
+
+    /** The restored bytes, not yet handed on */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private int bufferLength;
+
+    /** The restored bytes of what may be a reference */
+    private final ByteArrayOutputStream reference = new ByteArrayOutputStream();
+
+    private int referenceState = NONE;
+
+    private final List<String> references = new ArrayList<>();
+
+    private boolean finished;
+
+    /**
+     * @param out the stream receiving the restored document
+     * @param masker the masker holding the constructs taken out of the source
+     * @param charset the encoding the document is written with, which has to be {@link #supports(Charset) supported}
+     */
+    UnmaskingOutputStream(OutputStream out, VelocityMasker masker, Charset charset) {
+        super(out);
+        this.masker = masker;
+        this.charset = charset;
+    }
+
+    /**
+     * @param charset an output encoding
+     * @return <code>true</code> for UTF-8 and the single byte encodings which are a superset of ASCII
+     */
+    static boolean supports(Charset charset) {
+        if (StandardCharsets.UTF_8.equals(charset)) {
+            return true;
+        }
+        return charset.canEncode()
+                && charset.newEncoder().maxBytesPerChar() == 1
+                && Arrays.equals(MATCHED.getBytes(charset), MATCHED.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        unmask((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            unmask(b[i]);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Writes what is still held back, as the document ends there, and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!finished) {
+            finished = true;
+            emit(pending, 0, pendingLength);
+            pendingLength = 0;
+            flushBuffer();
+        }
+        out.close();
+    }
+
+    /**
+     * @return the references of the restored document which were not in the source, once the stream is closed
+     */
+    List<String> getNewReferences() {
+        return masker.findNewReferences(references);
+    }
+
+    private void unmask(byte b) throws IOException {
+        if (pendingLength == 0) {
+            if (b == START[0]) {
+                pending[pendingLength++] = b;
+            } else {
+                emit(b);
+            }
+            return;
+        }
+        pending[pendingLength++] = b;
+        int position = pendingLength - 1;
+        boolean matches;
+        if (position < START.length) {
+            matches = b == START[position];
+        } else if (digits < 0 && isDigit(b) && position - START.length < MAX_DIGITS) {
+            matches = true;
+        } else {
+            if (digits < 0) {
+                digits = position - START.length;
+            }
+            int endPosition = position - START.length - digits;
+            matches = digits > 0 && b == END[endPosition];
+            if (matches && endPosition == END.length - 1) {
+                replace();
+                return;
+            }
+        }
+        if (!matches) {
+            // the start marker holds its first byte only once, so no placeholder starts within the pending bytes
+            pendingLength--;
+            emit(pending, 0, pendingLength);
+            pendingLength = 0;
+            digits = -1;
+            unmask(b);
+        }
+    }
+
+    /**
+     * Substitutes the complete placeholder held back, or writes it as it is if it does not stand for a masked value.
+     */
+    private void replace() throws IOException {
+        String value = null;
+        // exactly the digits written for a placeholder, without leading zeros
+        if (digits == 1 || pending[START.length] != '0') {
+            long index = 0;
+            for (int i = START.length; i < START.length + digits; i++) {
+                index = index * 10 + pending[i] - '0';
+            }
+            if (index <= Integer.MAX_VALUE) {
+                value = masker.restore((int) index);
+            }
+        }
+        if (value == null) {
+            emit(pending, 0, pendingLength);
+        } else {
+            byte[] bytes = value.getBytes(charset);
+            emit(bytes, 0, bytes.length);
+        }
+        pendingLength = 0;
+        digits = -1;
+    }
+
+    private void emit(byte[] b, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            emit(b[i]);
+        }
+    }
+
+    /**
+     * Hands on a restored byte, looking for references on the way.
+     */
+    private void emit(byte b) throws IOException {
+        if (bufferLength == buffer.length) {
+            flushBuffer();
+        }
+        buffer[bufferLength++] = b;
+        findReference(b);
+    }
+
+    /**
+     * Matches the restored bytes against the formal references, finding the same as the expression of
+     * {@link VelocityMasker}: a match ends at the first closing brace, and where a candidate fails, the search
+     * goes on from its second byte.
+     */
+    private void findReference(byte b) {
+        switch (referenceState) {
+            case DOLLAR:
+                if (b == '!' || b == '{') {
+                    reference.write(b);
+                    referenceState = b == '!' ? QUIET : BODY;
+                    return;
+                }
+                break;
+            case QUIET:
+                if (b == '{') {
+                    reference.write(b);
+                    referenceState = BODY;
+                    return;
+                }
+                break;
+            case BODY:
+                if (b == '}') {
+                    reference.write(b);
+                    references.add(new String(reference.toByteArray(), charset));
+                    reference.reset();
+                    referenceState = NONE;
+                    return;
+                }
+                if (b != '{' && b != '\n') {
+                    reference.write(b);
+                    return;
+                }
+                break;
+            default:
+                if (b == '$') {
+                    reference.write(b);
+                    referenceState = DOLLAR;
+                }
+                return;
+        }
+        // the candidate failed, look again from its second byte
+        byte[] candidate = reference.toByteArray();
+        reference.reset();
+        referenceState = NONE;
+        for (int i = 1; i < candidate.length; i++) {
+            findReference(candidate[i]);
+        }
+        findReference(b);
+    }
+
+    private void flushBuffer() throws IOException {
+        if (bufferLength > 0) {
+            out.write(buffer, 0, bufferLength);
+            bufferLength = 0;
+        }
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
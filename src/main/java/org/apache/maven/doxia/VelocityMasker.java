@@ -18,11 +18,21 @@
  */
 package org.apache.maven.doxia;
 
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.commons.io.function.IOSupplier;
+
 /**
  * Hides Velocity constructs from a Doxia parser and restores them afterwards.
  *
@@ -48,19 +58,9 @@ class VelocityMasker {
      * from the destination whether it has a link or an in-page anchor, and a placeholder of bare
      * letters looks like neither, so the destination would be mangled into an anchor.</p>
      */
-    private static final String PLACEHOLDER_START = "velocitymask://";
-
-    private static final String PLACEHOLDER_END = "/endmask";
-
-    /** A block comment {@code #* ... *#}, which may span several lines. */
-    private static final Pattern BLOCK_COMMENT = Pattern.compile("#\\*.*?\\*#", Pattern.DOTALL);
+    static final String PLACEHOLDER_START = "velocitymask://";
 
-    /**
-     * A whole line holding nothing but a directive or a line comment, such as {@code #if( $a )},
-     * {@code #end} or {@code ## remark}. No APT, XDoc or FML construct starts a line with {@code #},
-     * so the whole line can be taken verbatim.
-     */
-    private static final Pattern DIRECTIVE_LINE = Pattern.compile("^[ \\t]*#[^\\n]*", Pattern.MULTILINE);
+    static final String PLACEHOLDER_END = "/endmask";
 
     /** A formal reference, {@code ${...}} or the quiet form {@code $!{...}}. */
     private static final Pattern REFERENCE = Pattern.compile("\\$!?\\{[^{}\\n]*\\}");
@@ -69,16 +69,90 @@ class VelocityMasker {
 
     private final List<String> maskedDirectives = new ArrayList<>();
 
+    /** The total length of the masked values, to size the restored document */
+    private int maskedLength;
+
     /**
+     * Masks, in this order of precedence:
+     * <ol>
+     * <li>block comments {@code #* ... *#}, which may span several lines;</li>
+     * <li>whole lines holding nothing but a directive or a line comment, such as {@code #if( $a )},
+     * {@code #end} or {@code ## remark}. No APT, XDoc or FML construct starts a line with {@code #},
+     * so the whole line can be taken verbatim;</li>
+     * <li>formal references, {@code ${...}} or the quiet form {@code $!{...}}.</li>
+     * </ol>
+     *
+     * <p>A construct of a later kind may contain one of an earlier kind, whose placeholder then
+     * becomes part of the masked text. The placeholders number the block comments first, then the
+     * directive lines, then the references, each in order of appearance.</p>
+     *
      * @param content the raw source of a Velocity template
      * @return the same content with every Velocity construct replaced by a placeholder
      */
     String mask(String content) {
-        String masked = mask(content, BLOCK_COMMENT);
-        int directivesStart = maskedValues.size();
-        masked = mask(masked, DIRECTIVE_LINE);
-        maskedDirectives.addAll(maskedValues.subList(directivesStart, maskedValues.size()));
-        return mask(masked, REFERENCE);
+        int[] placeholders;
+        try {
+            placeholders = tokenize(() -> new StringReader(content));
+        } catch (IOException e) {
+            // a StringReader does not fail
+            throw new UncheckedIOException(e);
+        }
+        if (placeholders.length == 0) {
+            return content;
+        }
+        StringBuilder masked = new StringBuilder(content.length() + placeholders.length * 8);
+        int from = 0;
+        for (int i = 0; i < placeholders.length; i += 3) {
+            masked.append(content, from, placeholders[i]).append(placeholder(placeholders[i + 2]));
+            from = placeholders[i + 1];
+        }
+        return masked.append(content, from, content.length()).toString();
+    }
+
+    /**
+     * Masks a template while it is read, as {@link #mask(String)} does, so that a large template is never held as
+     * text in full. As the index of a directive or reference depends on the number of constructs of the earlier
+     * kinds in the whole template, the template is read twice: once here to find the constructs, and once more
+     * through the reader opened by the supplier returned. The template is not kept open in between. Opened from a
+     * file, neither the template nor its masked copy is held in memory; the converted document still is, as its
+     * caller renders it.
+     *
+     * @param template opens the raw source of a Velocity template, each time from its start
+     * @return opens the masked template, to be closed by the caller
+     * @throws IOException if the template could not be read
+     */
+    IOSupplier<Reader> mask(IOSupplier<Reader> template) throws IOException {
+        int[] placeholders = tokenize(template);
+        return () -> new MaskingReader(template.get(), placeholders);
+    }
+
+    /**
+     * Finds the Velocity constructs of a template and takes them over as masked values.
+     *
+     * @return the start, the end and the index of the placeholder of each construct to mask, in order
+     */
+    private int[] tokenize(IOSupplier<Reader> template) throws IOException {
+        int commentsBefore = Integer.MAX_VALUE;
+        Tokenizer tokenizer;
+        while (true) {
+            try (Reader reader = template.get()) {
+                tokenizer = new Tokenizer(reader, maskedValues.size(), commentsBefore);
+                if (tokenizer.run()) {
+                    break;
+                }
+            }
+            // no block comment starts from there, so look at the template again without them
+            commentsBefore = tokenizer.unterminated;
+        }
+        int first = maskedValues.size();
+        maskedValues.addAll(tokenizer.comments);
+        maskedValues.addAll(tokenizer.directives);
+        maskedValues.addAll(tokenizer.references);
+        maskedDirectives.addAll(tokenizer.directives);
+        for (String value : maskedValues.subList(first, maskedValues.size())) {
+            maskedLength += value.length();
+        }
+        return tokenizer.placeholders();
     }
 
     /**
@@ -92,17 +166,6 @@ class VelocityMasker {
         return maskedDirectives;
     }
 
-    private String mask(String content, Pattern pattern) {
-        Matcher matcher = pattern.matcher(content);
-        StringBuffer buffer = new StringBuffer(content.length());
-        while (matcher.find()) {
-            maskedValues.add(matcher.group());
-            matcher.appendReplacement(buffer, Matcher.quoteReplacement(placeholder(maskedValues.size() - 1)));
-        }
-        matcher.appendTail(buffer);
-        return buffer.toString();
-    }
-
     /**
      * A parser may unescape markup which the source used to render a reference literally: APT
      * writes {@code $\{foo\}} to show {@code ${foo}} as text, and the APT parser hands the sink the
@@ -114,12 +177,33 @@ class VelocityMasker {
      * @return references that appear in the converted document but were not in the source
      */
     List<String> findNewReferences(String converted) {
-        List<String> extra = new ArrayList<>();
-        List<String> known = new ArrayList<>(maskedValues);
+        List<String> references = new ArrayList<>();
         Matcher matcher = REFERENCE.matcher(converted);
         while (matcher.find()) {
-            if (!known.remove(matcher.group())) {
-                extra.add(matcher.group());
+            references.add(matcher.group());
+        }
+        return findNewReferences(references);
+    }
+
+    /**
+     * @param references the formal references in the converted document, in order of appearance
+     * @return the references which were not in the source, as {@link #findNewReferences(String)}
+     */
+    List<String> findNewReferences(List<String> references) {
+        List<String> extra = new ArrayList<>();
+        // each masked value accounts for one occurrence in the converted document
+        Map<String, Integer> known = new HashMap<>(maskedValues.size() * 2);
+        for (String value : maskedValues) {
+            known.merge(value, 1, Integer::sum);
+        }
+        for (String reference : references) {
+            Integer count = known.get(reference);
+            if (count == null) {
+                extra.add(reference);
+            } else if (count == 1) {
+                known.remove(reference);
+            } else {
+                known.put(reference, count - 1);
             }
         }
         return extra;
@@ -130,16 +214,505 @@ class VelocityMasker {
      * @return the same content with the original Velocity constructs substituted back in
      */
     String unmask(String content) {
-        String unmasked = content;
-        // replace in reverse order so that a placeholder is never found inside restored text
-        for (int i = maskedValues.size() - 1; i >= 0; i--) {
-            unmasked = unmasked.replace(placeholder(i), maskedValues.get(i));
+        StringBuilder unmasked = new StringBuilder(content.length() + maskedLength);
+        restore(content, maskedValues.size(), unmasked);
+        return unmasked.toString();
+    }
+
+    /**
+     * @param index the index of a placeholder
+     * @return the masked value with its own placeholders restored, or <code>null</code> if no value has that index
+     */
+    String restore(int index) {
+        if (index < 0 || index >= maskedValues.size()) {
+            return null;
+        }
+        StringBuilder restored = new StringBuilder();
+        restore(maskedValues.get(index), index, restored);
+        return restored.toString();
+    }
+
+    /**
+     * Substitutes the placeholders in a single forward scan. A masked value may hold the placeholders
+     * of constructs masked before it, such as a block comment within a directive line, so it is
+     * restored in turn, but only with values of lower indexes. This gives the same result as replacing
+     * each placeholder throughout the content, from the highest index down.
+     *
+     * @param content the text to restore
+     * @param limit the index from which placeholders are left as they are
+     * @param to receives the restored text
+     */
+    private void restore(String content, int limit, StringBuilder to) {
+        int from = 0;
+        int start = content.indexOf(PLACEHOLDER_START);
+        while (start >= 0) {
+            int digits = start + PLACEHOLDER_START.length();
+            int end = digits;
+            long index = 0;
+            while (end < content.length() && end - digits < 10 && isDigit(content.charAt(end))) {
+                index = index * 10 + content.charAt(end++) - '0';
+            }
+            // exactly the digits written by placeholder(int), without leading zeros
+            boolean canonical = end == digits + 1 || end > digits && content.charAt(digits) != '0';
+            if (canonical && index < limit && content.startsWith(PLACEHOLDER_END, end)) {
+                to.append(content, from, start);
+                restore(maskedValues.get((int) index), (int) index, to);
+                from = end + PLACEHOLDER_END.length();
+                start = content.indexOf(PLACEHOLDER_START, from);
+            } else {
+                // the start marker cannot overlap itself
+                start = content.indexOf(PLACEHOLDER_START, digits);
+            }
         }
-        return unmasked;
+        to.append(content, from, content.length());
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
     }
 
     private static String placeholder(int index) {
         // the trailing marker keeps a lower index from being a prefix of a higher one
         return PLACEHOLDER_START + index + PLACEHOLDER_END;
     }
+
+    /**
+     * Finds all Velocity constructs of a template in a single scan, in time linear in its length.
+     *
+     * <p>The scan gives the same result as masking the block comments, the directive lines and the
+     * references with a regular expression each, one after the other. It works on the text as each of
+     * these passes would see it: a block comment counts as its placeholder when looking for the start
+     * of a line or for the end of a directive or reference, and a directive line is taken out before
+     * looking for references. As the final index of a directive or reference depends on the number of
+     * constructs of the earlier kinds, the placeholders are only numbered once the scan is done.</p>
+     *
+     * <p>The scan reads ahead no further than the current line, or the current reference and the block
+     * comments within it. Whether a block comment ends at all is only known at the end of the template,
+     * so each one is taken as ending until the end proves otherwise. As no {@code *#} follows that block
+     * comment, none of the ones after it ends either, and the scan has to start over taking only the
+     * ones before it as block comments.</p>
+     */
+    private static final class Tokenizer {
+        /** The last character of any placeholder, which never ends a line */
+        private static final char PLACEHOLDER_LAST = PLACEHOLDER_END.charAt(PLACEHOLDER_END.length() - 1);
+
+        private static final int COMMENT = 0;
+
+        private static final int DIRECTIVE = 1;
+
+        private static final int REFERENCE = 2;
+
+        private final Lookahead source;
+
+        /** The index of the first placeholder of this template */
+        private final int base;
+
+        /** The position from which {@code #*} starts no block comment, as no {@code *#} follows */
+        private final int commentsBefore;
+
+        private final List<String> comments = new ArrayList<>();
+
+        private final List<String> directives = new ArrayList<>();
+
+        private final List<String> references = new ArrayList<>();
+
+        /**
+         * The construct to replace with a placeholder, as the start, the end, the kind and the index
+         * among the constructs of its kind, one after the other
+         */
+        private int[] slots = new int[64];
+
+        private int slotsLength;
+
+        /** The position of a block comment which turned out not to end, or -1 */
+        private int unterminated = -1;
+
+        /** The previous character of the text with block comments masked, to tell the start of a line */
+        private int previous;
+
+        Tokenizer(Reader reader, int base, int commentsBefore) {
+            this.source = new Lookahead(reader);
+            this.base = base;
+            this.commentsBefore = commentsBefore;
+        }
+
+        /**
+         * @return <code>false</code> if a block comment turned out not to end, the scan then has to start
+         * over with block comments before {@link #unterminated} only
+         */
+        boolean run() throws IOException {
+            int c;
+            while (unterminated < 0 && (c = source.peek(0)) >= 0) {
+                if (isLineStart(c) && isDirectiveAhead()) {
+                    directive();
+                } else if (isCommentAt(0)) {
+                    int start = source.offset;
+                    comment(null, null);
+                    slot(start, COMMENT, comments.size() - 1);
+                } else if (c != '$' || !reference()) {
+                    source.read();
+                    previous = c;
+                }
+            }
+            return unterminated < 0;
+        }
+
+        /**
+         * @return the start, the end and the index of the placeholder of each construct, in order
+         */
+        int[] placeholders() {
+            int[] placeholders = new int[slotsLength / 4 * 3];
+            for (int i = 0, j = 0; i < slotsLength; i += 4, j += 3) {
+                placeholders[j] = slots[i];
+                placeholders[j + 1] = slots[i + 1];
+                int index = base + slots[i + 3];
+                if (slots[i + 2] != COMMENT) {
+                    index += comments.size();
+                }
+                if (slots[i + 2] == REFERENCE) {
+                    index += directives.size();
+                }
+                placeholders[j + 2] = index;
+            }
+            return placeholders;
+        }
+
+        private void slot(int start, int kind, int index) {
+            if (unterminated >= 0) {
+                return;
+            }
+            if (slotsLength == slots.length) {
+                slots = Arrays.copyOf(slots, slots.length * 2);
+            }
+            slots[slotsLength++] = start;
+            slots[slotsLength++] = source.offset;
+            slots[slotsLength++] = kind;
+            slots[slotsLength++] = index;
+        }
+
+        /**
+         * Like {@code ^} of a multi line regular expression on the text with block comments masked,
+         * which matches after any line terminator, but not between {@code \r} and {@code \n} nor at the
+         * end of the input.
+         *
+         * @param c the next character
+         */
+        private boolean isLineStart(int c) {
+            return source.offset == 0
+                    || previous == '\n'
+                    || previous == '\r' && c != '\n'
+                    || previous == '\u0085'
+                    || previous == '\u2028'
+                    || previous == '\u2029';
+        }
+
+        /**
+         * @return <code>true</code> if the line starting next holds a directive, after spaces and tabs
+         */
+        private boolean isDirectiveAhead() throws IOException {
+            int hash = 0;
+            int c;
+            while ((c = source.peek(hash)) == ' ' || c == '\t') {
+                hash++;
+            }
+            return c == '#' && !isCommentAt(hash);
+        }
+
+        /**
+         * @param ahead the number of characters from the next one
+         * @return <code>true</code> if a block comment starts there
+         */
+        private boolean isCommentAt(int ahead) throws IOException {
+            return source.offset + ahead < commentsBefore
+                    && source.peek(ahead) == '#'
+                    && source.peek(ahead + 1) == '*';
+        }
+
+        /**
+         * Masks the block comment starting next, as found by {@link #isCommentAt(int)}, or notes in
+         * {@link #unterminated} that it does not end.
+         *
+         * @param to receives the placeholder, may be null
+         * @param raw receives the comment itself, may be null
+         */
+        private void comment(StringBuilder to, StringBuilder raw) throws IOException {
+            int start = source.offset;
+            StringBuilder value = new StringBuilder();
+            value.append((char) source.read()).append((char) source.read());
+            int c;
+            do {
+                c = source.read();
+                if (c < 0) {
+                    unterminated = start;
+                    return;
+                }
+                value.append((char) c);
+            } while (c != '*' || source.peek(0) != '#');
+            value.append((char) source.read());
+            comments.add(value.toString());
+            if (to != null) {
+                to.append(placeholder(base + comments.size() - 1));
+            }
+            if (raw != null) {
+                raw.append(value);
+            }
+            previous = PLACEHOLDER_LAST;
+        }
+
+        /**
+         * Masks the directive line starting next, up to the next line feed which is not within a block
+         * comment, or the end of the content.
+         */
+        private void directive() throws IOException {
+            int start = source.offset;
+            StringBuilder value = new StringBuilder();
+            int c;
+            while (unterminated < 0 && (c = source.peek(0)) >= 0 && c != '\n') {
+                if (isCommentAt(0)) {
+                    comment(value, null);
+                } else {
+                    value.append((char) source.read());
+                }
+            }
+            directives.add(value.toString());
+            slot(start, DIRECTIVE, directives.size() - 1);
+            previous = PLACEHOLDER_LAST;
+        }
+
+        /**
+         * Masks the reference starting with the {@code $} next, if there is one. Its name ends at the
+         * first brace or line feed which is not within a block comment, and before the start of a
+         * directive line.
+         *
+         * @return <code>true</code> if the reference was masked, otherwise nothing was read and any block
+         * comment found is dropped again
+         */
+        private boolean reference() throws IOException {
+            int open = source.peek(1) == '!' ? 2 : 1;
+            if (source.peek(open) != '{') {
+                return false;
+            }
+            int start = source.offset;
+            StringBuilder raw = new StringBuilder();
+            for (int i = 0; i <= open; i++) {
+                raw.append((char) source.read());
+            }
+            StringBuilder value = new StringBuilder(raw);
+            int commentCount = comments.size();
+            int previousBefore = previous;
+            previous = '{';
+            int c;
+            while (unterminated < 0 && (c = source.peek(0)) >= 0) {
+                if (isCommentAt(0)) {
+                    comment(value, raw);
+                    continue;
+                }
+                if (c == '}') {
+                    value.append((char) source.read());
+                    references.add(value.toString());
+                    slot(start, REFERENCE, references.size() - 1);
+                    previous = PLACEHOLDER_LAST;
+                    return true;
+                }
+                if (c == '{' || c == '\n' || isLineStart(c) && isDirectiveAhead()) {
+                    break;
+                }
+                value.append((char) source.read());
+                raw.append((char) c);
+                previous = c;
+            }
+            // the comments are found again when scanning on after the $
+            comments.subList(commentCount, comments.size()).clear();
+            previous = previousBefore;
+            source.unread(raw);
+            return false;
+        }
+    }
+
+    /**
+     * A reader of the template which can look ahead and go back by any number of characters, holding no
+     * more of the template than that.
+     */
+    private static final class Lookahead {
+        private final Reader reader;
+
+        private char[] buffer = new char[8192];
+
+        /** The next character in {@link #buffer} */
+        private int position;
+
+        /** The end of the characters in {@link #buffer} */
+        private int limit;
+
+        private boolean end;
+
+        /** The position of the next character in the template */
+        private int offset;
+
+        Lookahead(Reader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * @param ahead the number of characters to skip
+         * @return the character after them, or -1 at the end of the template
+         */
+        int peek(int ahead) throws IOException {
+            while (position + ahead >= limit) {
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            return buffer[position + ahead];
+        }
+
+        int read() throws IOException {
+            int c = peek(0);
+            if (c >= 0) {
+                position++;
+                offset++;
+            }
+            return c;
+        }
+
+        /**
+         * @param read the characters just read, to read again
+         */
+        void unread(StringBuilder read) {
+            int length = read.length();
+            if (length > position) {
+                char[] moved = new char[Math.max(buffer.length, length + limit - position)];
+                System.arraycopy(buffer, position, moved, length, limit - position);
+                limit = length + limit - position;
+                position = length;
+                buffer = moved;
+            }
+            position -= length;
+            read.getChars(0, length, buffer, position);
+            offset -= length;
+        }
+
+        private boolean fill() throws IOException {
+            if (end) {
+                return false;
+            }
+            if (limit == buffer.length) {
+                if (position > 0) {
+                    System.arraycopy(buffer, position, buffer, 0, limit - position);
+                    limit -= position;
+                    position = 0;
+                } else {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+            int read = reader.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                end = true;
+                return false;
+            }
+            limit += read;
+            return true;
+        }
+    }
+
+    /**
+     * Reads a template with its Velocity constructs replaced by placeholders, from where they were found by a
+     * {@link Tokenizer}.
+     */
+    private static final class MaskingReader extends FilterReader {
+        /** The start, the end and the index of the placeholder of each construct, in order */
+        private final int[] placeholders;
+
+        /** The next construct in {@link #placeholders} */
+        private int next;
+
+        /** The position of the next character of the template */
+        private int offset;
+
+        /** The placeholder being read, or <code>null</code> */
+        private String placeholder;
+
+        private int placeholderPosition;
+
+        MaskingReader(Reader template, int[] placeholders) {
+            super(template);
+            this.placeholders = placeholders;
+        }
+
+        @Override
+        public int read() throws IOException {
+            char[] c = new char[1];
+            return read(c, 0, 1) < 0 ? -1 : c[0];
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (placeholder == null && next < placeholders.length && offset == placeholders[next]) {
+                int length = placeholders[next + 1] - offset;
+                for (long skipped = 0; skipped < length; ) {
+                    long n = in.skip(length - skipped);
+                    if (n == 0) {
+                        break;
+                    }
+                    skipped += n;
+                }
+                offset += length;
+                placeholder = placeholder(placeholders[next + 2]);
+                placeholderPosition = 0;
+                next += 3;
+            }
+            if (placeholder != null) {
+                int n = Math.min(len, placeholder.length() - placeholderPosition);
+                placeholder.getChars(placeholderPosition, placeholderPosition + n, cbuf, off);
+                placeholderPosition += n;
+                if (placeholderPosition == placeholder.length()) {
+                    placeholder = null;
+                }
+                return n;
+            }
+            int until = next < placeholders.length ? placeholders[next] : Integer.MAX_VALUE;
+            int n = in.read(cbuf, off, Math.min(len, until - offset));
+            if (n > 0) {
+                offset += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            char[] skipped = new char[(int) Math.min(n, 8192)];
+            long total = 0;
+            while (total < n) {
+                int read = read(skipped, 0, (int) Math.min(n - total, skipped.length));
+                if (read < 0) {
+                    break;
+                }
+                total += read;
+            }
+            return total;
+        }
+
+        @Override
+        public boolean ready() throws IOException {
+            return placeholder != null || in.ready();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void mark(int readAheadLimit) throws IOException {
+            throw new IOException("mark() not supported");
+        }
+
+        @Override
+        public void reset() throws IOException {
+            throw new IOException("reset() not supported");
+        }
+    }
 }
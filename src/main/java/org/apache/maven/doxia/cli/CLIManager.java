@@ -28,6 +28,7 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.apache.maven.doxia.ConversionOptions;
 import org.apache.maven.doxia.DefaultConverter;
 
 import static org.apache.commons.lang3.StringUtils.join;
@@ -77,6 +78,41 @@ class CLIManager {
 
     static final String EXCLUDE_VELOCITY_TEMPLATES = "excludeVm";
 
+    static final String INCLUDES = "include";
+
+    static final String EXCLUDES = "exclude";
+
+    static final String QUEUE_DEPTH = "queueDepth";
+
+    static final String SCHEDULING = "schedule";
+
+    static final String COST_FILE = "costFile";
+
+    static final String HEAP_LIMIT = "heapLimit";
+
+    static final String EXCLUSIVE_SIZE = "exclusiveSize";
+
+    static final String SPLIT_SIZE = "splitSize";
+
+    static final String INCREMENTAL = "incremental";
+
+    static final String CACHE_DIR = "cacheDir";
+
+    static final String CACHE_SIZE = "cacheSize";
+
+    static final String SINCE = "since";
+
+    static final String WATCH = "watch";
+
+    static final String RESUME = "resume";
+
+    static final String KEEP_GOING = "keepGoing";
+
+    static final String ENCODING_SAMPLES = "encodingSamples";
+
+    /** T character */
+    static final String THREADS = "T";
+
     public static final String AUTO_FORMAT = "auto";
 
     private static final Options OPTIONS;
@@ -116,7 +152,11 @@ class CLIManager {
                 .desc("From format. If not specified, try to autodetect it (only works if input is a single file).")
                 .hasArg()
                 .build());
-        OPTIONS.addOption(Option.builder(TO).desc("To format.").hasArg().build());
+        OPTIONS.addOption(Option.builder(TO)
+                .desc("To format, or comma separated formats to convert to at once. With several formats, each is "
+                        + "written to a subdirectory of the output directory named like the format.")
+                .hasArg()
+                .build());
         OPTIONS.addOption(Option.builder(INENCODING)
                 .desc("Input file encoding. If not specified, try to autodetect it.")
                 .hasArg()
@@ -134,6 +174,105 @@ class CLIManager {
                 .desc(
                         "Exclude Velocity templates (ending with .vm) from conversion. Only relevant when giving an input directory.")
                 .build());
+        OPTIONS.addOption(Option.builder(INCLUDES)
+                .desc("Comma separated Ant style patterns of the files to convert, relative to the input directory. "
+                        + "Only relevant when giving an input directory. If not specified, convert all files of the "
+                        + "input format.")
+                .hasArg()
+                .build());
+        OPTIONS.addOption(Option.builder(EXCLUDES)
+                .desc("Comma separated Ant style patterns of the files and directories not to convert, relative to "
+                        + "the input directory, in addition to the default excludes (like **/.git/**). "
+                        + "Only relevant when giving an input directory.")
+                .hasArg()
+                .build());
+        OPTIONS.addOption(Option.builder(THREADS)
+                .longOpt("threads")
+                .desc("Number of files converted at the same time. Only relevant when giving an input directory. "
+                        + "If not specified, use the number of available processors.")
+                .hasArg()
+                .build());
+        OPTIONS.addOption(Option.builder(QUEUE_DEPTH)
+                .desc("Number of files waiting for a stage of the conversion at most, either one number for all "
+                        + "stages or comma separated stage=number pairs with the stages read, parse and finish. "
+                        + "Only relevant when giving an input directory. If not specified, use "
+                        + ConversionOptions.DEFAULT_QUEUE_DEPTH + ".")
+                .hasArg()
+                .build());
+        OPTIONS.addOption(Option.builder(SCHEDULING)
+                .desc("Order in which the files are converted, one of walk_order (as found, starting right away), "
+                        + "largest_first or costliest_first (by the parse time recorded in the cost file). "
+                        + "Only relevant when giving an input directory. If not specified, use walk_order.")
+                .hasArg()
+                .build());
+        OPTIONS.addOption(Option.builder(COST_FILE)
+                .desc("Properties file in which the parse time of each file is recorded, required by "
+                        + "costliest_first scheduling. Only relevant when giving an input directory.")
+                .hasArg()
+                .build());
+        OPTIONS.addOption(Option.builder(HEAP_LIMIT)
+                .desc("Share of the maximum heap in percent up to which further files are started. "
+                        + "Only relevant when giving an input directory. If not specified, use "
+                        + ConversionOptions.DEFAULT_HEAP_LIMIT + ".")
+                .hasArg()
+                .build());
+        OPTIONS.addOption(Option.builder(EXCLUSIVE_SIZE)
+                .desc("Size in bytes from which a file is converted while no other file is. "
+                        + "Only relevant when giving an input directory. If not specified, derive it from the heap.")
+                .hasArg()
+                .build());
+        OPTIONS.addOption(Option.builder(SPLIT_SIZE)
+                .desc("Length in characters from which an apt or markdown document is split at its top level "
+                        + "sections to parse the parts on several threads. "
+                        + "If not specified, parse documents as a whole.")
+                .hasArg()
+                .build());
+        OPTIONS.addOption(Option.builder(INCREMENTAL)
+                .desc("Only convert the files which changed since the last conversion into the same output "
+                        + "directory, and remove the outputs of deleted files. Only relevant when giving an input "
+                        + "directory, and not together with removeIn or gitMvInputToOutput.")
+                .build());
+        OPTIONS.addOption(Option.builder(SINCE)
+                .desc("Only convert the files which git reports as added, modified or renamed since the given "
+                        + "revision, including uncommitted and untracked ones, and remove the outputs of files "
+                        + "renamed or deleted since. Only relevant when giving an input directory within a git "
+                        + "working tree, and not together with incremental.")
+                .hasArg()
+                .build());
+        OPTIONS.addOption(Option.builder(WATCH)
+                .desc("After converting, keep watching the input directory and convert the files again as soon as "
+                        + "they change, until interrupted. Only relevant when giving an input directory, and not "
+                        + "together with removeIn or gitMvInputToOutput.")
+                .build());
+        OPTIONS.addOption(Option.builder(RESUME)
+                .desc("Resume a conversion into the same output directory which was interrupted, skipping the files "
+                        + "it already converted. Only a conversion run with this option can be resumed. Converts all "
+                        + "files if there is none to resume with the same options. "
+                        + "Only relevant when giving an input directory, and not together with incremental.")
+                .build());
+        OPTIONS.addOption(Option.builder(KEEP_GOING)
+                .desc("Keep converting the other files when a file of the input directory fails, and report all "
+                        + "failed files at the end. Failed files are not post processed.")
+                .build());
+        OPTIONS.addOption(Option.builder(ENCODING_SAMPLES)
+                .desc("Number of files per directory whose input encoding is detected when it is auto, not counting "
+                        + "files of ASCII characters only. If they all agree on a UTF encoding, the other files of the "
+                        + "directory are read with it, unless they are not valid in it. Only relevant when giving an "
+                        + "input directory. If not specified, detect the encoding of every file.")
+                .hasArg()
+                .build());
+        OPTIONS.addOption(Option.builder(CACHE_DIR)
+                .desc("Directory in which converted documents are kept by content, to write documents converted "
+                        + "before without parsing them. May be shared by several conversions at the same time. "
+                        + "If not specified, do not cache.")
+                .hasArg()
+                .build());
+        OPTIONS.addOption(Option.builder(CACHE_SIZE)
+                .desc("Size in bytes to which the cache is reduced after each conversion, removing the least "
+                        + "recently used documents. If not specified, use " + ConversionOptions.DEFAULT_CACHE_SIZE
+                        + ".")
+                .hasArg()
+                .build());
         OPTIONS.addOption(Option.builder(DEBUG)
                 .longOpt("debug")
                 .desc("Produce execution debug output.")
@@ -26,7 +26,10 @@ import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
 
 import com.google.inject.Guice;
@@ -34,6 +37,9 @@ import com.google.inject.Injector;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.lang3.reflect.FieldUtils;
+import org.apache.maven.doxia.ConversionOptions;
+import org.apache.maven.doxia.ConversionOptions.PipelineStage;
+import org.apache.maven.doxia.ConversionOptions.Scheduling;
 import org.apache.maven.doxia.Converter;
 import org.apache.maven.doxia.Converter.PostProcess;
 import org.apache.maven.doxia.ConverterException;
@@ -116,8 +122,8 @@ public class ConverterCli {
         Converter converter = newConverter();
 
         InputFileWrapper input;
-        OutputFileWrapper output;
-        final PostProcess postProcess;
+        List<OutputFileWrapper> outputs;
+        ConversionOptions options;
         try {
             String sourceFormat = commandLine.getOptionValue(CLIManager.FROM, CLIManager.AUTO_FORMAT);
             final DefaultConverter.DoxiaFormat parserFormat;
@@ -130,29 +136,13 @@ public class ConverterCli {
             } else {
                 parserFormat = DefaultConverter.DoxiaFormat.valueOf(sourceFormat.toUpperCase());
             }
-            String targetFormat = commandLine.getOptionValue(CLIManager.TO);
-            if (commandLine.hasOption(CLIManager.REMOVE_IN)
-                    && commandLine.hasOption(CLIManager.GIT_MV_INPUT_TO_OUTPUT)) {
-                throw new IllegalArgumentException(
-                        "Options 'removeIn' and 'gitMvInputToOutput' are mutually exclusive.");
-            } else if (commandLine.hasOption(CLIManager.REMOVE_IN)) {
-                postProcess = PostProcess.REMOVE_AFTER_CONVERSION;
-            } else if (commandLine.hasOption(CLIManager.GIT_MV_INPUT_TO_OUTPUT)) {
-                postProcess = PostProcess.GIT_MV_INPUT_TO_OUTPUT;
-            } else {
-                postProcess = PostProcess.NONE;
-            }
-            final DefaultConverter.DoxiaFormat sinkFormat =
-                    DefaultConverter.DoxiaFormat.valueOf(targetFormat.toUpperCase());
             input = InputFileWrapper.valueOf(
                     commandLine.getOptionValue(CLIManager.IN),
                     parserFormat,
                     commandLine.getOptionValue(CLIManager.INENCODING),
                     commandLine.hasOption(CLIManager.EXCLUDE_VELOCITY_TEMPLATES));
-            output = OutputFileWrapper.valueOf(
-                    commandLine.getOptionValue(CLIManager.OUT),
-                    sinkFormat,
-                    commandLine.getOptionValue(CLIManager.OUTENCODING));
+            outputs = getOutputs(commandLine);
+            options = getOptions(commandLine, outputs.size());
         } catch (IllegalArgumentException e) {
             showFatalError("Illegal argument: " + e.getMessage(), e, showErrors);
 
@@ -165,12 +155,12 @@ public class ConverterCli {
             return 1;
         }
 
-        boolean format = commandLine.hasOption(CLIManager.FORMAT);
-        converter.setFormatOutput(format);
-        converter.setPostProcess(postProcess);
-
         try {
-            converter.convert(input, output);
+            if (commandLine.hasOption(CLIManager.WATCH)) {
+                converter.watch(input, outputs, options);
+            } else {
+                converter.convert(input, outputs, options);
+            }
         } catch (UnsupportedFormatException e) {
             showFatalError(e.getMessage(), e, showErrors);
 
@@ -192,6 +182,218 @@ public class ConverterCli {
         return 0;
     }
 
+    /**
+     * @param commandLine the parsed command line
+     * @param targets the number of target formats
+     * @return the options of the conversion
+     * @throws IllegalArgumentException if any option is invalid or options are combined which do not go together
+     */
+    private static ConversionOptions getOptions(CommandLine commandLine, int targets) {
+        PostProcess postProcess = getPostProcess(commandLine);
+        if (targets > 1 && postProcess == PostProcess.GIT_MV_INPUT_TO_OUTPUT) {
+            throw new IllegalArgumentException("Option 'gitMvInputToOutput' requires a single target format");
+        }
+        boolean incremental = commandLine.hasOption(CLIManager.INCREMENTAL);
+        if (incremental && postProcess != PostProcess.NONE) {
+            throw new IllegalArgumentException(
+                    "Option 'incremental' cannot be combined with 'removeIn' or 'gitMvInputToOutput'");
+        }
+        if (commandLine.hasOption(CLIManager.WATCH) && postProcess != PostProcess.NONE) {
+            throw new IllegalArgumentException(
+                    "Option 'watch' cannot be combined with 'removeIn' or 'gitMvInputToOutput'");
+        }
+        if (commandLine.hasOption(CLIManager.SINCE) && postProcess != PostProcess.NONE) {
+            throw new IllegalArgumentException(
+                    "Option 'since' cannot be combined with 'removeIn' or 'gitMvInputToOutput'");
+        }
+        if (incremental && commandLine.hasOption(CLIManager.SINCE)) {
+            throw new IllegalArgumentException("Option 'incremental' cannot be combined with 'since'");
+        }
+        if (incremental && commandLine.hasOption(CLIManager.RESUME)) {
+            throw new IllegalArgumentException("Option 'incremental' cannot be combined with 'resume'");
+        }
+        Scheduling scheduling = Scheduling.valueOf(commandLine
+                .getOptionValue(CLIManager.SCHEDULING, Scheduling.WALK_ORDER.name())
+                .toUpperCase(Locale.ENGLISH));
+        if (scheduling == Scheduling.COSTLIEST_FIRST && !commandLine.hasOption(CLIManager.COST_FILE)) {
+            throw new IllegalArgumentException("Option 'schedule' costliest_first requires option 'costFile'");
+        }
+        ConversionOptions.Builder options = ConversionOptions.builder()
+                .formatOutput(commandLine.hasOption(CLIManager.FORMAT))
+                .postProcess(postProcess)
+                .threads(getThreads(commandLine))
+                .includes(getPatterns(commandLine, CLIManager.INCLUDES))
+                .excludes(getPatterns(commandLine, CLIManager.EXCLUDES))
+                .scheduling(scheduling)
+                .heapLimit((int) getNumber(
+                        commandLine, CLIManager.HEAP_LIMIT, ConversionOptions.DEFAULT_HEAP_LIMIT, 1, 100))
+                .exclusiveFileSize(getNumber(commandLine, CLIManager.EXCLUSIVE_SIZE, 0, 0, Long.MAX_VALUE))
+                .documentSplitSize(getNumber(commandLine, CLIManager.SPLIT_SIZE, 0, 0, Long.MAX_VALUE))
+                .incremental(incremental)
+                .sinceRef(commandLine.getOptionValue(CLIManager.SINCE))
+                .resume(commandLine.hasOption(CLIManager.RESUME))
+                .keepGoing(commandLine.hasOption(CLIManager.KEEP_GOING))
+                .encodingSamples((int) getNumber(commandLine, CLIManager.ENCODING_SAMPLES, 0, 0, Integer.MAX_VALUE))
+                .cacheSize(getNumber(
+                        commandLine, CLIManager.CACHE_SIZE, ConversionOptions.DEFAULT_CACHE_SIZE, 0, Long.MAX_VALUE));
+        if (commandLine.hasOption(CLIManager.COST_FILE)) {
+            options.costFile(new File(commandLine.getOptionValue(CLIManager.COST_FILE)));
+        }
+        if (commandLine.hasOption(CLIManager.CACHE_DIR)) {
+            options.cacheDirectory(new File(commandLine.getOptionValue(CLIManager.CACHE_DIR)));
+        }
+        getQueueDepths(commandLine).forEach(options::queueDepth);
+        return options.build();
+    }
+
+    /**
+     * @param commandLine not null
+     * @return the post-processing selected by the options
+     * @throws IllegalArgumentException if more than one post-processing is selected
+     */
+    private static PostProcess getPostProcess(CommandLine commandLine) {
+        if (commandLine.hasOption(CLIManager.REMOVE_IN) && commandLine.hasOption(CLIManager.GIT_MV_INPUT_TO_OUTPUT)) {
+            throw new IllegalArgumentException("Options 'removeIn' and 'gitMvInputToOutput' are mutually exclusive.");
+        } else if (commandLine.hasOption(CLIManager.REMOVE_IN)) {
+            return PostProcess.REMOVE_AFTER_CONVERSION;
+        } else if (commandLine.hasOption(CLIManager.GIT_MV_INPUT_TO_OUTPUT)) {
+            return PostProcess.GIT_MV_INPUT_TO_OUTPUT;
+        }
+        return PostProcess.NONE;
+    }
+
+    /**
+     * @param commandLine the parsed command line
+     * @return the output of each target format, in a directory of its own below the output directory if there are
+     * several
+     * @throws IllegalArgumentException if a format is unknown or given twice
+     * @throws UnsupportedEncodingException if the output encoding is unsupported
+     */
+    private static List<OutputFileWrapper> getOutputs(CommandLine commandLine) throws UnsupportedEncodingException {
+        List<DefaultConverter.DoxiaFormat> formats = new ArrayList<>();
+        for (String targetFormat : commandLine.getOptionValue(CLIManager.TO).split(",")) {
+            DefaultConverter.DoxiaFormat format =
+                    DefaultConverter.DoxiaFormat.valueOf(targetFormat.trim().toUpperCase(Locale.ENGLISH));
+            if (formats.contains(format)) {
+                throw new IllegalArgumentException("Option 'to' gives the format " + format + " twice");
+            }
+            formats.add(format);
+        }
+        String out = commandLine.getOptionValue(CLIManager.OUT);
+        List<OutputFileWrapper> outputs = new ArrayList<>(formats.size());
+        for (DefaultConverter.DoxiaFormat format : formats) {
+            String outputPath =
+                    formats.size() > 1 ? new File(out, format.name().toLowerCase(Locale.ENGLISH)).getPath() : out;
+            outputs.add(OutputFileWrapper.valueOf(
+                    outputPath, format, commandLine.getOptionValue(CLIManager.OUTENCODING)));
+        }
+        return outputs;
+    }
+
+    /**
+     * @param commandLine the parsed command line
+     * @return the number of worker threads, by default the number of processors available to the JVM (which takes
+     * container CPU quotas into account)
+     * @throws IllegalArgumentException if the given value is not a positive number
+     */
+    private static int getThreads(CommandLine commandLine) {
+        if (!commandLine.hasOption(CLIManager.THREADS)) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        String value = commandLine.getOptionValue(CLIManager.THREADS);
+        final int threads;
+        try {
+            threads = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option 'threads' requires a number, but was '" + value + "'", e);
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("Option 'threads' must be at least 1, but was " + threads);
+        }
+        return threads;
+    }
+
+    /**
+     * @param commandLine the parsed command line
+     * @param option the option holding a number
+     * @param defaultValue the value if the option is not given
+     * @param min the lowest value allowed
+     * @param max the highest value allowed
+     * @return the value of the option
+     * @throws IllegalArgumentException if the given value is not a number in range
+     */
+    private static long getNumber(CommandLine commandLine, String option, long defaultValue, long min, long max) {
+        if (!commandLine.hasOption(option)) {
+            return defaultValue;
+        }
+        String value = commandLine.getOptionValue(option);
+        final long number;
+        try {
+            number = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option '" + option + "' requires a number, but was '" + value + "'", e);
+        }
+        if (number < min || number > max) {
+            throw new IllegalArgumentException(
+                    "Option '" + option + "' must be between " + min + " and " + max + ", but was " + number);
+        }
+        return number;
+    }
+
+    /**
+     * @param commandLine the parsed command line
+     * @param option the option holding comma separated patterns
+     * @return the patterns, empty if the option is not given
+     */
+    private static List<String> getPatterns(CommandLine commandLine, String option) {
+        List<String> patterns = new ArrayList<>();
+        if (commandLine.hasOption(option)) {
+            for (String pattern : commandLine.getOptionValue(option).split(",")) {
+                if (!pattern.trim().isEmpty()) {
+                    patterns.add(pattern.trim());
+                }
+            }
+        }
+        return patterns;
+    }
+
+    /**
+     * @param commandLine the parsed command line
+     * @return the queue depth by stage, empty if the option is not given
+     * @throws IllegalArgumentException if the given value is malformed
+     */
+    private static Map<PipelineStage, Integer> getQueueDepths(CommandLine commandLine) {
+        Map<PipelineStage, Integer> queueDepths = new EnumMap<>(PipelineStage.class);
+        if (!commandLine.hasOption(CLIManager.QUEUE_DEPTH)) {
+            return queueDepths;
+        }
+        String value = commandLine.getOptionValue(CLIManager.QUEUE_DEPTH);
+        try {
+            if (value.indexOf('=') < 0) {
+                int queueDepth = Integer.parseInt(value.trim());
+                for (PipelineStage stage : PipelineStage.values()) {
+                    queueDepths.put(stage, queueDepth);
+                }
+            } else {
+                for (String pair : value.split(",")) {
+                    String[] stageAndDepth = pair.split("=", 2);
+                    queueDepths.put(
+                            PipelineStage.valueOf(stageAndDepth[0].trim().toUpperCase(Locale.ENGLISH)),
+                            Integer.parseInt(stageAndDepth[1].trim()));
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Option 'queueDepth' is malformed: '" + value + "'", e);
+        }
+        for (Map.Entry<PipelineStage, Integer> entry : queueDepths.entrySet()) {
+            if (entry.getValue() < 1) {
+                throw new IllegalArgumentException("Option 'queueDepth' must be at least 1, but was "
+                        + entry.getValue() + " for stage " + entry.getKey());
+            }
+        }
+        return queueDepths;
+    }
+
     private static void showVersion() {
         try (InputStream resourceAsStream = ConverterCli.class
                 .getClassLoader()
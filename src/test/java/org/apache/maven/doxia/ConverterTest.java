@@ -34,7 +34,19 @@ import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.doxia.ConversionOptions.PipelineStage;
+import org.apache.maven.doxia.ConversionOptions.Scheduling;
 import org.apache.maven.doxia.DefaultConverter.DoxiaFormat;
 import org.apache.maven.doxia.wrapper.InputFileWrapper;
 import org.apache.maven.doxia.wrapper.InputReaderWrapper;
@@ -48,7 +60,10 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertLinesMatch;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
@@ -120,6 +135,729 @@ class ConverterTest extends InjectedTest {
         assertTrue(new File(out, "child/test.md").exists());
         assertTrue(new File(out, "child/test.md").length() != 0);
 
+        // outputs which already have the converted content are not written again
+        File testOut = new File(out, "test.md");
+        long lastModified = testOut.lastModified() - 60000;
+        assertTrue(testOut.setLastModified(lastModified));
+        converter.convert(input, output);
+        assertEquals(lastModified, testOut.lastModified());
+
+        FileUtils.deleteDirectory(new File(getBasedir() + "/target/unit/"));
+    }
+
+    /**
+     * Input dir / output dir, converted on several threads
+     *
+     * @see Converter#convert(InputFileWrapper, OutputFileWrapper)
+     * @throws Exception if any
+     */
+    @Test
+    void fileConverterWithInputDirOutputDirConcurrently() throws Exception {
+        String in = getBasedir() + "/src/test/resources/unit/apt";
+        String sequentialOut = getBasedir() + "/target/unit/sequential/";
+        String concurrentOut = getBasedir() + "/target/unit/concurrent/";
+
+        InputFileWrapper input = InputFileWrapper.valueOf(in, DoxiaFormat.APT, StandardCharsets.UTF_8.name());
+        ConversionOptions options = ConversionOptions.builder().formatOutput(formatOutput).build();
+        converter.convert(
+                input,
+                OutputFileWrapper.valueOf(sequentialOut, DoxiaFormat.MARKDOWN, StandardCharsets.UTF_8.name()),
+                options);
+        converter.convert(
+                input,
+                OutputFileWrapper.valueOf(concurrentOut, DoxiaFormat.MARKDOWN, StandardCharsets.UTF_8.name()),
+                options.toBuilder()
+                        .threads(4)
+                        .queueDepth(PipelineStage.PARSE, 1)
+                        .queueDepth(PipelineStage.FINISH, 1)
+                        .build());
+
+        for (String name : new String[] {"test.md", "macro.md", "child/test.md"}) {
+            assertEquals(
+                    new String(Files.readAllBytes(new File(sequentialOut, name).toPath()), StandardCharsets.UTF_8),
+                    new String(Files.readAllBytes(new File(concurrentOut, name).toPath()), StandardCharsets.UTF_8));
+        }
+
+        FileUtils.deleteDirectory(new File(getBasedir() + "/target/unit/"));
+    }
+
+    /**
+     * Input directory with include and exclude patterns
+     *
+     * @see Converter#convert(InputFileWrapper, OutputFileWrapper, ConversionOptions)
+     * @throws Exception if any
+     */
+    @Test
+    void fileConverterWithInputDirIncludesExcludes() throws Exception {
+        String in = getBasedir() + "/src/test/resources/unit/apt";
+        String out = getBasedir() + "/target/unit/filtered/";
+
+        InputFileWrapper input = InputFileWrapper.valueOf(in, DoxiaFormat.APT, StandardCharsets.UTF_8.name());
+        OutputFileWrapper output = OutputFileWrapper.valueOf(out, DoxiaFormat.MARKDOWN, StandardCharsets.UTF_8.name());
+        converter.convert(
+                input,
+                output,
+                ConversionOptions.builder()
+                        .includes(Arrays.asList("**/test.apt"))
+                        .excludes(Arrays.asList("child/**"))
+                        .build());
+
+        assertTrue(new File(out, "test.md").isFile());
+        assertFalse(new File(out, "macro.md").exists());
+        assertFalse(new File(out, "child").exists());
+
+        ConverterException e = assertThrows(
+                ConverterException.class,
+                () -> converter.convert(
+                        input,
+                        output,
+                        ConversionOptions.builder()
+                                .excludes(Arrays.asList("**/*.apt"))
+                                .build()));
+        assertTrue(e.getMessage().contains("No files with extension apt found"));
+
+        FileUtils.deleteDirectory(new File(getBasedir() + "/target/unit/"));
+    }
+
+    /**
+     * Input directory converted costliest files first, recording the costs
+     *
+     * @see Converter#convert(InputFileWrapper, OutputFileWrapper, ConversionOptions)
+     * @throws Exception if any
+     */
+    @Test
+    void fileConverterWithInputDirCostliestFirst() throws Exception {
+        String in = getBasedir() + "/src/test/resources/unit/apt";
+        String out = getBasedir() + "/target/unit/scheduled/";
+        File costFile = new File(getBasedir() + "/target/unit/costs.properties");
+
+        InputFileWrapper input = InputFileWrapper.valueOf(in, DoxiaFormat.APT, StandardCharsets.UTF_8.name());
+        OutputFileWrapper output = OutputFileWrapper.valueOf(out, DoxiaFormat.MARKDOWN, StandardCharsets.UTF_8.name());
+        ConversionOptions options = ConversionOptions.builder()
+                .threads(2)
+                .scheduling(Scheduling.COSTLIEST_FIRST)
+                .costFile(costFile)
+                .build();
+        // the first conversion has no costs recorded yet and estimates them all from the file sizes
+        converter.convert(input, output, options);
+        converter.convert(input, output, options);
+
+        Properties costs = new Properties();
+        try (Reader reader = new FileReader(costFile)) {
+            costs.load(reader);
+        }
+        assertEquals(3, costs.size());
+        assertTrue(costs.containsKey("child/test.apt"));
+        assertTrue(new File(out, "child/test.md").isFile());
+
+        assertThrows(
+                IllegalStateException.class,
+                () -> ConversionOptions.builder()
+                        .scheduling(Scheduling.COSTLIEST_FIRST)
+                        .build());
+
+        FileUtils.deleteDirectory(new File(getBasedir() + "/target/unit/"));
+    }
+
+    /**
+     * Input directory whose files are all large enough to be converted on their own
+     *
+     * @see Converter#convert(InputFileWrapper, OutputFileWrapper, ConversionOptions)
+     * @throws Exception if any
+     */
+    @Test
+    void fileConverterWithInputDirExclusiveFiles() throws Exception {
+        String in = getBasedir() + "/src/test/resources/unit/apt";
+        String out = getBasedir() + "/target/unit/exclusive/";
+
+        InputFileWrapper input = InputFileWrapper.valueOf(in, DoxiaFormat.APT, StandardCharsets.UTF_8.name());
+        OutputFileWrapper output = OutputFileWrapper.valueOf(out, DoxiaFormat.MARKDOWN, StandardCharsets.UTF_8.name());
+        converter.convert(
+                input,
+                output,
+                ConversionOptions.builder().threads(4).exclusiveFileSize(1).build());
+
+        assertTrue(new File(out, "test.md").isFile());
+        assertTrue(new File(out, "macro.md").isFile());
+        assertTrue(new File(out, "child/test.md").isFile());
+
+        FileUtils.deleteDirectory(new File(getBasedir() + "/target/unit/"));
+    }
+
+    /**
+     * Input dir / output dir, converting only the files changed since the last conversion
+     *
+     * @see ConversionOptions#isIncremental()
+     * @throws Exception if any
+     */
+    @Test
+    void fileConverterWithInputDirIncremental() throws Exception {
+        File in = new File(getBasedir() + "/target/unit/incremental/in");
+        File out = new File(getBasedir() + "/target/unit/incremental/out");
+        FileUtils.copyDirectoryStructure(new File(getBasedir() + "/src/test/resources/unit/apt"), in);
+        InputFileWrapper input =
+                InputFileWrapper.valueOf(in.getAbsolutePath(), DoxiaFormat.APT, StandardCharsets.UTF_8.name());
+        OutputFileWrapper output =
+                OutputFileWrapper.valueOf(out.getAbsolutePath(), DoxiaFormat.MARKDOWN, StandardCharsets.UTF_8.name());
+        ConversionOptions options = ConversionOptions.builder().incremental(true).build();
+
+        converter.convert(input, output, options);
+        assertTrue(new File(out, ConversionManifest.FILE_NAME).isFile());
+        File testOut = new File(out, "test.md");
+        File childOut = new File(out, "child/test.md");
+        File macroOut = new File(out, "macro.md");
+        assertTrue(macroOut.isFile());
+
+        // outputs of unchanged inputs are left alone, even if an input was only touched
+        String marker = "not converted again";
+        FileUtils.fileWrite(testOut, marker);
+        FileUtils.fileWrite(childOut, marker);
+        File childIn = new File(in, "child/test.apt");
+        assertTrue(childIn.setLastModified(childIn.lastModified() + 10000));
+        assertTrue(new File(in, "macro.apt").delete());
+        converter.convert(input, output, options);
+        assertEquals(marker, FileUtils.fileRead(testOut));
+        assertEquals(marker, FileUtils.fileRead(childOut));
+        assertFalse(macroOut.exists());
+
+        // a changed input is converted again
+        FileUtils.fileAppend(new File(in, "test.apt").getAbsolutePath(), "\nAppended paragraph.\n");
+        converter.convert(input, output, options);
+        assertTrue(FileUtils.fileRead(testOut).contains("Appended paragraph."));
+        assertEquals(marker, FileUtils.fileRead(childOut));
+
+        // a narrower selection leaves the outputs of the other files alone
+        converter.convert(input, output, options.toBuilder().includes(Collections.singletonList("child/**")).build());
+        assertTrue(FileUtils.fileRead(testOut).contains("Appended paragraph."));
+        converter.convert(input, output, options);
+        assertTrue(testOut.isFile());
+
+        // different options convert all files again
+        converter.convert(input, output, options.toBuilder().formatOutput(true).build());
+        assertFalse(FileUtils.fileRead(childOut).contains(marker));
+
+        assertThrows(IllegalStateException.class, () -> options.toBuilder()
+                .postProcess(Converter.PostProcess.REMOVE_AFTER_CONVERSION)
+                .build());
+
+        FileUtils.deleteDirectory(new File(getBasedir() + "/target/unit/"));
+    }
+
+    /**
+     * Input dir / output dir, converting only the files changed since a git revision
+     *
+     * @see ConversionOptions#getSinceRef()
+     * @throws Exception if any
+     */
+    @Test
+    void fileConverterWithInputDirSinceRef() throws Exception {
+        File repository = new File(getBasedir() + "/target/unit/since");
+        File in = new File(repository, "src");
+        File out = new File(getBasedir() + "/target/unit/since-out");
+        FileUtils.copyDirectoryStructure(new File(getBasedir() + "/src/test/resources/unit/apt"), in);
+        git(repository, "init", "-q");
+        git(repository, "add", ".");
+        git(repository, "-c", "user.name=test", "-c", "user.email=test@example.com", "commit", "-q", "-m", "initial");
+        InputFileWrapper input =
+                InputFileWrapper.valueOf(in.getAbsolutePath(), DoxiaFormat.APT, StandardCharsets.UTF_8.name());
+        OutputFileWrapper output =
+                OutputFileWrapper.valueOf(out.getAbsolutePath(), DoxiaFormat.MARKDOWN, StandardCharsets.UTF_8.name());
+        converter.convert(input, output, ConversionOptions.DEFAULT);
+
+        String marker = "not converted again";
+        FileUtils.fileWrite(new File(out, "macro.md"), marker);
+        FileUtils.fileAppend(new File(in, "test.apt").getAbsolutePath(), "\nAppended paragraph.\n");
+        git(repository, "mv", "src/child/test.apt", "src/child/renamed.apt");
+        FileUtils.copyFile(new File(in, "test.apt"), new File(in, "added.apt"));
+        converter.convert(input, output, ConversionOptions.builder().sinceRef("HEAD").build());
+        assertEquals(marker, FileUtils.fileRead(new File(out, "macro.md")));
+        assertTrue(FileUtils.fileRead(new File(out, "test.md")).contains("Appended paragraph."));
+        assertTrue(new File(out, "added.md").isFile());
+        assertTrue(new File(out, "child/renamed.md").isFile());
+        assertFalse(new File(out, "child/test.md").exists());
+
+        assertThrows(
+                ConverterException.class,
+                () -> converter.convert(input, output, ConversionOptions.builder().sinceRef("unknown").build()));
+        assertThrows(IllegalArgumentException.class, () -> ConversionOptions.builder().sinceRef("--output=x"));
+        assertThrows(IllegalStateException.class, () -> ConversionOptions.builder()
+                .sinceRef("HEAD")
+                .incremental(true)
+                .build());
+        assertThrows(IllegalStateException.class, () -> ConversionOptions.builder()
+                .sinceRef("HEAD")
+                .postProcess(Converter.PostProcess.REMOVE_AFTER_CONVERSION)
+                .build());
+        assertThrows(IllegalStateException.class, () -> ConversionOptions.builder()
+                .sinceRef("HEAD")
+                .postProcess(Converter.PostProcess.GIT_MV_INPUT_TO_OUTPUT)
+                .build());
+
+        FileUtils.deleteDirectory(new File(getBasedir() + "/target/unit/"));
+    }
+
+    /**
+     * Input dir / output dir, with many files of the same content converted once
+     *
+     * @throws Exception if any
+     */
+    @Test
+    void fileConverterWithInputDirDuplicates() throws Exception {
+        File in = new File(getBasedir() + "/target/unit/duplicates/in");
+        File out = new File(getBasedir() + "/target/unit/duplicates/out");
+        File test = new File(getBasedir() + "/src/test/resources/unit/apt/test.apt");
+        for (int i = 0; i < 20; i++) {
+            FileUtils.copyFile(test, new File(in, "module" + i + "/license.apt"));
+        }
+        FileUtils.copyFile(test, new File(in, "license.apt.vm"));
+        FileUtils.copyFile(
+                new File(getBasedir() + "/src/test/resources/unit/apt/macro.apt"), new File(in, "other.apt"));
+        InputFileWrapper input =
+                InputFileWrapper.valueOf(in.getAbsolutePath(), DoxiaFormat.APT, StandardCharsets.UTF_8.name());
+        converter.convert(
+                input,
+                Arrays.asList(
+                        OutputFileWrapper.valueOf(
+                                new File(out, "markdown").getAbsolutePath(),
+                                DoxiaFormat.MARKDOWN,
+                                StandardCharsets.UTF_8.name()),
+                        OutputFileWrapper.valueOf(
+                                new File(out, "xhtml").getAbsolutePath(),
+                                DoxiaFormat.XHTML,
+                                StandardCharsets.UTF_8.name())),
+                ConversionOptions.builder()
+                        .threads(4)
+                        .postProcess(Converter.PostProcess.REMOVE_AFTER_CONVERSION)
+                        .build());
+
+        String markdown = FileUtils.fileRead(new File(out, "markdown/module0/license.md"));
+        String xhtml = FileUtils.fileRead(new File(out, "xhtml/module0/license.html"));
+        for (int i = 1; i < 20; i++) {
+            assertEquals(markdown, FileUtils.fileRead(new File(out, "markdown/module" + i + "/license.md")));
+            assertEquals(xhtml, FileUtils.fileRead(new File(out, "xhtml/module" + i + "/license.html")));
+        }
+        assertEquals(markdown, FileUtils.fileRead(new File(out, "markdown/license.md.vm")));
+        assertNotEquals(markdown, FileUtils.fileRead(new File(out, "markdown/other.md")));
+        // every input file is removed once its outputs are written
+        assertTrue(FileUtils.getFiles(in, "**", null).isEmpty());
+
+        FileUtils.deleteDirectory(new File(getBasedir() + "/target/unit/"));
+    }
+
+    /**
+     * Input dir / output dir, converting all other files when some fail
+     *
+     * @throws Exception if any
+     */
+    @Test
+    void fileConverterWithInputDirKeepGoing() throws Exception {
+        File in = new File(getBasedir() + "/target/unit/keepgoing/in");
+        File out = new File(getBasedir() + "/target/unit/keepgoing/out");
+        FileUtils.copyDirectoryStructure(new File(getBasedir() + "/src/test/resources/unit/apt"), in);
+        for (String broken : Arrays.asList("broken.apt", "child/broken.apt", "copy/broken.apt")) {
+            File file = new File(in, broken);
+            file.getParentFile().mkdirs();
+            FileUtils.fileWrite(file, "UTF-8", "Title\n\n  Text {{{broken\n");
+        }
+        InputFileWrapper input =
+                InputFileWrapper.valueOf(in.getAbsolutePath(), DoxiaFormat.APT, StandardCharsets.UTF_8.name());
+        OutputFileWrapper output =
+                OutputFileWrapper.valueOf(out.getAbsolutePath(), DoxiaFormat.MARKDOWN, StandardCharsets.UTF_8.name());
+        BatchConversionException e = assertThrows(
+                BatchConversionException.class,
+                () -> converter.convert(
+                        input,
+                        output,
+                        ConversionOptions.builder()
+                                .threads(2)
+                                .keepGoing(true)
+                                .postProcess(Converter.PostProcess.REMOVE_AFTER_CONVERSION)
+                                .build()));
+
+        assertEquals(3, e.getFailures().size());
+        assertEquals(new File(in, "broken.apt"), e.getFailures().get(0).getFile());
+        assertEquals(new File(in, "child/broken.apt"), e.getFailures().get(1).getFile());
+        assertEquals(new File(in, "copy/broken.apt"), e.getFailures().get(2).getFile());
+        assertTrue(e.getMessage().startsWith("3 of 6 files could not be converted:"), e.getMessage());
+        // the other files are converted and removed, the failed ones are left alone
+        assertTrue(new File(out, "test.md").exists());
+        assertTrue(new File(out, "child/test.md").exists());
+        assertFalse(new File(in, "test.apt").exists());
+        assertFalse(new File(out, "broken.md").exists());
+        assertTrue(new File(in, "broken.apt").exists());
+        assertTrue(new File(in, "copy/broken.apt").exists());
+
+        // a file which fails in an incremental conversion keeps its outputs of the last one
+        File incrementalIn = new File(getBasedir() + "/target/unit/keepgoing/incremental/in");
+        File incrementalOut = new File(getBasedir() + "/target/unit/keepgoing/incremental/out");
+        FileUtils.copyDirectoryStructure(new File(getBasedir() + "/src/test/resources/unit/apt"), incrementalIn);
+        InputFileWrapper incrementalInput = InputFileWrapper.valueOf(
+                incrementalIn.getAbsolutePath(), DoxiaFormat.APT, StandardCharsets.UTF_8.name());
+        OutputFileWrapper incrementalOutput = OutputFileWrapper.valueOf(
+                incrementalOut.getAbsolutePath(), DoxiaFormat.MARKDOWN, StandardCharsets.UTF_8.name());
+        FileUtils.copyFile(new File(incrementalIn, "test.apt"), new File(incrementalIn, "copy/test.apt"));
+        ConversionOptions incremental = ConversionOptions.builder().incremental(true).keepGoing(true).build();
+        converter.convert(incrementalInput, incrementalOutput, incremental);
+        FileUtils.fileWrite(new File(incrementalIn, "test.apt"), "UTF-8", "Title\n\n  Text {{{broken\n");
+        FileUtils.fileWrite(new File(incrementalIn, "copy/test.apt"), "UTF-8", "Title\n\n  Text {{{broken\n");
+        e = assertThrows(
+                BatchConversionException.class,
+                () -> converter.convert(incrementalInput, incrementalOutput, incremental));
+        assertEquals(2, e.getFailures().size());
+        assertTrue(new File(incrementalOut, "test.md").exists());
+        assertTrue(new File(incrementalOut, "copy/test.md").exists());
+        // neither file of the group counts as converted, whichever of them was parsed
+        e = assertThrows(
+                BatchConversionException.class,
+                () -> converter.convert(incrementalInput, incrementalOutput, incremental));
+        assertEquals(2, e.getFailures().size());
+        assertTrue(new File(incrementalOut, ConversionManifest.FILE_NAME).isFile());
+        assertEquals(0, incrementalOut.list((dir, name) -> name.endsWith(".tmp")).length);
+
+        FileUtils.deleteDirectory(new File(getBasedir() + "/target/unit/"));
+    }
+
+    /**
+     * Input dir / output dir, resuming a conversion which failed half way
+     *
+     * @throws Exception if any
+     */
+    @Test
+    void fileConverterWithInputDirResumed() throws Exception {
+        File in = new File(getBasedir() + "/target/unit/resume/in");
+        File out = new File(getBasedir() + "/target/unit/resume/out");
+        FileUtils.copyFile(new File(getBasedir() + "/src/test/resources/unit/apt/test.apt"), new File(in, "test.apt"));
+        FileUtils.fileWrite(new File(in, "small.apt"), "UTF-8", "Small\n");
+        InputFileWrapper input =
+                InputFileWrapper.valueOf(in.getAbsolutePath(), DoxiaFormat.APT, StandardCharsets.UTF_8.name());
+        List<OutputFileWrapper> outputs = Arrays.asList(
+                OutputFileWrapper.valueOf(out.getAbsolutePath(), DoxiaFormat.MARKDOWN, StandardCharsets.UTF_8.name()));
+        // the largest file is converted first, the output of the smallest one cannot be written
+        ConversionOptions.Builder options =
+                ConversionOptions.builder().threads(1).scheduling(ConversionOptions.Scheduling.LARGEST_FIRST);
+        File blocked = new File(out, "small.md");
+        blocked.mkdirs();
+        assertThrows(ConverterException.class, () -> converter.convert(input, outputs, options.build()));
+        File journal = new File(out, ConversionJournal.FILE_NAME);
+        assertFalse(journal.exists());
+
+        // only a conversion which may be resumed keeps a journal
+        options.resume(true);
+        assertThrows(ConverterException.class, () -> converter.convert(input, outputs, options.build()));
+        assertTrue(journal.exists());
+        assertTrue(FileUtils.fileRead(journal).contains("done\ttest.apt\n"));
+
+        // a resumed conversion leaves the files alone which are done
+        FileUtils.fileWrite(new File(out, "test.md"), "UTF-8", "done before");
+        blocked.delete();
+        converter.convert(input, outputs, options.build());
+        assertEquals("done before", FileUtils.fileRead(new File(out, "test.md")));
+        assertTrue(blocked.isFile());
+        assertFalse(journal.exists());
+
+        assertThrows(
+                IllegalStateException.class,
+                () -> ConversionOptions.builder().incremental(true).resume(true).build());
+
+        FileUtils.deleteDirectory(new File(getBasedir() + "/target/unit/"));
+    }
+
+    /**
+     * Input dir / output dir, converting files again as they change
+     *
+     * @see Converter#watch(InputFileWrapper, List, ConversionOptions)
+     * @throws Exception if any
+     */
+    @Test
+    void fileConverterWithInputDirWatched() throws Exception {
+        File in = new File(getBasedir() + "/target/unit/watch/in");
+        File out = new File(getBasedir() + "/target/unit/watch/out");
+        FileUtils.copyDirectoryStructure(new File(getBasedir() + "/src/test/resources/unit/apt"), in);
+        InputFileWrapper input =
+                InputFileWrapper.valueOf(in.getAbsolutePath(), DoxiaFormat.APT, StandardCharsets.UTF_8.name());
+        List<OutputFileWrapper> outputs = Arrays.asList(
+                OutputFileWrapper.valueOf(out.getAbsolutePath(), DoxiaFormat.MARKDOWN, StandardCharsets.UTF_8.name()));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> watching = executor.submit(() -> {
+                converter.watch(input, outputs, ConversionOptions.DEFAULT);
+                return null;
+            });
+            File macroOut = new File(out, "macro.md");
+            File testOut = new File(out, "test.md");
+            awaitCondition(watching, () -> macroOut.isFile() && testOut.isFile());
+
+            FileUtils.fileAppend(new File(in, "test.apt").getAbsolutePath(), "\nAppended paragraph.\n");
+            awaitCondition(watching, () -> FileUtils.fileRead(testOut).contains("Appended paragraph."));
+            assertTrue(new File(in, "macro.apt").delete());
+            awaitCondition(watching, () -> !macroOut.exists());
+            File newDirectory = new File(in, "new");
+            newDirectory.mkdir();
+            FileUtils.copyFile(new File(in, "test.apt"), new File(newDirectory, "test.apt"));
+            awaitCondition(watching, () -> new File(out, "new/test.md").isFile());
+
+            watching.cancel(true);
+        } finally {
+            executor.shutdownNow();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> converter.watch(
+                        input,
+                        outputs,
+                        ConversionOptions.builder()
+                                .postProcess(Converter.PostProcess.REMOVE_AFTER_CONVERSION)
+                                .build()));
+
+        FileUtils.deleteDirectory(new File(getBasedir() + "/target/unit/"));
+    }
+
+    /**
+     * Waits up to 20 seconds for a condition to become true.
+     */
+    private static void awaitCondition(Future<?> watching, Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 20000;
+        while (!condition.call()) {
+            if (watching.isDone()) {
+                watching.get();
+                fail("Stopped watching");
+            }
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for the watched conversion");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private static void git(File directory, String... args) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        command.addAll(Arrays.asList(args));
+        Process process =
+                new ProcessBuilder(command).directory(directory).redirectErrorStream(true).start();
+        String output = IOUtil.toString(process.getInputStream());
+        assertEquals(0, process.waitFor(), output);
+    }
+
+    /**
+     * Input dir / output dir, writing documents converted before from a cache
+     *
+     * @see ConversionOptions#getCacheDirectory()
+     * @throws Exception if any
+     */
+    @Test
+    void fileConverterWithInputDirCached() throws Exception {
+        File in = new File(getBasedir() + "/src/test/resources/unit/apt");
+        File cacheDir = new File(getBasedir() + "/target/unit/cache/entries");
+        File out1 = new File(getBasedir() + "/target/unit/cache/out1");
+        File out2 = new File(getBasedir() + "/target/unit/cache/out2");
+        InputFileWrapper input =
+                InputFileWrapper.valueOf(in.getAbsolutePath(), DoxiaFormat.APT, StandardCharsets.UTF_8.name());
+        ConversionOptions options = ConversionOptions.builder().cacheDirectory(cacheDir).build();
+
+        converter.convert(
+                input,
+                OutputFileWrapper.valueOf(out1.getAbsolutePath(), DoxiaFormat.XHTML, StandardCharsets.UTF_8.name()),
+                options);
+        List<File> entries = FileUtils.getFiles(cacheDir, "**", null);
+        assertEquals(3, entries.size());
+
+        // a cached document is written as it is, without being parsed again
+        String marker = "from the cache";
+        for (File entry : entries) {
+            FileUtils.fileWrite(entry, marker);
+        }
+        converter.convert(
+                input,
+                OutputFileWrapper.valueOf(out2.getAbsolutePath(), DoxiaFormat.XHTML, StandardCharsets.UTF_8.name()),
+                options);
+        assertEquals(marker, FileUtils.fileRead(new File(out2, "test.html")));
+        assertEquals(marker, FileUtils.fileRead(new File(out2, "child/test.html")));
+
+        // other options give other keys
+        converter.convert(
+                input,
+                OutputFileWrapper.valueOf(out2.getAbsolutePath(), DoxiaFormat.XHTML, StandardCharsets.UTF_8.name()),
+                options.toBuilder().formatOutput(true).build());
+        assertNotEquals(marker, FileUtils.fileRead(new File(out2, "test.html")));
+        assertEquals(6, FileUtils.getFiles(cacheDir, "**", null).size());
+
+        // the least recently used documents are evicted down to the cache size
+        converter.convert(
+                input,
+                OutputFileWrapper.valueOf(out2.getAbsolutePath(), DoxiaFormat.XHTML, StandardCharsets.UTF_8.name()),
+                options.toBuilder().cacheSize(0).build());
+        assertTrue(FileUtils.getFiles(cacheDir, "**", null).isEmpty());
+
+        assertThrows(IllegalArgumentException.class, () -> options.toBuilder().cacheSize(-1));
+
+        FileUtils.deleteDirectory(new File(getBasedir() + "/target/unit/"));
+    }
+
+    /**
+     * Large APT and Markdown documents parsed in parts give the same output as parsed as a whole
+     *
+     * @see ConversionOptions#getDocumentSplitSize()
+     * @throws Exception if any
+     */
+    @Test
+    void fileConverterSplittingLargeDocuments() throws Exception {
+        File dir = new File(getBasedir() + "/target/unit/split");
+        dir.mkdirs();
+        StringBuilder apt = new StringBuilder(" ------\n Title\n ------\n\n");
+        StringBuilder markdown = new StringBuilder("---\ntitle: Title\n---\n\n");
+        for (int i = 1; i <= 20; i++) {
+            apt.append("Section ").append(i).append("\n\n  Paragraph of section ").append(i).append(".\n\n");
+            // titles repeated in several parts
+            apt.append("Common\n\n  {Anchor ").append(i).append("}\n\n");
+            markdown.append("# Common\n\n");
+            apt.append("* Sub-section ").append(i).append("\n\n      * List item.\n\n");
+            apt.append("+----\nVerbatim\n\nNot a section ").append(i).append("\n+----\n\n");
+            markdown.append("# Section ").append(i).append("\n\nParagraph of section ").append(i).append(".\n\n");
+            markdown.append("## Sub-section ").append(i).append("\n\n* List item\n\n");
+            markdown.append("```\n\n# Not a section ").append(i).append("\n```\n\n");
+        }
+        File aptFile = new File(dir, "large.apt");
+        File markdownFile = new File(dir, "large.md");
+        Files.write(aptFile.toPath(), apt.toString().getBytes(StandardCharsets.UTF_8));
+        Files.write(markdownFile.toPath(), markdown.toString().getBytes(StandardCharsets.UTF_8));
+
+        ConversionOptions whole = ConversionOptions.builder().threads(4).build();
+        ConversionOptions split = whole.toBuilder().documentSplitSize(1).build();
+        for (File in : new File[] {aptFile, markdownFile}) {
+            DoxiaFormat format = in == aptFile ? DoxiaFormat.APT : DoxiaFormat.MARKDOWN;
+            InputFileWrapper input =
+                    InputFileWrapper.valueOf(in.getAbsolutePath(), format, StandardCharsets.UTF_8.name());
+            File wholeOut = new File(dir, "whole-" + format + ".html");
+            File splitOut = new File(dir, "split-" + format + ".html");
+            converter.convert(
+                    input,
+                    OutputFileWrapper.valueOf(
+                            wholeOut.getAbsolutePath(), DoxiaFormat.XHTML, StandardCharsets.UTF_8.name()),
+                    whole);
+            converter.convert(
+                    input,
+                    OutputFileWrapper.valueOf(
+                            splitOut.getAbsolutePath(), DoxiaFormat.XHTML, StandardCharsets.UTF_8.name()),
+                    split);
+            assertEquals(
+                    new String(Files.readAllBytes(wholeOut.toPath()), StandardCharsets.UTF_8),
+                    new String(Files.readAllBytes(splitOut.toPath()), StandardCharsets.UTF_8));
+        }
+
+        FileUtils.deleteDirectory(new File(getBasedir() + "/target/unit/"));
+    }
+
+    /**
+     * One converter used by several callers at the same time, each converting to another format
+     *
+     * @see Converter#convert(InputFileWrapper, OutputFileWrapper, ConversionOptions)
+     * @throws Exception if any
+     */
+    @Test
+    void fileConverterSharedByConcurrentCallers() throws Exception {
+        String in = getBasedir() + "/src/test/resources/unit/apt";
+        String out = getBasedir() + "/target/unit/shared/";
+        DoxiaFormat[] targets = {DoxiaFormat.MARKDOWN, DoxiaFormat.XHTML, DoxiaFormat.XDOC};
+
+        InputFileWrapper input = InputFileWrapper.valueOf(in, DoxiaFormat.APT, StandardCharsets.UTF_8.name());
+        ExecutorService callers = Executors.newFixedThreadPool(targets.length);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (DoxiaFormat target : targets) {
+                OutputFileWrapper output =
+                        OutputFileWrapper.valueOf(out + target, target, StandardCharsets.UTF_8.name());
+                results.add(callers.submit(() -> {
+                    converter.convert(input, output, ConversionOptions.DEFAULT);
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            callers.shutdown();
+        }
+
+        for (DoxiaFormat target : targets) {
+            File converted = new File(out + target, "macro." + target.getExtension());
+            assertTrue(converted.length() != 0);
+        }
+        // each caller must have formatted the macros for its own target format
+        String markdown = new String(
+                Files.readAllBytes(new File(out + DoxiaFormat.MARKDOWN, "macro.md").toPath()), StandardCharsets.UTF_8);
+        assertTrue(markdown.contains("<!-- MACRO{"), markdown);
+        String xdoc = new String(
+                Files.readAllBytes(new File(out + DoxiaFormat.XDOC, "macro.xml").toPath()), StandardCharsets.UTF_8);
+        assertTrue(xdoc.contains("<macro name="), xdoc);
+
+        FileUtils.deleteDirectory(new File(getBasedir() + "/target/unit/"));
+    }
+
+    /**
+     * Input dir / several output dirs, parsing each file once for all formats
+     *
+     * @see Converter#convert(InputFileWrapper, List, ConversionOptions)
+     * @throws Exception if any
+     */
+    @Test
+    void fileConverterToSeveralFormats() throws Exception {
+        String in = getBasedir() + "/src/test/resources/unit/apt";
+        String out = getBasedir() + "/target/unit/several/";
+        DoxiaFormat[] targets = {DoxiaFormat.MARKDOWN, DoxiaFormat.XDOC, DoxiaFormat.XHTML};
+
+        InputFileWrapper input = InputFileWrapper.valueOf(in, DoxiaFormat.APT, StandardCharsets.UTF_8.name());
+        List<OutputFileWrapper> outputs = new ArrayList<>();
+        for (DoxiaFormat target : targets) {
+            converter.convert(
+                    input,
+                    OutputFileWrapper.valueOf(out + "single/" + target, target, StandardCharsets.UTF_8.name()),
+                    ConversionOptions.DEFAULT);
+            outputs.add(OutputFileWrapper.valueOf(out + "tee/" + target, target, StandardCharsets.UTF_8.name()));
+        }
+        converter.convert(input, outputs, ConversionOptions.DEFAULT);
+        List<OutputFileWrapper> splitOutputs = new ArrayList<>();
+        for (DoxiaFormat target : targets) {
+            splitOutputs.add(OutputFileWrapper.valueOf(out + "split/" + target, target, StandardCharsets.UTF_8.name()));
+        }
+        converter.convert(
+                input,
+                splitOutputs,
+                ConversionOptions.builder().threads(4).documentSplitSize(1).build());
+
+        for (DoxiaFormat target : targets) {
+            for (String name : new String[] {"macro", "test", "child/test"}) {
+                String single = new String(
+                        Files.readAllBytes(new File(out + "single/" + target, name + "." + target.getExtension())
+                                .toPath()),
+                        StandardCharsets.UTF_8);
+                for (String variant : new String[] {"tee/", "split/"}) {
+                    File converted = new File(out + variant + target, name + "." + target.getExtension());
+                    assertEquals(
+                            single,
+                            new String(Files.readAllBytes(converted.toPath()), StandardCharsets.UTF_8),
+                            converted.getPath());
+                }
+            }
+        }
+        // the macros must have been written in the format of each target
+        assertTrue(new String(
+                        Files.readAllBytes(new File(out + "tee/" + DoxiaFormat.XDOC, "macro.xml").toPath()),
+                        StandardCharsets.UTF_8)
+                .contains("<macro name="));
+
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> converter.convert(
+                        input,
+                        outputs,
+                        ConversionOptions.builder()
+                                .postProcess(Converter.PostProcess.GIT_MV_INPUT_TO_OUTPUT)
+                                .build()));
+
         FileUtils.deleteDirectory(new File(getBasedir() + "/target/unit/"));
     }
 
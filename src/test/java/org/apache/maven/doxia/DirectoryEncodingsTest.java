@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DirectoryEncodingsTest {
+
+    private static final String TEXT = "Über die Größe der Maße: Grüße aus Köln, Düsseldorf und Zürich. "
+            + "Ça va très bien, merci beaucoup. Señor Muñoz und die Bäckerei am Fluß.";
+
+    @Test
+    void agreeingSamplesSettleTheDirectory() {
+        DirectoryEncodings encodings = new DirectoryEncodings(2);
+        File directory = new File("docs");
+        byte[] utf8 = TEXT.getBytes(StandardCharsets.UTF_8);
+
+        assertEquals("UTF-8", encodings.getEncoding(directory, utf8));
+        assertEquals("UTF-8", encodings.getEncoding(directory, utf8));
+        assertEquals("UTF-8", encodings.getEncoding(directory, utf8));
+        assertEquals(2, encodings.getDetected());
+        assertEquals(1, encodings.getInferred());
+
+        // not valid UTF-8, so detected on its own
+        assertEquals("ISO-8859-1", encodings.getEncoding(directory, TEXT.getBytes(StandardCharsets.ISO_8859_1)));
+        assertEquals(3, encodings.getDetected());
+
+        // other directories are sampled on their own
+        assertEquals("UTF-8", encodings.getEncoding(new File("other"), utf8));
+        assertEquals(4, encodings.getDetected());
+    }
+
+    @Test
+    void asciiSamplesDoNotSettleTheDirectory() {
+        DirectoryEncodings encodings = new DirectoryEncodings(2);
+        File directory = new File("docs");
+        byte[] ascii = "Plain English text, without any accents at all.".getBytes(StandardCharsets.US_ASCII);
+
+        encodings.getEncoding(directory, ascii);
+        encodings.getEncoding(directory, ascii);
+        assertEquals("UTF-8", encodings.getEncoding(directory, TEXT.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(3, encodings.getDetected());
+        assertEquals(0, encodings.getInferred());
+    }
+
+    @Test
+    void singleByteEncodingsDoNotSettleTheDirectory() {
+        DirectoryEncodings encodings = new DirectoryEncodings(2);
+        File directory = new File("docs");
+        byte[] latin1 = TEXT.getBytes(StandardCharsets.ISO_8859_1);
+
+        assertEquals("ISO-8859-1", encodings.getEncoding(directory, latin1));
+        assertEquals("ISO-8859-1", encodings.getEncoding(directory, latin1));
+        // valid ISO-8859-1 as well, but detected on its own
+        assertEquals("UTF-8", encodings.getEncoding(directory, TEXT.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(3, encodings.getDetected());
+        assertEquals(0, encodings.getInferred());
+    }
+
+    @Test
+    void disagreeingSamplesDetectEveryFile() {
+        DirectoryEncodings encodings = new DirectoryEncodings(2);
+        File directory = new File("");
+
+        encodings.getEncoding(directory, TEXT.getBytes(StandardCharsets.UTF_8));
+        encodings.getEncoding(directory, TEXT.getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals("UTF-8", encodings.getEncoding(directory, TEXT.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(3, encodings.getDetected());
+        assertEquals(0, encodings.getInferred());
+    }
+}
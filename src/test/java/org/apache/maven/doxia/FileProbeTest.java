@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileProbeTest {
+
+    @Test
+    void xmlFileTellsEncodingAndFirstElement() throws Exception {
+        FileProbe probe = FileProbe.of(new File("src/test/resources/unit/xdoc/test.xml"));
+
+        assertTrue(probe.isXml());
+        assertEquals("document", probe.getFirstElement());
+        assertEquals("UTF-8", probe.getEncoding());
+    }
+
+    @Test
+    void textFileIsGuessed() throws Exception {
+        FileProbe probe = FileProbe.of(new File("src/test/resources/unit/apt/test.apt"));
+
+        assertFalse(probe.isXml());
+        assertNull(probe.getFirstElement());
+        assertEquals("ISO-8859-1", probe.getEncoding());
+    }
+
+    @Test
+    void byteOrderMarkNamesEncoding() {
+        byte[] bom = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+        byte[] text = "plain text".getBytes(StandardCharsets.US_ASCII);
+        byte[] content = new byte[bom.length + text.length];
+        System.arraycopy(bom, 0, content, 0, bom.length);
+        System.arraycopy(text, 0, content, bom.length, text.length);
+
+        FileProbe probe = FileProbe.of(content);
+
+        assertEquals("UTF-8", probe.getBomEncoding());
+        assertEquals("UTF-8", probe.getEncoding());
+    }
+
+    @Test
+    void firstElementAfterLongPrologIsFound() throws Exception {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?>\n<!--");
+        while (xml.length() < FileProbe.PREFIX_LENGTH) {
+            xml.append(" comment");
+        }
+        xml.append(" -->\n<!DOCTYPE document>\n<document/>");
+        byte[] content = xml.toString().getBytes(StandardCharsets.UTF_8);
+        File file = new File("target/unit/probe/prolog.xml");
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content);
+
+        for (FileProbe probe : Arrays.asList(FileProbe.of(content), FileProbe.of(file))) {
+            assertTrue(probe.isXml());
+            assertEquals("document", probe.getFirstElement());
+            assertEquals("UTF-8", probe.getEncoding());
+        }
+    }
+}
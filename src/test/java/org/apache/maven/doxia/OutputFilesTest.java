@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutputFilesTest {
+
+    @Test
+    void testHasContent() throws IOException {
+        Path file = Paths.get("target/has-content.txt");
+        Files.deleteIfExists(file);
+        byte[] content = new byte[20000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        assertFalse(OutputFiles.hasContent(file, content));
+        Files.write(file, content);
+        assertTrue(OutputFiles.hasContent(file, content));
+        content[content.length - 1]++;
+        assertFalse(OutputFiles.hasContent(file, content));
+        assertFalse(OutputFiles.hasContent(file, "shorter".getBytes(StandardCharsets.UTF_8)));
+        Files.write(file, new byte[0]);
+        assertTrue(OutputFiles.hasContent(file, new byte[0]));
+        Files.delete(file);
+    }
+
+    @Test
+    void testHasContentOfFile() throws IOException {
+        Path file = Paths.get("target/has-content-of-file.txt");
+        Path content = Paths.get("target/has-content-of-file.tmp");
+        Files.deleteIfExists(file);
+        byte[] bytes = new byte[20000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        Files.write(content, bytes);
+        assertFalse(OutputFiles.hasContent(file, content));
+        Files.write(file, bytes);
+        assertTrue(OutputFiles.hasContent(file, content));
+        bytes[bytes.length - 1]++;
+        Files.write(file, bytes);
+        assertFalse(OutputFiles.hasContent(file, content));
+        Files.write(file, "shorter".getBytes(StandardCharsets.UTF_8));
+        assertFalse(OutputFiles.hasContent(file, content));
+        Files.delete(file);
+        Files.delete(content);
+    }
+
+    @Test
+    void testWriteMovesOnlyChangedContent() throws IOException {
+        Path file = Paths.get("target/write-moves.txt");
+        Files.write(file, "converted".getBytes(StandardCharsets.UTF_8));
+        Path rendered = OutputFiles.createTemporaryFile(file);
+        Files.write(rendered, "converted".getBytes(StandardCharsets.UTF_8));
+        assertTrue(OutputFiles.write(file, rendered, true));
+        assertFalse(Files.exists(rendered));
+
+        rendered = OutputFiles.createTemporaryFile(file);
+        Files.write(rendered, "changed".getBytes(StandardCharsets.UTF_8));
+        assertFalse(OutputFiles.write(file, rendered, true));
+        assertFalse(Files.exists(rendered));
+        assertTrue(OutputFiles.hasContent(file, "changed".getBytes(StandardCharsets.UTF_8)));
+        Files.delete(file);
+    }
+}
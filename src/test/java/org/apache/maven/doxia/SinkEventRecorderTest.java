@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.apache.maven.doxia.module.apt.AptParser;
+import org.apache.maven.doxia.module.xhtml5.Xhtml5SinkFactory;
+import org.apache.maven.doxia.sink.Sink;
+import org.apache.maven.doxia.sink.SinkEventAttributes;
+import org.apache.maven.doxia.sink.impl.SinkAdapter;
+import org.apache.maven.doxia.sink.impl.SinkEventAttributeSet;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SinkEventRecorderTest {
+
+    @Test
+    void replayRendersLikeTheParser() throws Exception {
+        Path apt = Paths.get("src/test/resources/unit/apt/test.apt");
+        ByteArrayOutputStream parsed = new ByteArrayOutputStream();
+        try (Reader reader = Files.newBufferedReader(apt, StandardCharsets.UTF_8);
+                Sink sink = new Xhtml5SinkFactory().createSink(parsed, StandardCharsets.UTF_8.name())) {
+            new AptParser().parse(reader, sink);
+        }
+
+        SinkEventRecorder recorder = new SinkEventRecorder();
+        try (Reader reader = Files.newBufferedReader(apt, StandardCharsets.UTF_8)) {
+            new AptParser().parse(reader, recorder);
+        }
+        // rendered twice from a single parse
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream replayed = new ByteArrayOutputStream();
+            try (Sink sink = new Xhtml5SinkFactory().createSink(replayed, StandardCharsets.UTF_8.name())) {
+                recorder.replay(sink);
+            }
+            assertEquals(parsed.toString("UTF-8"), replayed.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    void argumentsAreKeptAndIdsFound() throws Exception {
+        SinkEventRecorder recorder = new SinkEventRecorder();
+        Sink sink = recorder;
+        sink.body();
+        sink.section(Sink.SECTION_LEVEL_2, new SinkEventAttributeSet(SinkEventAttributes.ID, "first"));
+        sink.anchor("second");
+        sink.anchor_();
+        sink.tableRows(new int[] {Sink.JUSTIFY_LEFT, Sink.JUSTIFY_RIGHT}, true);
+        sink.text("repeated");
+        sink.text("repeated");
+        sink.text(null);
+        sink.section_(Sink.SECTION_LEVEL_2);
+        sink.body_();
+
+        assertEquals(10, recorder.size());
+        assertEquals(0, recorder.indexOfBody());
+        assertEquals(9, recorder.lastIndexOfBodyEnd());
+        assertTrue(recorder.getIds().contains("first"));
+        assertTrue(recorder.getIds().contains("second"));
+
+        StringBuilder events = new StringBuilder();
+        recorder.replay(new SinkAdapter() {
+            @Override
+            public void section(int level, SinkEventAttributes attributes) {
+                events.append("section").append(level).append(attributes.getAttribute(SinkEventAttributes.ID));
+            }
+
+            @Override
+            public void tableRows(int[] justification, boolean grid) {
+                events.append(" rows").append(justification.length).append(grid);
+            }
+
+            @Override
+            public void text(String text, SinkEventAttributes attributes) {
+                events.append(' ').append(text);
+            }
+        });
+        assertEquals("section2first rows2true repeated repeated null", events.toString());
+    }
+}
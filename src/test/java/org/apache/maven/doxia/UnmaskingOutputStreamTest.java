@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.doxia;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UnmaskingOutputStreamTest {
+
+    @Test
+    void placeholdersSplitAcrossWritesAreRestored() throws IOException {
+        VelocityMasker masker = new VelocityMasker();
+        String masked = masker.mask("#if( $a )\nPrix: ${prix} €\n#end\n");
+        byte[] bytes = masked.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (UnmaskingOutputStream unmasking = new UnmaskingOutputStream(out, masker, StandardCharsets.UTF_8)) {
+            for (byte b : bytes) {
+                unmasking.write(b);
+            }
+        }
+
+        assertEquals("#if( $a )\nPrix: ${prix} €\n#end\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void newReferencesAreFoundInTheRestoredDocument() throws IOException {
+        VelocityMasker masker = new VelocityMasker();
+        String masked = masker.mask("See ${a} and $\\{b\\}.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        UnmaskingOutputStream unmasking = new UnmaskingOutputStream(out, masker, StandardCharsets.UTF_8);
+        unmasking.write(masked.replace("$\\{b\\}", "${b}").getBytes(StandardCharsets.UTF_8));
+        unmasking.close();
+
+        assertEquals("See ${a} and ${b}.", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(Collections.singletonList("${b}"), unmasking.getNewReferences());
+    }
+
+    @Test
+    void onlyEncodingsKeepingAsciiAsSingleBytesAreSupported() {
+        assertTrue(UnmaskingOutputStream.supports(StandardCharsets.UTF_8));
+        assertTrue(UnmaskingOutputStream.supports(StandardCharsets.ISO_8859_1));
+        assertTrue(UnmaskingOutputStream.supports(Charset.forName("windows-1252")));
+        assertFalse(UnmaskingOutputStream.supports(StandardCharsets.UTF_16));
+        assertFalse(UnmaskingOutputStream.supports(Charset.forName("Shift_JIS")));
+        assertFalse(UnmaskingOutputStream.supports(Charset.forName("IBM037")));
+    }
+
+    @Test
+    void restoringWhileWritingMatchesRestoringTheWholeDocument() throws IOException {
+        Random random = new Random(42);
+        String[] alphabet = {
+            "#", "*", "$", "!", "{", "}", "\n", " ", "a", "é", "€", "v", "0", "1", "velocitymask://", "/endmask"
+        };
+        for (Charset charset : Arrays.asList(StandardCharsets.UTF_8, Charset.forName("windows-1252"))) {
+            for (int n = 0; n < 5_000; n++) {
+                StringBuilder template = new StringBuilder();
+                for (int i = random.nextInt(40); i > 0; i--) {
+                    template.append(alphabet[random.nextInt(alphabet.length)]);
+                }
+                VelocityMasker masker = new VelocityMasker();
+                String masked = masker.mask(template.toString());
+                // what a parser may make of the document, including placeholders of its own
+                StringBuilder converted = new StringBuilder();
+                for (int i = random.nextInt(40); i > 0; i--) {
+                    converted.append(alphabet[random.nextInt(alphabet.length)]);
+                }
+                converted.insert(random.nextInt(converted.length() + 1), masked);
+                String expected = masker.unmask(converted.toString());
+
+                byte[] bytes = converted.toString().getBytes(charset);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                UnmaskingOutputStream unmasking = new UnmaskingOutputStream(out, masker, charset);
+                for (int off = 0; off < bytes.length; ) {
+                    int len = Math.min(bytes.length - off, random.nextInt(8));
+                    unmasking.write(bytes, off, len);
+                    off += len;
+                }
+                unmasking.close();
+
+                assertEquals(new String(expected.getBytes(charset), charset), new String(out.toByteArray(), charset));
+                assertEquals(masker.findNewReferences(expected), unmasking.getNewReferences(), converted.toString());
+            }
+        }
+    }
+}
@@ -18,7 +18,15 @@
  */
 package org.apache.maven.doxia;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.junit.jupiter.api.Test;
 
@@ -105,6 +113,15 @@ class VelocityMaskerTest {
         assertTrue(masker.findNewReferences(converted).isEmpty());
     }
 
+    @Test
+    void referencesOccurringMoreOftenThanInTheSourceAreReportedInOrder() {
+        VelocityMasker masker = new VelocityMasker();
+        masker.mask("${a} ${b} ${a}");
+
+        String converted = "${b} ${a} ${c} ${a} ${b} ${a}";
+        assertEquals(Arrays.asList("${c}", "${b}", "${a}"), masker.findNewReferences(converted));
+    }
+
     @Test
     void plainTextIsLeftAlone() {
         VelocityMasker masker = new VelocityMasker();
@@ -113,4 +130,124 @@ class VelocityMaskerTest {
         assertEquals(source, masker.mask(source));
         assertTrue(masker.getMaskedDirectives().isEmpty());
     }
+
+    @Test
+    void onlyPlaceholdersOfMaskedValuesAreRestored() {
+        VelocityMasker masker = new VelocityMasker();
+        String masked = masker.mask("#if( $a )\n${b} #* c *# ${d}\n");
+
+        String converted = masked + " velocitymask://7/endmask velocitymask://01/endmask velocitymask://x/endmask";
+
+        assertEquals(
+                "#if( $a )\n${b} #* c *# ${d}\n velocitymask://7/endmask velocitymask://01/endmask "
+                        + "velocitymask://x/endmask",
+                masker.unmask(converted));
+    }
+
+    @Test
+    void unterminatedBlockCommentsAreLeftAlone() {
+        VelocityMasker masker = new VelocityMasker();
+        StringBuilder source = new StringBuilder("text ");
+        for (int i = 0; i < 100_000; i++) {
+            source.append("#* ");
+        }
+
+        assertEquals(source.toString(), masker.mask(source.toString()));
+    }
+
+    @Test
+    void blockCommentsBeforeAnUnterminatedOneAreMasked() {
+        VelocityMasker masker = new VelocityMasker();
+        String source = "${ #*a*# #*";
+
+        assertEquals(maskByRegularExpressions(source, new ArrayList<>(), new ArrayList<>()), masker.mask(source));
+        assertEquals(source, masker.unmask(masker.mask(source)));
+    }
+
+    @Test
+    void maskingWhileReadingMatchesMaskingTheWholeTemplate() throws IOException {
+        Random random = new Random(42);
+        String[] snippets = {
+            "#* block\n comment *#", "#if( $a )", "${b}", "$!{c}", "${d #* e *#}", "${f\n", "#*", "*#", "\n", "\r\n",
+            "  #end", "text ", "{", "}", "$", "#"
+        };
+        for (int n = 0; n < 200; n++) {
+            StringBuilder template = new StringBuilder();
+            for (int i = random.nextInt(4000); i > 0; i--) {
+                template.append(snippets[random.nextInt(snippets.length)]);
+            }
+            String source = template.toString();
+            VelocityMasker masker = new VelocityMasker();
+
+            StringBuilder masked = new StringBuilder();
+            try (Reader reader = masker.mask(() -> new StringReader(source)).get()) {
+                char[] chunk = new char[1 + random.nextInt(50)];
+                for (int read; (read = reader.read(chunk)) >= 0; ) {
+                    masked.append(chunk, 0, read);
+                }
+            }
+
+            List<String> expectedDirectives = new ArrayList<>();
+            assertEquals(maskByRegularExpressions(source, expectedDirectives, new ArrayList<>()), masked.toString());
+            assertEquals(expectedDirectives, masker.getMaskedDirectives());
+            assertEquals(source, masker.unmask(masked.toString()));
+        }
+    }
+
+    @Test
+    void maskingAndRestoringMatchTheFormerImplementation() {
+        Random random = new Random(42);
+        char[] alphabet = {'#', '*', '$', '!', '{', '}', '\n', '\r', ' ', '\t', 'a', '\u2028'};
+        for (int n = 0; n < 10_000; n++) {
+            char[] source = new char[random.nextInt(40)];
+            for (int i = 0; i < source.length; i++) {
+                source[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            String template = new String(source);
+            VelocityMasker masker = new VelocityMasker();
+            List<String> expectedDirectives = new ArrayList<>();
+            List<String> expectedValues = new ArrayList<>();
+
+            String masked = masker.mask(template);
+            assertEquals(maskByRegularExpressions(template, expectedDirectives, expectedValues), masked, template);
+            assertEquals(expectedDirectives, masker.getMaskedDirectives(), template);
+            assertEquals(template, masker.unmask(masked), template);
+            String converted = masked + "\n" + masked;
+            assertEquals(unmaskByReplacing(converted, expectedValues), masker.unmask(converted), template);
+        }
+    }
+
+    /**
+     * The masking as it was done before the tokenizer, with a regular expression pass per kind of construct.
+     */
+    private static String maskByRegularExpressions(String content, List<String> directives, List<String> values) {
+        String masked = maskByRegularExpression(content, Pattern.compile("#\\*.*?\\*#", Pattern.DOTALL), values);
+        int directivesStart = values.size();
+        masked = maskByRegularExpression(masked, Pattern.compile("^[ \\t]*#[^\\n]*", Pattern.MULTILINE), values);
+        directives.addAll(values.subList(directivesStart, values.size()));
+        return maskByRegularExpression(masked, Pattern.compile("\\$!?\\{[^{}\\n]*\\}"), values);
+    }
+
+    /**
+     * The restoring as it was done before the forward scan, replacing each placeholder from the highest index down.
+     */
+    private static String unmaskByReplacing(String content, List<String> values) {
+        String unmasked = content;
+        for (int i = values.size() - 1; i >= 0; i--) {
+            unmasked = unmasked.replace("velocitymask://" + i + "/endmask", values.get(i));
+        }
+        return unmasked;
+    }
+
+    private static String maskByRegularExpression(String content, Pattern pattern, List<String> values) {
+        Matcher matcher = pattern.matcher(content);
+        StringBuffer buffer = new StringBuffer();
+        while (matcher.find()) {
+            values.add(matcher.group());
+            matcher.appendReplacement(
+                    buffer, Matcher.quoteReplacement("velocitymask://" + (values.size() - 1) + "/endmask"));
+        }
+        matcher.appendTail(buffer);
+        return buffer.toString();
+    }
 }